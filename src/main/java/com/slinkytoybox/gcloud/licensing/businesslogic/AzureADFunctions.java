@@ -19,15 +19,33 @@
  */
 package com.slinkytoybox.gcloud.licensing.businesslogic;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.content.BatchRequestContent;
+import com.microsoft.graph.content.BatchResponseContent;
+import com.microsoft.graph.content.BatchResponseStep;
 import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphError;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.http.HttpMethod;
 import com.microsoft.graph.options.Option;
 import com.microsoft.graph.options.QueryOption;
 import com.microsoft.graph.models.*;
 import com.microsoft.graph.requests.*;
 import com.slinkytoybox.gcloud.licensing.connection.AzureADConnection;
+import com.slinkytoybox.gcloud.licensing.connection.GCloudAPIConnection;
+import com.slinkytoybox.gcloud.licensing.dto.internal.GroupMemberDelta;
+import com.slinkytoybox.gcloud.licensing.genesys.CloudPlatform;
 import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.DependsOn;
@@ -45,13 +63,175 @@ public class AzureADFunctions {
     @Autowired
     private AzureADConnection adConn;
 
+    @Autowired
+    private GCloudAPIConnection cloudApi;
+
+    @Autowired
+    private AzureDirectoryCache directoryCache;
+
+    @Autowired
+    private GroupMembershipMirror membershipMirror;
+
+    @Autowired
+    private GraphThrottle graphThrottle;
+
     private GraphServiceClient graphClient;
 
+    // Graph accepts at most 20 requests in one $batch call
+    private static final int MAX_BATCH_STEPS = 20;
+    private static final Set<String> DELTA_RESET_CODES = Set.of("resyncRequired", "syncStateNotFound", "syncStateInvalid");
+
     @PostConstruct
     public void setup() {
         final String logPrefix = "setup() - ";
         log.trace("{}Entering Method", logPrefix);
         graphClient = adConn.getClient();
+        warmDirectoryCache();
+        membershipMirror.start(this::getAccessGroupIds, this::fetchMemberDelta);
+    }
+
+    // the access groups come from configuration and never change, so resolve them all up front
+    private void warmDirectoryCache() {
+        final String logPrefix = "warmDirectoryCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        for (CloudPlatform cp : cloudApi.getAllPlatforms().values()) {
+            String groupName = cp.getAzureAdAccessGroup();
+            if (groupName == null || groupName.isBlank()) {
+                continue;
+            }
+            try {
+                String groupId = resolveGroupId(groupName);
+                log.info("{}Access group {} resolved to {}", logPrefix, groupName, groupId);
+            }
+            catch (ClientException ex) {
+                log.warn("{}Could not resolve access group {}. It will be looked up on first use", logPrefix, groupName, ex);
+            }
+        }
+    }
+
+    private Collection<String> getAccessGroupIds() {
+        final String logPrefix = "getAccessGroupIds() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Collection<String> groupIds = new LinkedHashSet<>();
+        for (CloudPlatform cp : cloudApi.getAllPlatforms().values()) {
+            String groupName = cp.getAzureAdAccessGroup();
+            if (groupName == null || groupName.isBlank()) {
+                continue;
+            }
+            try {
+                String groupId = resolveGroupId(groupName);
+                if (groupId != null) {
+                    groupIds.add(groupId);
+                }
+            }
+            catch (ClientException ex) {
+                log.warn("{}Could not resolve access group {}", logPrefix, groupName, ex);
+            }
+        }
+        return groupIds;
+    }
+
+    // Runs a delta query for the members of a single group. Without a delta link every current member comes back as
+    // added and the result is a full sync; with one only the changes since it was issued are returned. Returns null on
+    // failure so the mirror keeps its previous state
+    private GroupMemberDelta fetchMemberDelta(String groupId, String deltaLink) {
+        final String logPrefix = "fetchMemberDelta() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        GroupMemberDelta delta = new GroupMemberDelta()
+                .setGroupId(groupId)
+                .setFullSync(deltaLink == null);
+        GroupDeltaCollectionRequestBuilder nextRequest;
+        if (deltaLink == null) {
+            log.debug("{}Starting full delta sync of group {}", logPrefix, groupId);
+            LinkedList<Option> requestOptions = new LinkedList<>();
+            requestOptions.add(new QueryOption("$filter", "id eq '" + groupId + "'"));
+            requestOptions.add(new QueryOption("$select", "members"));
+            try {
+                GroupDeltaCollectionPage page = graphThrottle.execute("group delta", () -> graphClient.groups().delta().buildRequest(requestOptions).get());
+                nextRequest = readDeltaPage(page, delta);
+            }
+            catch (ClientException ex) {
+                log.error("{}Exception encountered starting delta sync of group {}", logPrefix, groupId, ex);
+                return null;
+            }
+        }
+        else {
+            nextRequest = new GroupDeltaCollectionRequestBuilder(deltaLink, graphClient, null);
+        }
+
+        try {
+            while (nextRequest != null) {
+                GroupDeltaCollectionRequestBuilder request = nextRequest;
+                nextRequest = readDeltaPage(graphThrottle.execute("group delta", () -> request.buildRequest().get()), delta);
+            }
+        }
+        catch (GraphServiceException ex) {
+            if (deltaLink != null && isDeltaReset(ex)) {
+                log.warn("{}Delta link for group {} rejected ({}). Falling back to a full sync", logPrefix, groupId, ex.getResponseCode());
+                return fetchMemberDelta(groupId, null);
+            }
+            log.error("{}Exception encountered reading delta for group {}", logPrefix, groupId, ex);
+            return null;
+        }
+        catch (ClientException ex) {
+            log.error("{}Exception encountered reading delta for group {}", logPrefix, groupId, ex);
+            return null;
+        }
+        if (delta.getDeltaLink() == null) {
+            log.error("{}Delta query for group {} did not return a delta link", logPrefix, groupId);
+            return null;
+        }
+        log.debug("{}Group {} delta: +{} -{}", logPrefix, groupId, delta.getAdded().size(), delta.getRemoved().size());
+        return delta;
+    }
+
+    // Graph answers an expired or unusable delta link with 410 Gone or one of the sync reset codes, and the only way
+    // back is a fresh full sync. Anything else (throttling, outages, auth) is not fixed by one, so the mirror just
+    // keeps its link and tries again on the next sync
+    private boolean isDeltaReset(GraphServiceException ex) {
+        if (ex.getResponseCode() == 410) {
+            return true;
+        }
+        GraphError error = ex.getServiceError();
+        if (error == null) {
+            return false;
+        }
+        if (error.code != null && DELTA_RESET_CODES.contains(error.code)) {
+            return true;
+        }
+        return error.innererror != null && error.innererror.code != null && DELTA_RESET_CODES.contains(error.innererror.code);
+    }
+
+    private GroupDeltaCollectionRequestBuilder readDeltaPage(GroupDeltaCollectionPage page, GroupMemberDelta delta) {
+        if (page == null) {
+            return null;
+        }
+        for (Group group : page.getCurrentPage()) {
+            JsonElement members = group.additionalDataManager().get("members@delta");
+            if (members == null || !members.isJsonArray()) {
+                continue;
+            }
+            for (JsonElement element : members.getAsJsonArray()) {
+                JsonObject member = element.getAsJsonObject();
+                if (!member.has("id") || (member.has("@odata.type") && !"#microsoft.graph.user".equals(member.get("@odata.type").getAsString()))) {
+                    continue;
+                }
+                String userId = member.get("id").getAsString();
+                if (member.has("@removed")) {
+                    delta.getAdded().remove(userId);
+                    delta.getRemoved().add(userId);
+                }
+                else {
+                    delta.getRemoved().remove(userId);
+                    delta.getAdded().add(userId);
+                }
+            }
+        }
+        if (page.deltaLink() != null) {
+            delta.setDeltaLink(page.deltaLink());
+        }
+        return page.getNextPage();
     }
 
     boolean addUserToGroup(String upn, String groupName) {
@@ -61,22 +241,271 @@ public class AzureADFunctions {
         return modifyGroup(upn, groupName, true);
     }
 
+    Map<String, Boolean> addUsersToGroup(Collection<String> upns, String groupName) {
+        final String logPrefix = "addUsersToGroup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Adding {} users to Azure Group {}", logPrefix, upns.size(), groupName);
+        return modifyGroupMemberships(upns, groupName, true);
+    }
+
+    Map<String, Boolean> removeUsersFromGroup(Collection<String> upns, String groupName) {
+        final String logPrefix = "removeUsersFromGroup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Removing {} users from Azure Group {}", logPrefix, upns.size(), groupName);
+        return modifyGroupMemberships(upns, groupName, false);
+    }
+
+    // Resolves uncached users and then applies the membership changes in Graph $batch calls of up to MAX_BATCH_STEPS
+    // requests, so a bulk change costs a handful of HTTP calls rather than one or two per user. Each step carries its
+    // own status, so one user failing does not fail the rest of the batch
+    private Map<String, Boolean> modifyGroupMemberships(Collection<String> upns, String groupName, boolean addUser) {
+        final String logPrefix = "modifyGroupMemberships() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        upns.forEach(upn -> results.put(upn, false));
+
+        // resolve the group once for the whole batch
+        String groupId = getGroupId(groupName);
+        if (groupId == null) {
+            log.error("{}Could not find group {}", logPrefix, groupName);
+            return results;
+        }
+
+        List<Map.Entry<String, String>> changes = new ArrayList<>();
+        resolveUserIds(results.keySet()).forEach((upn, userId) -> {
+            if (userId == null) {
+                log.error("{}User {} was not found in AzureAD", logPrefix, upn);
+                return;
+            }
+            changes.add(Map.entry(upn, userId));
+        });
+
+        for (int i = 0; i < changes.size(); i += MAX_BATCH_STEPS) {
+            sendMembershipBatch(changes.subList(i, Math.min(i + MAX_BATCH_STEPS, changes.size())), groupId, groupName, addUser, results);
+        }
+        long succeeded = results.values().stream().filter(Boolean.TRUE::equals).count();
+        log.info("{}{} of {} membership changes for group {} succeeded", logPrefix, succeeded, results.size(), groupName);
+        return results;
+    }
+
+    // UPN to user id for every user that could be resolved. Users missing from the cache are looked up in batches, and
+    // any the batch could not answer are looked up individually by the cache loader
+    private Map<String, String> resolveUserIds(Collection<String> upns) {
+        final String logPrefix = "resolveUserIds() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<String> uncached = upns.stream().filter(upn -> !directoryCache.hasUser(upn)).toList();
+        Map<String, String> found = new HashMap<>();
+        for (int i = 0; i < uncached.size(); i += MAX_BATCH_STEPS) {
+            lookupUserBatch(uncached.subList(i, Math.min(i + MAX_BATCH_STEPS, uncached.size())), found);
+        }
+        log.debug("{}{} users uncached, {} found by batch lookup", logPrefix, uncached.size(), found.size());
+
+        Map<String, String> userIds = new LinkedHashMap<>();
+        for (String upn : upns) {
+            try {
+                userIds.put(upn, directoryCache.getUserId(upn, u -> found.containsKey(u) ? found.get(u) : findUserId(u)));
+            }
+            catch (ClientException ex) {
+                log.error("{}Exception encountered finding user {}", logPrefix, upn, ex);
+            }
+        }
+        return userIds;
+    }
+
+    private void lookupUserBatch(List<String> upns, Map<String, String> found) {
+        final String logPrefix = "lookupUserBatch() - ";
+        log.trace("{}Entering Method", logPrefix);
+        BatchRequestContent batch = new BatchRequestContent();
+        Map<String, String> stepUpns = new HashMap<>();
+        for (String upn : upns) {
+            stepUpns.put(batch.addBatchRequestStep(graphClient.users(upn).buildRequest().select("id")), upn);
+        }
+        BatchResponseContent response;
+        try {
+            response = graphThrottle.execute("user lookup batch", () -> graphClient.batch().buildRequest().post(batch));
+        }
+        catch (ClientException ex) {
+            log.warn("{}Batch lookup of {} users failed. They will be looked up individually", logPrefix, upns.size(), ex);
+            return;
+        }
+        stepUpns.forEach((stepId, upn) -> {
+            BatchResponseStep<JsonElement> step = response.getResponseById(stepId);
+            if (step == null) {
+                return;
+            }
+            if (step.status == 404) {
+                found.put(upn, null);
+            }
+            else if (step.status >= 200 && step.status < 300 && step.body != null && step.body.isJsonObject() && step.body.getAsJsonObject().has("id")) {
+                found.put(upn, step.body.getAsJsonObject().get("id").getAsString());
+            }
+            else {
+                log.warn("{}Batch lookup of {} returned {}", logPrefix, upn, step.status);
+            }
+        });
+    }
+
+    // Steps Graph throttled inside an otherwise successful batch are sent again in a smaller batch after the longest
+    // Retry-After they asked for. Any still throttled when the retries run out are left as failed
+    private void sendMembershipBatch(List<Map.Entry<String, String>> changes, String groupId, String groupName, boolean addUser, Map<String, Boolean> results) {
+        final String logPrefix = "sendMembershipBatch() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<Map.Entry<String, String>> pending = changes;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            BatchRequestContent batch = new BatchRequestContent();
+            Map<String, Map.Entry<String, String>> steps = new HashMap<>();
+            for (Map.Entry<String, String> change : pending) {
+                String stepId;
+                if (addUser) {
+                    JsonObject reference = new JsonObject();
+                    reference.addProperty("@odata.id", graphClient.getServiceRoot() + "/directoryObjects/" + change.getValue());
+                    stepId = batch.addBatchRequestStep(graphClient.groups(groupId).members().references().buildRequest(), HttpMethod.POST, reference);
+                }
+                else {
+                    stepId = batch.addBatchRequestStep(graphClient.groups(groupId).members(change.getValue()).reference().buildRequest(), HttpMethod.DELETE);
+                }
+                steps.put(stepId, change);
+            }
+
+            log.debug("{}Sending batch of {} {} for group {}", logPrefix, pending.size(), addUser ? "additions" : "removals", groupName);
+            BatchResponseContent response;
+            try {
+                response = graphThrottle.execute("membership batch", () -> graphClient.batch().buildRequest().post(batch));
+            }
+            catch (ClientException ex) {
+                log.error("{}Exception encountered sending batch for group {}", logPrefix, groupName, ex);
+                return;
+            }
+
+            List<Map.Entry<String, String>> throttled = new ArrayList<>();
+            Long retryAfter = null;
+            for (Map.Entry<String, Map.Entry<String, String>> entry : steps.entrySet()) {
+                Map.Entry<String, String> change = entry.getValue();
+                BatchResponseStep<JsonElement> step = response.getResponseById(entry.getKey());
+                if (step != null && GraphThrottle.isThrottle(step.status)) {
+                    throttled.add(change);
+                    Long stepRetryAfter = GraphThrottle.getRetryAfterSeconds(step.headers);
+                    if (stepRetryAfter != null && (retryAfter == null || stepRetryAfter > retryAfter)) {
+                        retryAfter = stepRetryAfter;
+                    }
+                    continue;
+                }
+                results.put(change.getKey(), applyBatchStep(step, change.getKey(), change.getValue(), groupId, groupName, addUser));
+            }
+            if (!throttled.isEmpty()) {
+                log.warn("{}{} of {} steps throttled for group {}", logPrefix, throttled.size(), pending.size(), groupName);
+                if (!graphThrottle.throttledRetry("membership batch for group " + groupName, attempt, retryAfter)) {
+                    return;
+                }
+            }
+            pending = throttled;
+        }
+    }
+
+    // same outcome rules as modifyGroupMembership, applied to one step of a batch response
+    private boolean applyBatchStep(BatchResponseStep<JsonElement> step, String upn, String userId, String groupId, String groupName, boolean addUser) {
+        final String logPrefix = "applyBatchStep() - ";
+        if (step == null) {
+            log.error("{}No batch response for {}", logPrefix, upn);
+            return false;
+        }
+        String body = step.body == null ? "" : step.body.toString();
+        if (step.status >= 200 && step.status < 300) {
+            log.info("{}Successfully {} {}", logPrefix, addUser ? "added" : "removed", upn);
+        }
+        else if (addUser && step.status == 400 && body.contains("already exist")) {
+            log.info("{}User {} is already a member of group {} - doing nothing", logPrefix, upn, groupName);
+        }
+        else if (!addUser && step.status == 404) {
+            log.warn("{}User {} is not a member of group {}. Nothing to do.", logPrefix, upn, groupName);
+        }
+        else {
+            if (addUser && step.status == 404) {
+                log.warn("{}User id {} for {} no longer exists. Clearing cached id", logPrefix, userId, upn);
+                directoryCache.invalidateUser(upn);
+            }
+            log.error("{}Group change for {} failed with {}: {}", logPrefix, upn, step.status, body);
+            return false;
+        }
+        membershipMirror.recordChange(groupId, userId, addUser);
+        return true;
+    }
+
     private boolean modifyGroup(String upn, String groupName, boolean addUser) {
         final String logPrefix = "modifyGroup() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}AD Group change for {} - User {} ... Adding? {}", logPrefix, groupName, upn, addUser);
 
+        // a failed group or user lookup is reported as a failed change, so the caller can release what it holds at once
+        try {
+            String groupId = resolveGroupId(groupName);
+            if (groupId == null) {
+                return false;
+            }
+            return modifyGroupMembership(upn, groupId, groupName, addUser);
+        }
+        catch (ClientException ex) {
+            log.error("{}Exception encountered looking up {} or group {}", logPrefix, upn, groupName, ex);
+            return false;
+        }
+    }
+
+    String getGroupId(String groupName) {
+        final String logPrefix = "getGroupId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        try {
+            return resolveGroupId(groupName);
+        }
+        catch (ClientException ex) {
+            log.error("{}Exception encountered finding group {}", logPrefix, groupName, ex);
+            return null;
+        }
+    }
+
+    // UPN to Azure AD user id, with null for users that could not be resolved
+    Map<String, String> getUserIds(Collection<String> upns) {
+        final String logPrefix = "getUserIds() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, String> userIds = new LinkedHashMap<>();
+        for (String upn : upns) {
+            try {
+                userIds.put(upn, resolveUserId(upn));
+            }
+            catch (ClientException ex) {
+                log.error("{}Exception encountered finding user {}", logPrefix, upn, ex);
+                userIds.put(upn, null);
+            }
+        }
+        return userIds;
+    }
+
+    String getCachedUpn(String userId) {
+        return directoryCache.getCachedUpn(userId);
+    }
+
+    private String resolveGroupId(String groupName) {
+        return directoryCache.getGroupId(groupName, this::findGroupId);
+    }
+
+    private String resolveUserId(String upn) {
+        return directoryCache.getUserId(upn, this::findUserId);
+    }
+
+    private String findGroupId(String groupName) {
+        final String logPrefix = "findGroupId() - ";
+        log.trace("{}Entering Method", logPrefix);
+
         LinkedList<Option> requestOptions = new LinkedList<>();
         requestOptions.add(new QueryOption("$filter", "displayName eq '" + groupName + "'"));
 
         log.debug("{}Sending off Azure group request", logPrefix);
-        GroupCollectionPage groupsPage = graphClient.groups()
+        GroupCollectionPage groupsPage = graphThrottle.execute("group lookup", () -> graphClient.groups()
                 .buildRequest(requestOptions)
-                .get();
+                .get());
 
         if (groupsPage == null) {
             log.error("{}Could not find group {} in Azure", logPrefix, groupName);
-            return false;
+            return null;
         }
 
         List<Group> groupList = groupsPage.getCurrentPage();
@@ -84,92 +513,102 @@ public class AzureADFunctions {
 
         if (groupList.size() != 1) {
             log.warn("{}A single group was not returned", logPrefix);
-            return false;
-        }
-
-        User adUser = graphClient.users(upn).buildRequest().get();
-        if (adUser == null || adUser.id == null) {
-            log.error("{}User {} was not found in AzureAD", logPrefix, upn);
-            return false;
+            return null;
         }
 
         Group adGroup = groupList.get(0);
         if (adGroup == null || adGroup.id == null) {
             log.error("{}AD Group returned null or Null ID!", logPrefix);
-            return false;
+            return null;
         }
         
         log.trace("{}Found GroupID: {} for Group Name {}", logPrefix, adGroup.id, adGroup.displayName);
+        return adGroup.id;
+    }
 
-        log.debug("{}Getting list of current members in group", logPrefix);
-        UserCollectionPage ucp = graphClient.groups(adGroup.id).membersAsUser().buildRequest().get();
-        boolean doOperation = false;
-
-        if (ucp == null && !addUser) {
-            log.warn("{}No users found in group. Nothing to do", logPrefix);
-            return true;
-        }
-        else if (ucp == null && addUser) {
-            log.debug("{}No users in group. Adding single user");
-            doOperation = true;
+    private String findUserId(String upn) {
+        final String logPrefix = "findUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        User adUser;
+        try {
+            adUser = graphThrottle.execute("user lookup", () -> graphClient.users(upn).buildRequest().select("id").get());
         }
-        else {
-            log.trace("{}Iterating group membership", logPrefix);
-            while (ucp != null && !ucp.getCurrentPage().isEmpty()) {
-                List<User> users = ucp.getCurrentPage();
-                log.trace("{}Found {} members total", logPrefix, users.size());
-
-                for (User usr : users) {
-                    if (usr.userPrincipalName == null) {
-                        log.error("{}User {} does not have a UPN. Why?", logPrefix, upn); 
-                        continue;
-                    }
-                    log.trace("{}Found user: {} = {}", logPrefix, usr.id, usr.userPrincipalName);
-                    if (addUser && usr.userPrincipalName.equals(upn)) {
-                        log.info("{}User {} is already a member of group {} - doing nothing", logPrefix, upn, groupName);
-                        return true;
-                    }
-                    if (!addUser && usr.userPrincipalName.equals(upn)) {
-                        log.debug("{}Found user, ready to remove", logPrefix);
-                        doOperation = true;
-                        break;
-                    }
-                }
-                if (doOperation || ucp.getNextPage() == null) {
-                    break;
-                }
-                ucp = ucp.getNextPage().buildRequest().get();
-
+        catch (GraphServiceException ex) {
+            if (ex.getResponseCode() == 404) {
+                log.error("{}User {} was not found in AzureAD", logPrefix, upn);
+                return null;
             }
+            throw ex;
         }
-        log.debug("{}Finished iterating group", logPrefix);
+        if (adUser == null || adUser.id == null) {
+            log.error("{}User {} was not found in AzureAD", logPrefix, upn);
+            return null;
+        }
+        return adUser.id;
+    }
 
-        if (!doOperation && !addUser) {
-            log.warn("{}User not found in group and request was to remove. Nothing to do.", logPrefix);
-            return true;
+    // Adds or removes the membership directly rather than listing the group first. Graph rejects adding an existing
+    // member with a 400 and removing a non-member with a 404, and both mean the group is already as requested, so each
+    // change costs one call however large the group is
+    private boolean modifyGroupMembership(String upn, String groupId, String groupName, boolean addUser) {
+        final String logPrefix = "modifyGroupMembership() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        String userId = resolveUserId(upn);
+        if (userId == null) {
+            log.error("{}User {} was not found in AzureAD", logPrefix, upn);
+            return false;
         }
 
         if (addUser) {
             log.debug("{}About to add user {} to group {}", logPrefix, upn, groupName);
             DirectoryObject dObj = new DirectoryObject();
-            dObj.id = adUser.id;
+            dObj.id = userId;
             try {
-                DirectoryObject returnObj = graphClient.groups(adGroup.id).members().references().buildRequest().post(dObj);
+                DirectoryObject returnObj = graphThrottle.execute("add member", () -> graphClient.groups(groupId).members().references().buildRequest().post(dObj));
                 log.info("{}Successfully added {} -> {}", logPrefix, upn, returnObj);
+                membershipMirror.recordChange(groupId, userId, true);
                 return true;
             }
+            catch (GraphServiceException ex) {
+                if (ex.getResponseCode() == 400 && ex.getMessage() != null && ex.getMessage().contains("already exist")) {
+                    log.info("{}User {} is already a member of group {} - doing nothing", logPrefix, upn, groupName);
+                    membershipMirror.recordChange(groupId, userId, true);
+                    return true;
+                }
+                if (ex.getResponseCode() == 404) {
+                    // the cached user id is stale, e.g. the account was deleted and recreated
+                    log.warn("{}User id {} for {} no longer exists. Clearing cached id", logPrefix, userId, upn);
+                    directoryCache.invalidateUser(upn);
+                }
+                log.error("{}Exception encountered adding user to group", logPrefix, ex);
+                return false;
+            }
             catch (ClientException ex) {
                 log.error("{}Exception encountered adding user to group", logPrefix, ex);
                 return false;
             }
         }
         else {
-            log.debug("{}Deleting {} from group {}", logPrefix, adUser.id, adGroup.id);
+            log.debug("{}Deleting {} from group {}", logPrefix, userId, groupId);
             try {
-                graphClient.groups(adGroup.id).members(adUser.id).reference().buildRequest().delete();
+                graphThrottle.execute("remove member", () -> {
+                    graphClient.groups(groupId).members(userId).reference().buildRequest().delete();
+                    return null;
+                });
                 log.info("{}Successfully removed {}", logPrefix, upn);
+                membershipMirror.recordChange(groupId, userId, false);
                 return true;
             }
+            catch (GraphServiceException ex) {
+                if (ex.getResponseCode() == 404) {
+                    log.warn("{}User {} is not a member of group {}. Nothing to do.", logPrefix, upn, groupName);
+                    membershipMirror.recordChange(groupId, userId, false);
+                    return true;
+                }
+                log.error("{}Exception encountered removing user from group", logPrefix, ex);
+                return false;
+            }
             catch (ClientException ex) {
                 log.error("{}Exception encountered removing user from group", logPrefix, ex);
                 return false;
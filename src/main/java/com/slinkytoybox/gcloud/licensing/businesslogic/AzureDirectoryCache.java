@@ -0,0 +1,162 @@
+/*
+ *   gcloudlicensemanagement - AzureDirectoryCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of Azure AD object ids: access group display name to group id and UPN
+ * to user id. Lookups that find nothing are cached for a short time as well, so
+ * a missing group or user does not cost a Graph round trip on every request.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class AzureDirectoryCache {
+
+    @Value("${azure.directory-cache.group-ttl-seconds:86400}")
+    private Long groupTtlSeconds;
+
+    @Value("${azure.directory-cache.user-ttl-seconds:3600}")
+    private Long userTtlSeconds;
+
+    @Value("${azure.directory-cache.negative-ttl-seconds:60}")
+    private Long negativeTtlSeconds;
+
+    @Value("${azure.directory-cache.max-users:20000}")
+    private Integer maxUsers;
+
+    private final Map<String, CachedId> groupIds = new ConcurrentHashMap<>();
+    private final Map<String, CachedId> userIds = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // the loader returns the object id, or null when the object does not exist. Exceptions are not cached
+    String getGroupId(String groupName, Function<String, String> loader) {
+        return lookup("group", groupIds, groupName, groupName, groupTtlSeconds, loader);
+    }
+
+    String getUserId(String upn, Function<String, String> loader) {
+        String id = lookup("user", userIds, upn.toLowerCase(), upn, userTtlSeconds, loader);
+        if (userIds.size() > maxUsers) {
+            evictUsers();
+        }
+        return id;
+    }
+
+    boolean hasUser(String upn) {
+        CachedId cached = userIds.get(upn.toLowerCase());
+        return cached != null && Instant.now().isBefore(cached.expiresAt);
+    }
+
+    // reverse lookup for reporting only. Users this node has never resolved are not found
+    String getCachedUpn(String userId) {
+        return userIds.entrySet().stream()
+                .filter(e -> userId.equals(e.getValue().id))
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .orElse(null);
+    }
+
+    void invalidateGroup(String groupName) {
+        final String logPrefix = "invalidateGroup() - ";
+        log.debug("{}Invalidating cached id for group {}", logPrefix, groupName);
+        groupIds.remove(groupName);
+    }
+
+    void invalidateUser(String upn) {
+        final String logPrefix = "invalidateUser() - ";
+        log.debug("{}Invalidating cached id for user {}", logPrefix, upn);
+        userIds.remove(upn.toLowerCase());
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("groups", groupIds.size());
+        stats.put("users", userIds.size());
+        stats.put("hits", hits.get());
+        stats.put("negativeHits", negativeHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    private String lookup(String type, Map<String, CachedId> cache, String key, String name, Long ttlSeconds, Function<String, String> loader) {
+        final String logPrefix = "lookup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        CachedId cached = cache.get(key);
+        if (cached != null && Instant.now().isBefore(cached.expiresAt)) {
+            if (cached.id == null) {
+                negativeHits.incrementAndGet();
+                log.debug("{}Cached: {} {} does not exist", logPrefix, type, name);
+            }
+            else {
+                hits.incrementAndGet();
+            }
+            return cached.id;
+        }
+        misses.incrementAndGet();
+        log.debug("{}Looking up {} {} in Azure AD", logPrefix, type, name);
+        String id = loader.apply(name);
+        cache.put(key, new CachedId(id, Instant.now().plusSeconds(id == null ? negativeTtlSeconds : ttlSeconds)));
+        log.trace("{}Cached {} {} -> {}", logPrefix, type, name, id);
+        return id;
+    }
+
+    private void evictUsers() {
+        final String logPrefix = "evictUsers() - ";
+        Instant now = Instant.now();
+        userIds.values().removeIf(c -> now.isAfter(c.expiresAt));
+        int excess = userIds.size() - maxUsers;
+        if (excess > 0) {
+            log.debug("{}User id cache over {} entries, evicting {} oldest", logPrefix, maxUsers, excess);
+            userIds.entrySet().stream()
+                    .sorted(Comparator.comparing(e -> e.getValue().expiresAt))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(userIds::remove);
+            evictions.addAndGet(excess);
+        }
+    }
+
+    private static class CachedId {
+
+        private final String id;
+        private final Instant expiresAt;
+
+        private CachedId(String id, Instant expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
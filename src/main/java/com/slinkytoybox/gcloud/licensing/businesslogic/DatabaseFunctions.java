@@ -21,7 +21,13 @@ package com.slinkytoybox.gcloud.licensing.businesslogic;
 
 import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement.ReturnReason;
 import com.slinkytoybox.gcloud.licensing.connection.CloudDatabaseConnection;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AllocationResult;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AllocationResult.AllocationStatus;
+import com.slinkytoybox.gcloud.licensing.dto.internal.GroupMemberDelta;
 import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry.SideEffectType;
+import com.slinkytoybox.gcloud.licensing.dto.internal.UserEntitlement;
 import com.slinkytoybox.gcloud.licensing.dto.response.PlatformDTO;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -30,11 +36,18 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -46,9 +59,15 @@ import org.springframework.stereotype.Component;
 
 public class DatabaseFunctions {
 
+    // SQL Server allows 2100 parameters per statement, so large IN lists are split into chunks
+    private static final int MAX_IN_PARAMETERS = 1000;
+
     @Autowired
     private CloudDatabaseConnection cdc;
 
+    @Value("${db.stream.page-size:500}")
+    private Integer streamPageSize;
+
     Map<Long, LicenseDTO> getUserLicensesFromDB(String upn) {
         final String logPrefix = "getUserLicensesFromDB() - ";
         log.trace("{}Entering Method", logPrefix);
@@ -57,7 +76,7 @@ public class DatabaseFunctions {
         log.info("{}Looking up existing licenses for {}", logPrefix, upn);
         String sql = "SELECT LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID, LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
                 + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
-                + " WHERE U.UPN = ?";
+                + " WHERE U.UPN = ? AND LIC.Reserved = 0";
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
                 ps.setNString(1, upn);
@@ -85,6 +104,41 @@ public class DatabaseFunctions {
         return licenses;
     }
 
+    List<LicenseDTO> getLicensesExpiringBetween(LocalDateTime expiryAfter, LocalDateTime expiryBefore) {
+        final String logPrefix = "getLicensesExpiringBetween() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<LicenseDTO> licenses = new ArrayList<>();
+
+        String sql = "SELECT LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID, LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
+                + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
+                + " WHERE LIC.Reserved = 0 AND LIC.LicenseExpiryDateTime > ? AND LIC.LicenseExpiryDateTime < ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setTimestamp(1, Timestamp.valueOf(expiryAfter));
+                ps.setTimestamp(2, Timestamp.valueOf(expiryBefore));
+                traceLogSql(logPrefix, sql, expiryAfter, expiryBefore);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        LicenseDTO dto = new LicenseDTO()
+                                .setId(rs.getLong("Id"))
+                                .setCloudPlatformId(rs.getLong("CloudPlatformId"))
+                                .setExpiryDate(rs.getTimestamp("LicenseExpiryDateTime").toLocalDateTime())
+                                .setIssueDate(rs.getTimestamp("LicenseIssueDateTime").toLocalDateTime())
+                                .setLicenseGroupId(rs.getLong("LicenseGroupId"))
+                                .setUserId(rs.getLong("USERID"))
+                                .setUpn(rs.getNString("UPN"));
+                        licenses.add(dto);
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+        }
+        log.debug("{}Found {} licenses expiring before {}", logPrefix, licenses.size(), expiryBefore);
+        return licenses;
+    }
+
     List<PlatformDTO> getPlatformsForUserFromDB(String upn) {
         final String logPrefix = "getPlatformsForUserFromDB() - ";
         log.trace("{}Entering Method", logPrefix);
@@ -119,6 +173,100 @@ public class DatabaseFunctions {
         return platforms;
     }
 
+    Map<String, List<PlatformDTO>> getAllUserPlatformsFromDB() {
+        final String logPrefix = "getAllUserPlatformsFromDB() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, List<PlatformDTO>> platformsByUser = new HashMap<>();
+
+        log.info("{}Looking up available platforms for all users", logPrefix);
+        String sql = "SELECT U.UPN, CP.Id, CP.Name, CP.OrganisationName, CP.OrganisationId FROM COM_CLOUD_PLATFORM CP\n"
+                + " INNER JOIN PROV_USER_TYPE UT ON CP.Id = UT.CloudPlatformId \n"
+                + " INNER JOIN PROV_MAP_USER_TO_USER_TYPE UTM ON UT.Id = UTM.UserTypeId AND UTM.CloudPlatformId = CP.Id\n"
+                + " INNER JOIN PROV_USER U ON U.Id = UTM.UserId\n"
+                + " WHERE CP.Enabled=1 ORDER BY U.UPN, CP.Id";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setFetchSize(streamPageSize);
+                traceLogSql(logPrefix, sql);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        PlatformDTO dto = new PlatformDTO()
+                                .setId(rs.getLong("Id"))
+                                .setName(rs.getString("Name"))
+                                .setOrganisationName(rs.getNString("OrganisationName"))
+                                .setOrganisationId(rs.getNString("OrganisationId"));
+                        platformsByUser.computeIfAbsent(rs.getNString("UPN").toLowerCase(), k -> new ArrayList<>()).add(dto);
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+        log.debug("{}Found platforms for {} users", logPrefix, platformsByUser.size());
+        return platformsByUser;
+    }
+
+    // Cheap fingerprint of a user's issued licenses: one aggregate row instead of the license rows. The two counts move
+    // when a license crosses the extend window or expires, so the time dependent flags on the license page are covered
+    String getUserLicenseVersion(String upn, LocalDateTime extendBefore) {
+        final String logPrefix = "getUserLicenseVersion() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String sql = "SELECT COUNT(*) LicenseCount, ISNULL(CHECKSUM_AGG(CHECKSUM(LIC.Id, LIC.LicenseExpiryDateTime)), 0) LicenseChecksum,\n"
+                + " SUM(CASE WHEN LIC.LicenseExpiryDateTime < ? THEN 1 ELSE 0 END) ExtendableCount,\n"
+                + " SUM(CASE WHEN LIC.LicenseExpiryDateTime < ? THEN 1 ELSE 0 END) ExpiredCount\n"
+                + " FROM LIC_ISSUED_LICENSE LIC\n"
+                + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
+                + " WHERE U.UPN = ? AND LIC.Reserved = 0";
+        LocalDateTime now = LocalDateTime.now();
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setTimestamp(1, Timestamp.valueOf(extendBefore));
+                ps.setTimestamp(2, Timestamp.valueOf(now));
+                ps.setNString(3, upn);
+                traceLogSql(logPrefix, sql, extendBefore, now, upn);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        return String.format("%d-%08x-%d-%d", rs.getInt("LicenseCount"), rs.getInt("LicenseChecksum"), rs.getInt("ExtendableCount"), rs.getInt("ExpiredCount"));
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+        }
+        return null;
+    }
+
+    Map<String, Integer> getProvisioningChecksums() {
+        final String logPrefix = "getProvisioningChecksums() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, Integer> checksums = new HashMap<>();
+
+        String sql = "SELECT 'COM_CLOUD_PLATFORM' TableName, ISNULL(CHECKSUM_AGG(BINARY_CHECKSUM(*)), 0) TableChecksum FROM COM_CLOUD_PLATFORM\n"
+                + " UNION ALL SELECT 'PROV_USER', ISNULL(CHECKSUM_AGG(BINARY_CHECKSUM(*)), 0) FROM PROV_USER\n"
+                + " UNION ALL SELECT 'PROV_USER_TYPE', ISNULL(CHECKSUM_AGG(BINARY_CHECKSUM(*)), 0) FROM PROV_USER_TYPE\n"
+                + " UNION ALL SELECT 'PROV_MAP_USER_TO_USER_TYPE', ISNULL(CHECKSUM_AGG(BINARY_CHECKSUM(*)), 0) FROM PROV_MAP_USER_TO_USER_TYPE\n"
+                + " UNION ALL SELECT 'LIC_LICENSE_GROUP', ISNULL(CHECKSUM_AGG(BINARY_CHECKSUM(*)), 0) FROM LIC_LICENSE_GROUP";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                traceLogSql(logPrefix, sql);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        checksums.put(rs.getString("TableName"), rs.getInt("TableChecksum"));
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+        log.trace("{}Provisioning checksums: {}", logPrefix, checksums);
+        return checksums;
+    }
+
     Map<Long, Long> getCurrentLicenseUsage() {
         final String logPrefix = "getCurrentLicenseUsage() - ";
         log.trace("{}Entering Method", logPrefix);
@@ -151,20 +299,19 @@ public class DatabaseFunctions {
         return licenseCountMap;
     }
 
-    Map<String, Object> getUserLicenseGroupDetails(String upn, Long cloudPlatformId) {
-        final String logPrefix = "getUserLicenseGroupDetails() - ";
+    UserEntitlement getUserEntitlementFromDB(String upn, Long cloudPlatformId) {
+        final String logPrefix = "getUserEntitlementFromDB() - ";
         log.trace("{}Entering Method", logPrefix);
 
-        log.info("{}Getting in-use license counts", logPrefix);
-        String sql = "SELECT U.Id USERID, U.FullName USERFULLNAME, UT.NAME USERTYPENAME, LG.Name LicenseGroupName, LG.Id LicenseGroupId,\n"
+        log.info("{}Getting license group entitlement for {} on platform {}", logPrefix, upn, cloudPlatformId);
+        String sql = "SELECT U.UPN, U.Id USERID, U.FullName USERFULLNAME, UT.NAME USERTYPENAME, LG.Name LicenseGroupName, LG.Id LicenseGroupId,\n"
                 + "LG.SoftLimit, LG.HardLimit, LG.DefaultIssueSeconds, LG.ExtensionTimeSeconds FROM PROV_USER U \n"
                 + "INNER JOIN PROV_MAP_USER_TO_USER_TYPE UTM ON U.ID = UTM.UserId\n"
                 + "INNER JOIN PROV_USER_TYPE UT ON UTM.UserTypeId = UT.ID AND UTM.CloudPlatformId = UT.CloudPlatformId\n"
                 + "INNER JOIN LIC_LICENSE_GROUP LG ON UT.LicenseGroupId = LG.ID\n"
                 + "WHERE U.UPN = ? AND UT.CloudPlatformId = ?";
 
-        Map<String, Object> licenseGroupMap = new HashMap<>();
-
+        UserEntitlement entitlement;
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
                 ps.setNString(1, upn);
@@ -172,16 +319,7 @@ public class DatabaseFunctions {
                 traceLogSql(logPrefix, sql, upn, cloudPlatformId);
                 try (ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
-                        licenseGroupMap.put("USERID", rs.getLong("USERID"));
-                        licenseGroupMap.put("LICENSEGROUPID", rs.getLong("LICENSEGROUPID"));
-                        licenseGroupMap.put("SOFTLIMIT", rs.getLong("SOFTLIMIT"));
-                        licenseGroupMap.put("HARDLIMIT", rs.getLong("HARDLIMIT"));
-                        licenseGroupMap.put("DEFAULTISSUESECONDS", rs.getLong("DEFAULTISSUESECONDS"));
-                        licenseGroupMap.put("EXTENSIONTIMESECONDS", rs.getLong("EXTENSIONTIMESECONDS"));
-                        licenseGroupMap.put("LICENSEGROUPNAME", rs.getNString("LICENSEGROUPNAME"));
-                        licenseGroupMap.put("USERFULLNAME", rs.getNString("USERFULLNAME"));
-                        licenseGroupMap.put("USERTYPENAME", rs.getNString("USERTYPENAME"));
-
+                        entitlement = mapEntitlement(rs, cloudPlatformId);
                     }
                     else {
                         log.error("{}User {} is not allocated to Cloud Platform {}", logPrefix, upn, cloudPlatformId);
@@ -194,36 +332,98 @@ public class DatabaseFunctions {
             log.error("{}SQL Exception encountered", logPrefix, ex);
             return null;
         }
-        log.trace("{}License Group Map: {}", logPrefix, licenseGroupMap);
-        return licenseGroupMap;
+        log.trace("{}Entitlement: {}", logPrefix, entitlement);
+        return entitlement;
+    }
+
+    Map<String, UserEntitlement> getUserEntitlementsFromDB(Collection<String> upns, Long cloudPlatformId) {
+        final String logPrefix = "getUserEntitlementsFromDB() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        log.info("{}Getting license group entitlements for {} users", logPrefix, upns.size());
+        Map<String, UserEntitlement> entitlements = new HashMap<>();
+        List<String> upnList = new ArrayList<>(upns);
+
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            for (int from = 0; from < upnList.size(); from += MAX_IN_PARAMETERS) {
+                List<String> chunk = upnList.subList(from, Math.min(from + MAX_IN_PARAMETERS, upnList.size()));
+                String sql = "SELECT U.UPN, U.Id USERID, U.FullName USERFULLNAME, UT.NAME USERTYPENAME, LG.Name LicenseGroupName, LG.Id LicenseGroupId,\n"
+                        + "LG.SoftLimit, LG.HardLimit, LG.DefaultIssueSeconds, LG.ExtensionTimeSeconds FROM PROV_USER U \n"
+                        + "INNER JOIN PROV_MAP_USER_TO_USER_TYPE UTM ON U.ID = UTM.UserId\n"
+                        + "INNER JOIN PROV_USER_TYPE UT ON UTM.UserTypeId = UT.ID AND UTM.CloudPlatformId = UT.CloudPlatformId\n"
+                        + "INNER JOIN LIC_LICENSE_GROUP LG ON UT.LicenseGroupId = LG.ID\n"
+                        + "WHERE UT.CloudPlatformId = ? AND U.UPN IN (" + placeholders(chunk.size()) + ")";
+                try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                    ps.setLong(1, cloudPlatformId);
+                    int parameterId = 2;
+                    for (String upn : chunk) {
+                        ps.setNString(parameterId++, upn);
+                    }
+                    traceLogSql(logPrefix, sql, cloudPlatformId, chunk);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            UserEntitlement entitlement = mapEntitlement(rs, cloudPlatformId);
+                            entitlements.put(entitlement.getUpn(), entitlement);
+                        }
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+        log.debug("{}Found entitlements for {} of {} users", logPrefix, entitlements.size(), upns.size());
+        return entitlements;
     }
 
-    boolean writeLicenseToDatabase(Long userId, Long licenseGroupId, Long cloudPlatformId, LocalDateTime expiryDateTime) {
+    private UserEntitlement mapEntitlement(ResultSet rs, Long cloudPlatformId) throws SQLException {
+        return UserEntitlement.builder()
+                .upn(rs.getNString("UPN"))
+                .cloudPlatformId(cloudPlatformId)
+                .userId(rs.getLong("USERID"))
+                .userFullName(rs.getNString("USERFULLNAME"))
+                .userTypeName(rs.getNString("USERTYPENAME"))
+                .licenseGroupId(rs.getLong("LICENSEGROUPID"))
+                .licenseGroupName(rs.getNString("LICENSEGROUPNAME"))
+                .softLimit(rs.getLong("SOFTLIMIT"))
+                .hardLimit(rs.getLong("HARDLIMIT"))
+                .defaultIssueSeconds(rs.getLong("DEFAULTISSUESECONDS"))
+                .extensionTimeSeconds(rs.getLong("EXTENSIONTIMESECONDS"))
+                .build();
+    }
+
+    AllocationResult reserveLicenseInDatabase(Long userId, Long licenseGroupId, Long cloudPlatformId, Long hardLimit, LocalDateTime reservationExpiry) {
 
-        final String logPrefix = "writeLicenseToDatabase() - ";
+        final String logPrefix = "reserveLicenseInDatabase() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Writing license to database", logPrefix);
-        String sql = "INSERT INTO LIC_ISSUED_LICENSE\n "
-                + "  (ID, USERID, LICENSEGROUPID, LICENSEISSUEDATETIME, LICENSEEXPIRYDATETIME, CLOUDPLATFORMID)\n"
-                + " VALUES\n"
-                + "  (NEXT VALUE FOR SEQ_LIC_ISSUED_LICENSE, ?, ?, GETDATE(), ?, ?)\n";
+        log.info("{}Reserving license in database", logPrefix);
+        return allocateLicense(logPrefix, userId, licenseGroupId, cloudPlatformId, hardLimit, reservationExpiry, true, null);
+    }
+
+    boolean confirmReservation(Long licenseId, LocalDateTime expiryDateTime) {
+
+        final String logPrefix = "confirmReservation() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Confirming license reservation {} in database", logPrefix, licenseId);
+        String sql = "UPDATE LIC_ISSUED_LICENSE \n"
+                + "  SET RESERVED=0, LICENSEISSUEDATETIME=GETDATE(), LICENSEEXPIRYDATETIME=?\n"
+                + " WHERE ID = ? AND RESERVED = 1";
 
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             dbConnection.setAutoCommit(false);
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
-                ps.setLong(1, userId);
-                ps.setLong(2, licenseGroupId);
-                ps.setTimestamp(3, Timestamp.valueOf(expiryDateTime));
-                ps.setLong(4, cloudPlatformId);
-                traceLogSql(logPrefix, sql, userId, licenseGroupId, expiryDateTime, cloudPlatformId);
+                ps.setTimestamp(1, Timestamp.valueOf(expiryDateTime));
+                ps.setLong(2, licenseId);
+                traceLogSql(logPrefix, sql, expiryDateTime, licenseId);
                 int rows = ps.executeUpdate();
                 if (rows == 1) {
-                    log.debug("{}Successfully wrote {} rows to the database", logPrefix, rows);
+                    log.debug("{}Successfully confirmed {} rows in the database", logPrefix, rows);
                     dbConnection.commit();
                     return true;
                 }
                 else {
-                    log.error("{}A total of {} rows were written. This should have been 1.", logPrefix, rows);
+                    log.error("{}A total of {} rows were confirmed. This should have been 1. Has the reservation been reclaimed?", logPrefix, rows);
                     dbConnection.rollback();
                     return false;
                 }
@@ -235,29 +435,264 @@ public class DatabaseFunctions {
         }
     }
 
-    boolean extendLicense(Long licenseId, LocalDateTime expiryDateTime) {
+    AllocationResult issueLicenseWithOutbox(Long userId, String upn, Long licenseGroupId, Long cloudPlatformId, Long hardLimit, LocalDateTime expiryDateTime) {
 
-        final String logPrefix = "extendLicense() - ";
+        final String logPrefix = "issueLicenseWithOutbox() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Extending license in database", logPrefix);
+        log.info("{}Issuing license in database with outbox entry", logPrefix);
+        return allocateLicense(logPrefix, userId, licenseGroupId, cloudPlatformId, hardLimit, expiryDateTime, false, upn);
+    }
+
+    // The guarded insert behind both reservations and outbox issues. The capacity and existing-license checks take
+    // update/range locks, so concurrent allocations for the same group (from this node or any other) are serialised by
+    // the database rather than racing each other. A reservation is written with RESERVED = 1 for the caller to confirm;
+    // with a grantUpn the license is issued straight away and the Azure AD change is queued in the outbox within the
+    // same transaction
+    private AllocationResult allocateLicense(String logPrefix, Long userId, Long licenseGroupId, Long cloudPlatformId, Long hardLimit, LocalDateTime expiry,
+            boolean reserved, String grantUpn) {
+        boolean queueGrant = grantUpn != null;
+        String sql = "SET NOCOUNT ON;\n"
+                + "DECLARE @Allocated TABLE (Id BIGINT);\n"
+                + "INSERT INTO LIC_ISSUED_LICENSE\n"
+                + "  (ID, USERID, LICENSEGROUPID, LICENSEISSUEDATETIME, LICENSEEXPIRYDATETIME, CLOUDPLATFORMID, RESERVED)\n"
+                + " OUTPUT INSERTED.ID INTO @Allocated\n"
+                + " SELECT NEXT VALUE FOR SEQ_LIC_ISSUED_LICENSE, ?, ?, GETDATE(), ?, ?, " + (reserved ? "1" : "0") + "\n"
+                + " WHERE (SELECT COUNT(*) FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE LICENSEGROUPID = ?) < ?\n"
+                + "  AND NOT EXISTS (SELECT 1 FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE USERID = ? AND CLOUDPLATFORMID = ?);\n"
+                + (queueGrant
+                        ? "INSERT INTO LIC_SIDE_EFFECT_OUTBOX (EffectType, UPN, CloudPlatformId, LicenseId)\n"
+                        + " SELECT ?, ?, ?, Id FROM @Allocated;\n"
+                        : "")
+                + "SELECT (SELECT MAX(Id) FROM @Allocated) LicenseId,\n"
+                + " (SELECT COUNT(*) FROM LIC_ISSUED_LICENSE WHERE LICENSEGROUPID = ?) InUse,\n"
+                + " (SELECT COUNT(*) FROM LIC_ISSUED_LICENSE WHERE USERID = ? AND CLOUDPLATFORMID = ?) UserLicenses";
+
+        AllocationResult result = new AllocationResult().setStatus(AllocationStatus.ERROR);
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                int param = 1;
+                ps.setLong(param++, userId);
+                ps.setLong(param++, licenseGroupId);
+                ps.setTimestamp(param++, Timestamp.valueOf(expiry));
+                ps.setLong(param++, cloudPlatformId);
+                ps.setLong(param++, licenseGroupId);
+                ps.setLong(param++, hardLimit);
+                ps.setLong(param++, userId);
+                ps.setLong(param++, cloudPlatformId);
+                List<Object> params = new ArrayList<>(List.of(userId, licenseGroupId, expiry, cloudPlatformId, licenseGroupId, hardLimit, userId, cloudPlatformId));
+                if (queueGrant) {
+                    ps.setNString(param++, SideEffectType.GRANT_ACCESS.name());
+                    ps.setNString(param++, grantUpn);
+                    ps.setLong(param++, cloudPlatformId);
+                    params.addAll(List.of(SideEffectType.GRANT_ACCESS, grantUpn, cloudPlatformId));
+                }
+                ps.setLong(param++, licenseGroupId);
+                ps.setLong(param++, userId);
+                ps.setLong(param, cloudPlatformId);
+                params.addAll(List.of(licenseGroupId, userId, cloudPlatformId));
+                traceLogSql(logPrefix, sql, params.toArray());
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        log.error("{}Allocation statement did not return a result", logPrefix);
+                        dbConnection.rollback();
+                        return result;
+                    }
+                    long licenseId = rs.getLong("LicenseId");
+                    boolean allocated = !rs.wasNull();
+                    result.setInUseCount(rs.getLong("InUse"));
+                    if (allocated) {
+                        result.setStatus(AllocationStatus.ALLOCATED).setLicenseId(licenseId);
+                    }
+                    else if (rs.getLong("UserLicenses") > 0) {
+                        result.setStatus(AllocationStatus.ALREADY_LICENSED);
+                    }
+                    else {
+                        result.setStatus(AllocationStatus.OVER_HARD_LIMIT);
+                    }
+                }
+                dbConnection.commit();
+                log.debug("{}Allocation result: {}", logPrefix, result);
+                return result;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return result.setStatus(AllocationStatus.ERROR);
+        }
+    }
+
+    Map<Long, AllocationResult> reserveLicensesInDatabase(Collection<Long> userIds, Long licenseGroupId, Long cloudPlatformId, Long hardLimit, LocalDateTime reservationExpiry) {
+
+        final String logPrefix = "reserveLicensesInDatabase() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Reserving up to {} licenses in License Group {}", logPrefix, userIds.size(), licenseGroupId);
+        Map<Long, AllocationResult> results = new LinkedHashMap<>();
+        List<Long> userIdList = new ArrayList<>(userIds);
+
+        // Capacity is read and claimed for the whole group inside one transaction. The update/range locks stop any
+        // other allocation for this group committing until the batch has been written
+        String countSql = "SELECT COUNT(*) InUse FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE LICENSEGROUPID = ?";
+        String insertSql = "INSERT INTO LIC_ISSUED_LICENSE\n"
+                + "  (ID, USERID, LICENSEGROUPID, LICENSEISSUEDATETIME, LICENSEEXPIRYDATETIME, CLOUDPLATFORMID, RESERVED)\n"
+                + " VALUES\n"
+                + "  (NEXT VALUE FOR SEQ_LIC_ISSUED_LICENSE, ?, ?, GETDATE(), ?, ?, 1)";
+
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try {
+                long inUse;
+                try (PreparedStatement ps = dbConnection.prepareStatement(countSql)) {
+                    ps.setLong(1, licenseGroupId);
+                    traceLogSql(logPrefix, countSql, licenseGroupId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        inUse = rs.getLong("InUse");
+                    }
+                }
+
+                Set<Long> alreadyLicensed = new HashSet<>();
+                for (int from = 0; from < userIdList.size(); from += MAX_IN_PARAMETERS) {
+                    List<Long> chunk = userIdList.subList(from, Math.min(from + MAX_IN_PARAMETERS, userIdList.size()));
+                    String existingSql = "SELECT USERID FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE CLOUDPLATFORMID = ? AND USERID IN (" + placeholders(chunk.size()) + ")";
+                    try (PreparedStatement ps = dbConnection.prepareStatement(existingSql)) {
+                        ps.setLong(1, cloudPlatformId);
+                        int parameterId = 2;
+                        for (Long userId : chunk) {
+                            ps.setLong(parameterId++, userId);
+                        }
+                        traceLogSql(logPrefix, existingSql, cloudPlatformId, chunk);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                alreadyLicensed.add(rs.getLong("USERID"));
+                            }
+                        }
+                    }
+                }
+
+                List<Long> toReserve = new ArrayList<>();
+                for (Long userId : userIdList) {
+                    if (alreadyLicensed.contains(userId)) {
+                        results.put(userId, new AllocationResult().setStatus(AllocationStatus.ALREADY_LICENSED));
+                    }
+                    else if (inUse + toReserve.size() >= hardLimit) {
+                        results.put(userId, new AllocationResult().setStatus(AllocationStatus.OVER_HARD_LIMIT));
+                    }
+                    else {
+                        toReserve.add(userId);
+                    }
+                }
+
+                if (!toReserve.isEmpty()) {
+                    try (PreparedStatement ps = dbConnection.prepareStatement(insertSql)) {
+                        for (Long userId : toReserve) {
+                            ps.setLong(1, userId);
+                            ps.setLong(2, licenseGroupId);
+                            ps.setTimestamp(3, Timestamp.valueOf(reservationExpiry));
+                            ps.setLong(4, cloudPlatformId);
+                            ps.addBatch();
+                        }
+                        traceLogSql(logPrefix, insertSql, toReserve, licenseGroupId, reservationExpiry, cloudPlatformId);
+                        ps.executeBatch();
+                    }
+                    // the sequence values are assigned by the database, so read the new reservations back
+                    for (int from = 0; from < toReserve.size(); from += MAX_IN_PARAMETERS) {
+                        List<Long> chunk = toReserve.subList(from, Math.min(from + MAX_IN_PARAMETERS, toReserve.size()));
+                        String reservedSql = "SELECT ID, USERID FROM LIC_ISSUED_LICENSE WHERE CLOUDPLATFORMID = ? AND RESERVED = 1 AND USERID IN (" + placeholders(chunk.size()) + ")";
+                        try (PreparedStatement ps = dbConnection.prepareStatement(reservedSql)) {
+                            ps.setLong(1, cloudPlatformId);
+                            int parameterId = 2;
+                            for (Long userId : chunk) {
+                                ps.setLong(parameterId++, userId);
+                            }
+                            traceLogSql(logPrefix, reservedSql, cloudPlatformId, chunk);
+                            try (ResultSet rs = ps.executeQuery()) {
+                                while (rs.next()) {
+                                    results.put(rs.getLong("USERID"), new AllocationResult()
+                                            .setStatus(AllocationStatus.ALLOCATED)
+                                            .setLicenseId(rs.getLong("ID")));
+                                }
+                            }
+                        }
+                    }
+                }
+
+                long finalInUse = inUse + toReserve.size();
+                results.values().forEach(r -> r.setInUseCount(finalInUse));
+                dbConnection.commit();
+                log.debug("{}Reserved {} licenses. License Group {} now has {} in use", logPrefix, toReserve.size(), licenseGroupId, finalInUse);
+                return results;
+            }
+            catch (SQLException ex) {
+                dbConnection.rollback();
+                throw ex;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            results.clear();
+            userIdList.forEach(userId -> results.put(userId, new AllocationResult().setStatus(AllocationStatus.ERROR)));
+            return results;
+        }
+    }
+
+    Set<Long> confirmReservations(Collection<Long> licenseIds, LocalDateTime expiryDateTime) {
+
+        final String logPrefix = "confirmReservations() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Confirming {} license reservations in database", logPrefix, licenseIds.size());
+        Set<Long> confirmed = new HashSet<>();
         String sql = "UPDATE LIC_ISSUED_LICENSE \n"
-                + "  SET LICENSEEXPIRYDATETIME=?\n"
-                + " WHERE ID = ?";
+                + "  SET RESERVED=0, LICENSEISSUEDATETIME=GETDATE(), LICENSEEXPIRYDATETIME=?\n"
+                + " WHERE ID = ? AND RESERVED = 1";
 
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             dbConnection.setAutoCommit(false);
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
-                ps.setTimestamp(1, Timestamp.valueOf(expiryDateTime));
-                ps.setLong(2, licenseId);
-                traceLogSql(logPrefix, sql, expiryDateTime, licenseId);
+                List<Long> licenseIdList = new ArrayList<>(licenseIds);
+                for (Long licenseId : licenseIdList) {
+                    ps.setTimestamp(1, Timestamp.valueOf(expiryDateTime));
+                    ps.setLong(2, licenseId);
+                    ps.addBatch();
+                }
+                traceLogSql(logPrefix, sql, expiryDateTime, licenseIdList);
+                int[] rows = ps.executeBatch();
+                for (int i = 0; i < rows.length; i++) {
+                    if (rows[i] == 1) {
+                        confirmed.add(licenseIdList.get(i));
+                    }
+                }
+                dbConnection.commit();
+                log.debug("{}Confirmed {} of {} reservations", logPrefix, confirmed.size(), licenseIdList.size());
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            confirmed.clear();
+        }
+        return confirmed;
+    }
+
+    boolean releaseReservation(Long licenseId) {
+
+        final String logPrefix = "releaseReservation() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Releasing license reservation {} from database", logPrefix, licenseId);
+        String sql = "DELETE FROM LIC_ISSUED_LICENSE WHERE ID = ? AND RESERVED = 1";
+
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setLong(1, licenseId);
+                traceLogSql(logPrefix, sql, licenseId);
                 int rows = ps.executeUpdate();
                 if (rows == 1) {
-                    log.debug("{}Successfully updated {} rows in the database", logPrefix, rows);
+                    log.debug("{}Successfully released {} rows in the database", logPrefix, rows);
                     dbConnection.commit();
                     return true;
                 }
                 else {
-                    log.error("{}A total of {} rows were updated. This should have been 1.", logPrefix, rows);
+                    log.warn("{}A total of {} rows were released. Reservation may already have been reclaimed", logPrefix, rows);
                     dbConnection.rollback();
                     return false;
                 }
@@ -269,27 +704,72 @@ public class DatabaseFunctions {
         }
     }
 
-    boolean deleteLicense(Long licenseId) {
-
-        final String logPrefix = "deleteLicense() - ";
+    List<LicenseDTO> reclaimExpiredReservations() {
+        final String logPrefix = "reclaimExpiredReservations() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Deleting license from database", logPrefix);
-        String sql = "DELETE FROM LIC_ISSUED_LICENSE WHERE ID = ?";
 
+        log.debug("{}Reclaiming timed out license reservations", logPrefix);
+        List<LicenseDTO> reclaimed = new ArrayList<>();
+        String sql = "SET NOCOUNT ON;\n"
+                + "DECLARE @Reclaimed TABLE (Id BIGINT, UserId BIGINT, LicenseGroupId BIGINT, CloudPlatformId BIGINT, LicenseIssueDateTime DATETIME2, LicenseExpiryDateTime DATETIME2);\n"
+                + "DELETE FROM LIC_ISSUED_LICENSE\n"
+                + " OUTPUT DELETED.Id, DELETED.UserId, DELETED.LicenseGroupId, DELETED.CloudPlatformId, DELETED.LicenseIssueDateTime, DELETED.LicenseExpiryDateTime INTO @Reclaimed\n"
+                + " WHERE RESERVED = 1 AND LicenseExpiryDateTime < GETDATE();\n"
+                + "SELECT R.Id, R.LicenseIssueDateTime, R.LicenseExpiryDateTime, U.UPN, R.CloudPlatformId, R.LicenseGroupId, U.ID USERID FROM @Reclaimed R\n"
+                + " INNER JOIN PROV_USER U ON U.Id = R.UserId";
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             dbConnection.setAutoCommit(false);
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
-                ps.setLong(1, licenseId);
-                traceLogSql(logPrefix, sql, licenseId);
+                traceLogSql(logPrefix, sql);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        LicenseDTO dto = new LicenseDTO()
+                                .setId(rs.getLong("Id"))
+                                .setCloudPlatformId(rs.getLong("CloudPlatformId"))
+                                .setExpiryDate(rs.getTimestamp("LicenseExpiryDateTime").toLocalDateTime())
+                                .setIssueDate(rs.getTimestamp("LicenseIssueDateTime").toLocalDateTime())
+                                .setLicenseGroupId(rs.getLong("LicenseGroupId"))
+                                .setUserId(rs.getLong("USERID"))
+                                .setUpn(rs.getNString("UPN"));
+                        reclaimed.add(dto);
+                    }
+                }
+                dbConnection.commit();
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return new ArrayList<>();
+        }
+        if (!reclaimed.isEmpty()) {
+            log.info("{}Reclaimed {} timed out license reservations", logPrefix, reclaimed.size());
+        }
+        return reclaimed;
+    }
 
+    boolean extendLicense(Long licenseId, LocalDateTime expiryDateTime) {
+
+        final String logPrefix = "extendLicense() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Extending license in database", logPrefix);
+        String sql = "UPDATE LIC_ISSUED_LICENSE \n"
+                + "  SET LICENSEEXPIRYDATETIME=?\n"
+                + " WHERE ID = ? AND Reserved = 0";
+
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setTimestamp(1, Timestamp.valueOf(expiryDateTime));
+                ps.setLong(2, licenseId);
+                traceLogSql(logPrefix, sql, expiryDateTime, licenseId);
                 int rows = ps.executeUpdate();
                 if (rows == 1) {
-                    log.debug("{}Successfully deleted {} rows in the database", logPrefix, rows);
+                    log.debug("{}Successfully updated {} rows in the database", logPrefix, rows);
                     dbConnection.commit();
                     return true;
                 }
                 else {
-                    log.error("{}A total of {} rows were deleted. This should have been 1.", logPrefix, rows);
+                    log.error("{}A total of {} rows were updated. This should have been 1.", logPrefix, rows);
                     dbConnection.rollback();
                     return false;
                 }
@@ -309,7 +789,7 @@ public class DatabaseFunctions {
         String sql = "SELECT LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID,\n"
                 + " LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
                 + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
-                + " WHERE LIC.Id = ?";
+                + " WHERE LIC.Id = ? AND LIC.Reserved = 0";
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
                 ps.setLong(1, licenseId);
@@ -337,62 +817,232 @@ public class DatabaseFunctions {
         return null;
     }
 
-    boolean writeLicenseHistoryRecord(Long licenseId, ReturnReason reason) {
-        final String logPrefix = "writeLicenseHistoryRecord() - ";
+    boolean retireLicense(LicenseDTO lic, ReturnReason reason) {
+        final String logPrefix = "retireLicense() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Writing license history record", logPrefix);
-        LicenseDTO lic = getLicenseFromDB(licenseId);
-        if (lic == null) {
-            log.warn("{}License ID {} not found. Not writing history record", logPrefix, licenseId);
-            return false;
-        }
+        log.info("{}Deleting license {} and writing history record", logPrefix, lic.getId());
+        return inTransaction(logPrefix, dbConnection -> {
+            deleteLicense(logPrefix, dbConnection, lic.getId());
+            writeLicenseHistoryRecord(logPrefix, dbConnection, lic, reason);
+            return true;
+        }, false);
+    }
 
-        String sql = "INSERT INTO LIC_LICENSE_HISTORY (ID, USERID, LICENSEGROUPID, CLOUDPLATFORMID, ISSUEDATETIME, RETURNDATETIME, RETURNREASON) "
-                + "VALUES (NEXT VALUE FOR SEQ_LIC_LICENSE_HISTORY, ?, ?, ?, ?, ?, ?)";
+    boolean returnLicenseWithOutbox(LicenseDTO lic, ReturnReason reason) {
+        final String logPrefix = "returnLicenseWithOutbox() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Returning license {} in database with outbox entry", logPrefix, lic.getId());
+        String outboxSql = "INSERT INTO LIC_SIDE_EFFECT_OUTBOX (EffectType, UPN, CloudPlatformId, LicenseId) VALUES (?, ?, ?, ?)";
+        return inTransaction(logPrefix, dbConnection -> {
+            deleteLicense(logPrefix, dbConnection, lic.getId());
+            writeLicenseHistoryRecord(logPrefix, dbConnection, lic, reason);
+            try (PreparedStatement ps = dbConnection.prepareStatement(outboxSql)) {
+                ps.setNString(1, SideEffectType.REVOKE_ACCESS.name());
+                ps.setNString(2, lic.getUpn());
+                ps.setLong(3, lic.getCloudPlatformId());
+                ps.setLong(4, lic.getId());
+                traceLogSql(logPrefix, outboxSql, SideEffectType.REVOKE_ACCESS, lic.getUpn(), lic.getCloudPlatformId(), lic.getId());
+                ps.executeUpdate();
+            }
+            log.debug("{}License {} returned and side effects queued", logPrefix, lic.getId());
+            return true;
+        }, false);
+    }
+
+    boolean streamExpiredLicenses(Consumer<List<LicenseDTO>> pageConsumer) {
+        final String logPrefix = "streamExpiredLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Streaming all expired licenses", logPrefix);
+        return streamLicensesByExpiry(logPrefix, "LIC.LicenseExpiryDateTime < GETDATE() AND LIC.Reserved = 0", null, pageConsumer);
+    }
+
+    List<LicenseDTO> expireLicensesInDatabase(int batchSize, boolean queueSideEffects) {
+        final String logPrefix = "expireLicensesInDatabase() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        log.info("{}Archiving and deleting up to {} expired licenses", logPrefix, batchSize);
+        // One batch in one transaction: expired rows are deleted, archived to history and, when the outbox is in use,
+        // their Azure AD and Genesys clean-up is queued. The deleted rows are returned for the caller's clean-up
+        String sql = "SET NOCOUNT ON;\n"
+                + "DECLARE @Expired TABLE (Id BIGINT, UserId BIGINT, LicenseGroupId BIGINT, CloudPlatformId BIGINT, LicenseIssueDateTime DATETIME2, LicenseExpiryDateTime DATETIME2);\n"
+                + "DELETE TOP (?) FROM LIC_ISSUED_LICENSE\n"
+                + " OUTPUT DELETED.Id, DELETED.UserId, DELETED.LicenseGroupId, DELETED.CloudPlatformId, DELETED.LicenseIssueDateTime, DELETED.LicenseExpiryDateTime INTO @Expired\n"
+                + " WHERE RESERVED = 0 AND LicenseExpiryDateTime < GETDATE();\n"
+                + "INSERT INTO LIC_LICENSE_HISTORY (ID, USERID, LICENSEGROUPID, CLOUDPLATFORMID, ISSUEDATETIME, RETURNDATETIME, RETURNREASON)\n"
+                + " SELECT NEXT VALUE FOR SEQ_LIC_LICENSE_HISTORY, E.UserId, E.LicenseGroupId, E.CloudPlatformId, E.LicenseIssueDateTime, GETDATE(), ? FROM @Expired E;\n"
+                + (queueSideEffects
+                        ? "INSERT INTO LIC_SIDE_EFFECT_OUTBOX (EffectType, UPN, CloudPlatformId, LicenseId)\n"
+                        + " SELECT ?, U.UPN, E.CloudPlatformId, E.Id FROM @Expired E INNER JOIN PROV_USER U ON U.Id = E.UserId;\n"
+                        : "")
+                + "SELECT E.Id, E.LicenseIssueDateTime, E.LicenseExpiryDateTime, U.UPN, E.CloudPlatformId, E.LicenseGroupId, U.ID USERID FROM @Expired E\n"
+                + " INNER JOIN PROV_USER U ON U.Id = E.UserId\n"
+                + " ORDER BY E.CloudPlatformId, E.Id";
+
+        List<LicenseDTO> expired = new ArrayList<>();
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             dbConnection.setAutoCommit(false);
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
-                ps.setLong(1, lic.getUserId());
-                ps.setLong(2, lic.getLicenseGroupId());
-                ps.setLong(3, lic.getCloudPlatformId());
-                ps.setTimestamp(4, Timestamp.valueOf(lic.getIssueDate()));
-                ps.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
-                ps.setNString(6, reason.name());
-                traceLogSql(logPrefix, sql, licenseId, lic.getLicenseGroupId(), lic.getCloudPlatformId(), lic.getIssueDate(), LocalDateTime.now(), reason.name());
-                int rows = ps.executeUpdate();
-                if (rows == 1) {
-                    log.debug("{}Successfully added {} history rows to the database", logPrefix, rows);
-                    dbConnection.commit();
-                    return true;
+                ps.setInt(1, batchSize);
+                ps.setNString(2, ReturnReason.EXPIRED.name());
+                if (queueSideEffects) {
+                    ps.setNString(3, SideEffectType.REVOKE_ACCESS.name());
+                    traceLogSql(logPrefix, sql, batchSize, ReturnReason.EXPIRED, SideEffectType.REVOKE_ACCESS);
                 }
                 else {
-                    log.error("{}A total of {} rows were added. This should have been 1.", logPrefix, rows);
-                    dbConnection.rollback();
-                    return false;
+                    traceLogSql(logPrefix, sql, batchSize, ReturnReason.EXPIRED);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        LicenseDTO dto = new LicenseDTO()
+                                .setId(rs.getLong("Id"))
+                                .setCloudPlatformId(rs.getLong("CloudPlatformId"))
+                                .setExpiryDate(rs.getTimestamp("LicenseExpiryDateTime").toLocalDateTime())
+                                .setIssueDate(rs.getTimestamp("LicenseIssueDateTime").toLocalDateTime())
+                                .setLicenseGroupId(rs.getLong("LicenseGroupId"))
+                                .setUserId(rs.getLong("USERID"))
+                                .setUpn(rs.getNString("UPN"));
+                        expired.add(dto);
+                    }
                 }
+                dbConnection.commit();
             }
         }
         catch (SQLException ex) {
             log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
         }
+        log.info("{}Archived and deleted {} expired licenses", logPrefix, expired.size());
+        return expired;
+    }
 
-        return false;
+    boolean streamIssuedLicenses(Consumer<List<LicenseDTO>> pageConsumer) {
+        final String logPrefix = "streamIssuedLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Streaming all issued licenses", logPrefix);
+        return streamLicensesByExpiry(logPrefix, "LIC.Reserved = 0", null, pageConsumer);
     }
 
-    List<LicenseDTO> getExpiredLicensesFromDB() {
-        final String logPrefix = "getExpiredLicensesFromDB() - ";
+    boolean streamLicensesIssuedSince(LocalDateTime issuedAfter, Consumer<List<LicenseDTO>> pageConsumer) {
+        final String logPrefix = "streamLicensesIssuedSince() - ";
         log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Streaming licenses issued since {}", logPrefix, issuedAfter);
+        return streamLicensesByExpiry(logPrefix, "LIC.Reserved = 0 AND LIC.LicenseIssueDateTime > ?", issuedAfter, pageConsumer);
+    }
+
+    // Reads matching licenses a page at a time in (LicenseExpiryDateTime, Id) order, handing each page to the consumer
+    // before the next is read. Each page is a separate short query seeking past the last row seen, so memory stays flat,
+    // no connection is held while the consumer runs and rows deleted by the consumer do not disturb later pages.
+    // The condition may hold one parameter, bound to conditionTime when that is not null. Returns false if a page could
+    // not be read
+    private boolean streamLicensesByExpiry(String logPrefix, String condition, LocalDateTime conditionTime, Consumer<List<LicenseDTO>> pageConsumer) {
+        String firstPageSql = "SELECT TOP (?) LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID,\n"
+                + " LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
+                + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
+                + " WHERE " + condition + "\n"
+                + " ORDER BY LIC.LicenseExpiryDateTime, LIC.Id";
+        String nextPageSql = "SELECT TOP (?) LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID,\n"
+                + " LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
+                + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
+                + " WHERE " + condition + "\n"
+                + "  AND (LIC.LicenseExpiryDateTime > ? OR (LIC.LicenseExpiryDateTime = ? AND LIC.Id > ?))\n"
+                + " ORDER BY LIC.LicenseExpiryDateTime, LIC.Id";
 
-        log.info("{}Looking up all expired licenses", logPrefix);
-        List<LicenseDTO> expiredLicenses = new ArrayList<>();
+        LicenseDTO last = null;
+        long total = 0;
+        while (true) {
+            List<LicenseDTO> page = new ArrayList<>(streamPageSize);
+            try (Connection dbConnection = cdc.getDatabaseConnection()) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(last == null ? firstPageSql : nextPageSql)) {
+                    ps.setFetchSize(streamPageSize);
+                    ps.setInt(1, streamPageSize);
+                    int param = 2;
+                    List<Object> params = new ArrayList<>(List.of(streamPageSize));
+                    if (conditionTime != null) {
+                        ps.setTimestamp(param++, Timestamp.valueOf(conditionTime));
+                        params.add(conditionTime);
+                    }
+                    if (last != null) {
+                        ps.setTimestamp(param++, Timestamp.valueOf(last.getExpiryDate()));
+                        ps.setTimestamp(param++, Timestamp.valueOf(last.getExpiryDate()));
+                        ps.setLong(param, last.getId());
+                        params.addAll(List.of(last.getExpiryDate(), last.getExpiryDate(), last.getId()));
+                    }
+                    traceLogSql(logPrefix, last == null ? firstPageSql : nextPageSql, params.toArray());
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            LicenseDTO dto = new LicenseDTO()
+                                    .setId(rs.getLong("Id"))
+                                    .setCloudPlatformId(rs.getLong("CloudPlatformId"))
+                                    .setExpiryDate(rs.getTimestamp("LicenseExpiryDateTime").toLocalDateTime())
+                                    .setIssueDate(rs.getTimestamp("LicenseIssueDateTime").toLocalDateTime())
+                                    .setLicenseGroupId(rs.getLong("LicenseGroupId"))
+                                    .setUserId(rs.getLong("USERID"))
+                                    .setUpn(rs.getNString("UPN"));
+                            page.add(dto);
+                        }
+                    }
+                }
+            }
+            catch (SQLException ex) {
+                log.error("{}SQL Exception encountered after {} licenses", logPrefix, total, ex);
+                return false;
+            }
+            if (page.isEmpty()) {
+                break;
+            }
+            total += page.size();
+            last = page.get(page.size() - 1);
+            log.debug("{}Handing page of {} licenses to consumer ({} so far)", logPrefix, page.size(), total);
+            pageConsumer.accept(page);
+            if (page.size() < streamPageSize) {
+                break;
+            }
+        }
+        log.info("{}Streamed {} licenses from database", logPrefix, total);
+        return true;
+    }
+
+    List<LicenseDTO> getLicensesFromDB(Long cloudPlatformId, Long licenseGroupId, Collection<String> upns) {
+        final String logPrefix = "getLicensesFromDB() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        log.info("{}Looking up licenses for platform {}, license group {}, users {}", logPrefix, cloudPlatformId, licenseGroupId, upns);
+        List<LicenseDTO> licenses = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
         String sql = "SELECT LIC.Id, LIC.LicenseIssueDateTime, LIC.LicenseExpiryDateTime, U.UPN, LIC.CloudPlatformID,\n"
                 + " LIC.LicenseGroupId, U.ID USERID FROM LIC_ISSUED_LICENSE LIC\n"
                 + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
-                + " WHERE LIC.LicenseExpiryDateTime < GETDATE()\n"
-                + " ORDER BY LIC.LicenseExpiryDateTime";
+                + " WHERE LIC.Reserved = 0";
+        if (cloudPlatformId != null) {
+            sql += " AND LIC.CloudPlatformId = ?";
+            parameters.add(cloudPlatformId);
+        }
+        if (licenseGroupId != null) {
+            sql += " AND LIC.LicenseGroupId = ?";
+            parameters.add(licenseGroupId);
+        }
+        if (upns != null && !upns.isEmpty()) {
+            if (upns.size() > MAX_IN_PARAMETERS) {
+                log.error("{}A maximum of {} UPNs can be filtered on", logPrefix, MAX_IN_PARAMETERS);
+                throw new IllegalArgumentException("Too many UPNs supplied");
+            }
+            sql += " AND U.UPN IN (" + placeholders(upns.size()) + ")";
+            parameters.addAll(upns);
+        }
+        sql += "\n ORDER BY LIC.Id";
         try (Connection dbConnection = cdc.getDatabaseConnection()) {
             try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
-                traceLogSql(logPrefix, sql);
+                int parameterId = 0;
+                for (Object parameter : parameters) {
+                    parameterId++;
+                    if (parameter instanceof Long l) {
+                        ps.setLong(parameterId, l);
+                    }
+                    else {
+                        ps.setNString(parameterId, (String) parameter);
+                    }
+                }
+                traceLogSql(logPrefix, sql, parameters.toArray());
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
                         LicenseDTO dto = new LicenseDTO()
@@ -403,16 +1053,373 @@ public class DatabaseFunctions {
                                 .setLicenseGroupId(rs.getLong("LicenseGroupId"))
                                 .setUserId(rs.getLong("USERID"))
                                 .setUpn(rs.getNString("UPN"));
-                        expiredLicenses.add(dto);
+                        licenses.add(dto);
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+        log.info("{}Found {} matching licenses in database", logPrefix, licenses.size());
+        return licenses;
+    }
+
+    List<OutboxEntry> claimOutboxEntries(int batchSize, int leaseSeconds) {
+        final String logPrefix = "claimOutboxEntries() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // READPAST skips rows claimed by other workers or nodes instead of blocking on them. An entry is only claimed
+        // once earlier entries for the same user and platform are done, so a grant and revoke never run out of order
+        String sql = "UPDATE TOP (?) O\n"
+                + "  SET ClaimedUntilDateTime = DATEADD(SECOND, ?, GETDATE()), Attempts = Attempts + 1\n"
+                + " OUTPUT INSERTED.Id, INSERTED.EffectType, INSERTED.UPN, INSERTED.CloudPlatformId, INSERTED.LicenseId, INSERTED.Attempts\n"
+                + " FROM LIC_SIDE_EFFECT_OUTBOX O WITH (ROWLOCK, UPDLOCK, READPAST)\n"
+                + " WHERE O.DeadLettered = 0 AND O.NextAttemptDateTime <= GETDATE()\n"
+                + "  AND (O.ClaimedUntilDateTime IS NULL OR O.ClaimedUntilDateTime < GETDATE())\n"
+                + "  AND NOT EXISTS (SELECT 1 FROM LIC_SIDE_EFFECT_OUTBOX P\n"
+                + "   WHERE P.UPN = O.UPN AND P.CloudPlatformId = O.CloudPlatformId AND P.Id < O.Id AND P.DeadLettered = 0)";
+        List<OutboxEntry> entries = new ArrayList<>();
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setInt(1, batchSize);
+                ps.setInt(2, leaseSeconds);
+                traceLogSql(logPrefix, sql, batchSize, leaseSeconds);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        // wasNull() only describes the last column read, so it is checked straight after LicenseId
+                        Long licenseId = rs.getLong("LicenseId");
+                        if (rs.wasNull()) {
+                            licenseId = null;
+                        }
+                        OutboxEntry entry = new OutboxEntry()
+                                .setId(rs.getLong("Id"))
+                                .setEffectType(SideEffectType.valueOf(rs.getNString("EffectType")))
+                                .setUpn(rs.getNString("UPN"))
+                                .setCloudPlatformId(rs.getLong("CloudPlatformId"))
+                                .setLicenseId(licenseId)
+                                .setAttempts(rs.getInt("Attempts"));
+                        entries.add(entry);
+                    }
+                }
+                dbConnection.commit();
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return new ArrayList<>();
+        }
+        if (!entries.isEmpty()) {
+            log.debug("{}Claimed {} outbox entries", logPrefix, entries.size());
+        }
+        return entries;
+    }
+
+    // Attempts is raised by every claim, so matching it finds the row only while the claim that read it is the latest.
+    // Once the lease has run out and another worker has claimed the row, the stale claim changes nothing
+    boolean completeOutboxEntry(Long outboxId, int attempts) {
+        final String logPrefix = "completeOutboxEntry() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String sql = "DELETE FROM LIC_SIDE_EFFECT_OUTBOX WHERE ID = ? AND Attempts = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setLong(1, outboxId);
+                ps.setInt(2, attempts);
+                traceLogSql(logPrefix, sql, outboxId, attempts);
+                return ps.executeUpdate() == 1;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return false;
+        }
+    }
+
+    boolean rescheduleOutboxEntry(Long outboxId, int attempts, LocalDateTime nextAttempt, String lastError, boolean deadLetter) {
+        final String logPrefix = "rescheduleOutboxEntry() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String sql = "UPDATE LIC_SIDE_EFFECT_OUTBOX\n"
+                + "  SET ClaimedUntilDateTime = NULL, NextAttemptDateTime = ?, LastError = LEFT(?, 1000), DeadLettered = ?\n"
+                + " WHERE ID = ? AND Attempts = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setTimestamp(1, Timestamp.valueOf(nextAttempt));
+                ps.setNString(2, lastError);
+                ps.setBoolean(3, deadLetter);
+                ps.setLong(4, outboxId);
+                ps.setInt(5, attempts);
+                traceLogSql(logPrefix, sql, nextAttempt, lastError, deadLetter, outboxId, attempts);
+                return ps.executeUpdate() == 1;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return false;
+        }
+    }
+
+    private void deleteLicense(String logPrefix, Connection dbConnection, Long licenseId) throws SQLException {
+        String sql = "DELETE FROM LIC_ISSUED_LICENSE WHERE ID = ?";
+        try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+            ps.setLong(1, licenseId);
+            traceLogSql(logPrefix, sql, licenseId);
+            int rows = ps.executeUpdate();
+            if (rows != 1) {
+                throw new SQLException("A total of " + rows + " rows were deleted for license " + licenseId + ". This should have been 1.");
+            }
+            log.debug("{}Successfully deleted {} rows in the database", logPrefix, rows);
+        }
+    }
+
+    private void writeLicenseHistoryRecord(String logPrefix, Connection dbConnection, LicenseDTO lic, ReturnReason reason) throws SQLException {
+        String sql = "INSERT INTO LIC_LICENSE_HISTORY (ID, USERID, LICENSEGROUPID, CLOUDPLATFORMID, ISSUEDATETIME, RETURNDATETIME, RETURNREASON) "
+                + "VALUES (NEXT VALUE FOR SEQ_LIC_LICENSE_HISTORY, ?, ?, ?, ?, ?, ?)";
+        LocalDateTime returned = LocalDateTime.now();
+        try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+            ps.setLong(1, lic.getUserId());
+            ps.setLong(2, lic.getLicenseGroupId());
+            ps.setLong(3, lic.getCloudPlatformId());
+            ps.setTimestamp(4, Timestamp.valueOf(lic.getIssueDate()));
+            ps.setTimestamp(5, Timestamp.valueOf(returned));
+            ps.setNString(6, reason.name());
+            traceLogSql(logPrefix, sql, lic.getUserId(), lic.getLicenseGroupId(), lic.getCloudPlatformId(), lic.getIssueDate(), returned, reason.name());
+            int rows = ps.executeUpdate();
+            if (rows != 1) {
+                throw new SQLException("A total of " + rows + " history rows were added for license " + lic.getId() + ". This should have been 1.");
+            }
+            log.debug("{}Successfully added {} history rows to the database", logPrefix, rows);
+        }
+    }
+
+    List<String> getLicensedUpns(Long cloudPlatformId) {
+        final String logPrefix = "getLicensedUpns() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<String> upns = new ArrayList<>();
+
+        log.info("{}Looking up licensed users on platform {}", logPrefix, cloudPlatformId);
+        String sql = "SELECT U.UPN FROM LIC_ISSUED_LICENSE LIC\n"
+                + " INNER JOIN PROV_USER U ON U.Id = LIC.UserId\n"
+                + " WHERE LIC.CloudPlatformId = ? AND LIC.Reserved = 0";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setLong(1, cloudPlatformId);
+                ps.setFetchSize(streamPageSize);
+                traceLogSql(logPrefix, sql, cloudPlatformId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        upns.add(rs.getNString("UPN"));
+                    }
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+        log.debug("{}Found {} licensed users", logPrefix, upns.size());
+        return upns;
+    }
+
+    GroupMemberDelta loadGroupMirror(String groupId) {
+        final String logPrefix = "loadGroupMirror() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        log.info("{}Loading persisted membership mirror for group {}", logPrefix, groupId);
+        String mirrorSql = "SELECT DeltaLink FROM LIC_AZURE_GROUP_MIRROR WHERE GroupId = ?";
+        String memberSql = "SELECT UserId FROM LIC_AZURE_GROUP_MIRROR_MEMBER WHERE GroupId = ?";
+        GroupMemberDelta mirror = new GroupMemberDelta()
+                .setGroupId(groupId)
+                .setFullSync(true);
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(mirrorSql)) {
+                ps.setNString(1, groupId);
+                traceLogSql(logPrefix, mirrorSql, groupId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        log.debug("{}No persisted mirror for group {}", logPrefix, groupId);
+                        return null;
+                    }
+                    mirror.setDeltaLink(rs.getNString("DeltaLink"));
+                }
+            }
+            try (PreparedStatement ps = dbConnection.prepareStatement(memberSql)) {
+                ps.setNString(1, groupId);
+                ps.setFetchSize(streamPageSize);
+                traceLogSql(logPrefix, memberSql, groupId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        mirror.getAdded().add(rs.getNString("UserId"));
                     }
                 }
             }
         }
         catch (SQLException ex) {
             log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
         }
-        log.info("{}Found {} expired licenses in databsae", logPrefix, expiredLicenses.size());
-        return expiredLicenses;
+        log.debug("{}Loaded {} members for group {}", logPrefix, mirror.getAdded().size(), groupId);
+        return mirror;
+    }
+
+    boolean saveGroupMirror(GroupMemberDelta delta) {
+        final String logPrefix = "saveGroupMirror() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        log.debug("{}Persisting {} added and {} removed members for group {}", logPrefix, delta.getAdded().size(), delta.getRemoved().size(), delta.getGroupId());
+        String clearSql = "DELETE FROM LIC_AZURE_GROUP_MIRROR_MEMBER WHERE GroupId = ?";
+        String removeSql = "DELETE FROM LIC_AZURE_GROUP_MIRROR_MEMBER WHERE GroupId = ? AND UserId = ?";
+        String addSql = "INSERT INTO LIC_AZURE_GROUP_MIRROR_MEMBER (GroupId, UserId) SELECT ?, ?\n"
+                + " WHERE NOT EXISTS (SELECT 1 FROM LIC_AZURE_GROUP_MIRROR_MEMBER WHERE GroupId = ? AND UserId = ?)";
+        String updateSql = "UPDATE LIC_AZURE_GROUP_MIRROR SET DeltaLink = ?, LastSyncDateTime = GETDATE() WHERE GroupId = ?";
+        String insertSql = "INSERT INTO LIC_AZURE_GROUP_MIRROR (GroupId, DeltaLink, LastSyncDateTime) VALUES (?, ?, GETDATE())";
+
+        return inTransaction(logPrefix, dbConnection -> {
+            if (delta.isFullSync()) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(clearSql)) {
+                    ps.setNString(1, delta.getGroupId());
+                    traceLogSql(logPrefix, clearSql, delta.getGroupId());
+                    ps.executeUpdate();
+                }
+            }
+            else if (!delta.getRemoved().isEmpty()) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(removeSql)) {
+                    for (String userId : delta.getRemoved()) {
+                        ps.setNString(1, delta.getGroupId());
+                        ps.setNString(2, userId);
+                        ps.addBatch();
+                    }
+                    traceLogSql(logPrefix, removeSql, delta.getGroupId(), delta.getRemoved());
+                    ps.executeBatch();
+                }
+            }
+            if (!delta.getAdded().isEmpty()) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(addSql)) {
+                    for (String userId : delta.getAdded()) {
+                        ps.setNString(1, delta.getGroupId());
+                        ps.setNString(2, userId);
+                        ps.setNString(3, delta.getGroupId());
+                        ps.setNString(4, userId);
+                        ps.addBatch();
+                    }
+                    traceLogSql(logPrefix, addSql, delta.getGroupId(), delta.getAdded().size() + " members");
+                    ps.executeBatch();
+                }
+            }
+            int rows;
+            try (PreparedStatement ps = dbConnection.prepareStatement(updateSql)) {
+                ps.setNString(1, delta.getDeltaLink());
+                ps.setNString(2, delta.getGroupId());
+                traceLogSql(logPrefix, updateSql, String.valueOf(delta.getDeltaLink()), delta.getGroupId());
+                rows = ps.executeUpdate();
+            }
+            if (rows == 0) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(insertSql)) {
+                    ps.setNString(1, delta.getGroupId());
+                    ps.setNString(2, delta.getDeltaLink());
+                    traceLogSql(logPrefix, insertSql, delta.getGroupId(), String.valueOf(delta.getDeltaLink()));
+                    ps.executeUpdate();
+                }
+            }
+            return true;
+        }, false);
+    }
+
+    String getGenesysUserId(Long cloudPlatformId, String upn) {
+        final String logPrefix = "getGenesysUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String sql = "SELECT GenesysUserId FROM LIC_GENESYS_USER WHERE CloudPlatformId = ? AND UPN = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setLong(1, cloudPlatformId);
+                ps.setNString(2, upn.toLowerCase());
+                traceLogSql(logPrefix, sql, cloudPlatformId, upn);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getNString("GenesysUserId") : null;
+                }
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return null;
+        }
+    }
+
+    boolean saveGenesysUserId(Long cloudPlatformId, String upn, String genesysUserId) {
+        final String logPrefix = "saveGenesysUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String updateSql = "UPDATE LIC_GENESYS_USER SET GenesysUserId = ?, LastVerifiedDateTime = GETDATE() WHERE CloudPlatformId = ? AND UPN = ?";
+        String insertSql = "INSERT INTO LIC_GENESYS_USER (CloudPlatformId, UPN, GenesysUserId, LastVerifiedDateTime) VALUES (?, ?, ?, GETDATE())";
+        return inTransaction(logPrefix, dbConnection -> {
+            int rows;
+            try (PreparedStatement ps = dbConnection.prepareStatement(updateSql)) {
+                ps.setNString(1, genesysUserId);
+                ps.setLong(2, cloudPlatformId);
+                ps.setNString(3, upn.toLowerCase());
+                traceLogSql(logPrefix, updateSql, genesysUserId, cloudPlatformId, upn);
+                rows = ps.executeUpdate();
+            }
+            if (rows == 0) {
+                try (PreparedStatement ps = dbConnection.prepareStatement(insertSql)) {
+                    ps.setLong(1, cloudPlatformId);
+                    ps.setNString(2, upn.toLowerCase());
+                    ps.setNString(3, genesysUserId);
+                    traceLogSql(logPrefix, insertSql, cloudPlatformId, upn, genesysUserId);
+                    ps.executeUpdate();
+                }
+            }
+            return true;
+        }, false);
+    }
+
+    boolean deleteGenesysUserId(Long cloudPlatformId, String upn) {
+        final String logPrefix = "deleteGenesysUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String sql = "DELETE FROM LIC_GENESYS_USER WHERE CloudPlatformId = ? AND UPN = ?";
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            try (PreparedStatement ps = dbConnection.prepareStatement(sql)) {
+                ps.setLong(1, cloudPlatformId);
+                ps.setNString(2, upn.toLowerCase());
+                traceLogSql(logPrefix, sql, cloudPlatformId, upn);
+                ps.executeUpdate();
+                return true;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered", logPrefix, ex);
+            return false;
+        }
+    }
+
+    // Runs the work on one pooled connection in a single transaction. The transaction is committed if the work
+    // returns and rolled back if it throws, in which case the error value is returned
+    private <T> T inTransaction(String logPrefix, UnitOfWork<T> work, T errorValue) {
+        try (Connection dbConnection = cdc.getDatabaseConnection()) {
+            dbConnection.setAutoCommit(false);
+            try {
+                T result = work.execute(dbConnection);
+                dbConnection.commit();
+                return result;
+            }
+            catch (SQLException | RuntimeException ex) {
+                dbConnection.rollback();
+                throw ex;
+            }
+        }
+        catch (SQLException ex) {
+            log.error("{}SQL Exception encountered. Transaction rolled back", logPrefix, ex);
+            return errorValue;
+        }
+    }
+
+    @FunctionalInterface
+    private interface UnitOfWork<T> {
+
+        T execute(Connection dbConnection) throws SQLException;
+    }
+
+    private String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
     }
 
     private void traceLogSql(String logPrefix, String sql, Object... parameters) {
@@ -0,0 +1,182 @@
+/*
+ *   gcloudlicensemanagement - EntitlementCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.UserEntitlement;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Size and time bounded cache of user entitlements keyed by UPN and cloud
+ * platform. Only successful lookups are cached; users who are not provisioned
+ * are looked up again on every request.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class EntitlementCache {
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Value("${entitlement.cache.ttl-seconds:300}")
+    private Long ttlSeconds;
+
+    @Value("${entitlement.cache.max-entries:10000}")
+    private Integer maxEntries;
+
+    private final Map<String, CachedEntitlement> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserEntitlement getEntitlement(String upn, Long cloudPlatformId) {
+        final String logPrefix = "getEntitlement() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        String key = cacheKey(upn, cloudPlatformId);
+        CachedEntitlement cached = cache.get(key);
+        if (cached != null && !cached.isExpired()) {
+            hits.incrementAndGet();
+            log.debug("{}Cache hit for {} on platform {}", logPrefix, upn, cloudPlatformId);
+            return cached.entitlement;
+        }
+        misses.incrementAndGet();
+        UserEntitlement entitlement = dbFunc.getUserEntitlementFromDB(upn, cloudPlatformId);
+        if (entitlement != null) {
+            store(key, entitlement);
+        }
+        else if (cached != null) {
+            cache.remove(key, cached);
+        }
+        return entitlement;
+    }
+
+    public Map<String, UserEntitlement> getEntitlements(Collection<String> upns, Long cloudPlatformId) {
+        final String logPrefix = "getEntitlements() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        Map<String, UserEntitlement> entitlements = new HashMap<>();
+        Set<String> toLoad = new HashSet<>();
+        for (String upn : upns) {
+            CachedEntitlement cached = cache.get(cacheKey(upn, cloudPlatformId));
+            if (cached != null && !cached.isExpired()) {
+                entitlements.put(upn, cached.entitlement);
+            }
+            else {
+                toLoad.add(upn);
+            }
+        }
+        hits.addAndGet(entitlements.size());
+        misses.addAndGet(toLoad.size());
+        log.debug("{}{} entitlements served from cache, {} to load from database", logPrefix, entitlements.size(), toLoad.size());
+        if (toLoad.isEmpty()) {
+            return entitlements;
+        }
+
+        Map<String, UserEntitlement> loaded = dbFunc.getUserEntitlementsFromDB(toLoad, cloudPlatformId);
+        if (loaded == null) {
+            return null;
+        }
+        loaded.forEach((upn, entitlement) -> {
+            store(cacheKey(upn, cloudPlatformId), entitlement);
+            entitlements.put(upn, entitlement);
+        });
+        return entitlements;
+    }
+
+    public int invalidate(String upn) {
+        final String logPrefix = "invalidate() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String prefix = upn.toLowerCase() + "|";
+        int before = cache.size();
+        cache.keySet().removeIf(k -> k.startsWith(prefix));
+        int removed = before - cache.size();
+        log.info("{}Invalidated {} cached entitlements for {}", logPrefix, removed, upn);
+        return removed;
+    }
+
+    public int invalidateAll() {
+        final String logPrefix = "invalidateAll() - ";
+        log.trace("{}Entering Method", logPrefix);
+        int removed = cache.size();
+        cache.clear();
+        log.info("{}Invalidated all {} cached entitlements", logPrefix, removed);
+        return removed;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", cache.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("ttlSeconds", ttlSeconds);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        return stats;
+    }
+
+    private void store(String key, UserEntitlement entitlement) {
+        final String logPrefix = "store() - ";
+        cache.put(key, new CachedEntitlement(entitlement, Instant.now().plusSeconds(ttlSeconds)));
+        if (cache.size() > maxEntries) {
+            cache.values().removeIf(CachedEntitlement::isExpired);
+            int excess = cache.size() - maxEntries;
+            if (excess > 0) {
+                log.debug("{}Cache over {} entries, evicting {} oldest", logPrefix, maxEntries, excess);
+                cache.entrySet().stream()
+                        .sorted(Comparator.comparing(e -> e.getValue().expiresAt))
+                        .limit(excess)
+                        .map(Map.Entry::getKey)
+                        .toList()
+                        .forEach(cache::remove);
+            }
+        }
+    }
+
+    private static String cacheKey(String upn, Long cloudPlatformId) {
+        return upn.toLowerCase() + "|" + cloudPlatformId;
+    }
+
+    private static class CachedEntitlement {
+
+        private final UserEntitlement entitlement;
+        private final Instant expiresAt;
+
+        private CachedEntitlement(UserEntitlement entitlement, Instant expiresAt) {
+            this.entitlement = entitlement;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return Instant.now().isAfter(expiresAt);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *   gcloudlicensemanagement - ForceReturnJobManager.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement.ReturnReason;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AlertMessage;
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.response.ForceReturnJobResponse;
+import com.slinkytoybox.gcloud.licensing.dto.response.ForceReturnJobResponse.JobState;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs administrator force-return jobs in the background. Each job returns its
+ * licenses through the expiry engine, so AD removal, Genesys logout and the
+ * database delete run for several licenses at once within the engine's limits.
+ * The wait queue is paused while a job runs, and only the first
+ * admin.force-return.failures-retained failure messages of a job are kept.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class ForceReturnJobManager {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Autowired
+    private LicenseManagement licMgmt;
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Autowired
+    private LicenseExpiryEngine expiryEngine;
+
+    @Autowired
+    private AlertFunctions alertFunc;
+
+    @Autowired
+    private LicenseWaitQueue waitQueue;
+
+    @Value("${admin.force-return.jobs-retained:50}")
+    private Integer jobsRetained;
+
+    @Value("${admin.force-return.failures-retained:100}")
+    private Integer failuresRetained;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private ExecutorService jobExecutor;
+
+    @PostConstruct
+    public void startJobExecutor() {
+        jobExecutor = Executors.newSingleThreadExecutor(executionMode.namedThreadFactory("force-return-job"));
+    }
+
+    @PreDestroy
+    public void stopJobExecutor() {
+        jobExecutor.shutdownNow();
+    }
+
+    public ForceReturnJobResponse startForceReturn(Long cloudPlatformId, Long licenseGroupId, Collection<String> upns, String requestedBy) {
+        final String logPrefix = "startForceReturn() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (cloudPlatformId == null && licenseGroupId == null && (upns == null || upns.isEmpty())) {
+            log.error("{}At least one filter must be supplied", logPrefix);
+            throw new IllegalArgumentException("At least one of cloud platform, license group or user list must be supplied");
+        }
+
+        List<LicenseDTO> licenses = dbFunc.getLicensesFromDB(cloudPlatformId, licenseGroupId, upns);
+        if (licenses == null) {
+            throw new IllegalStateException("Unable to read licenses from database");
+        }
+
+        Job job = new Job(UUID.randomUUID().toString(), requestedBy, licenses.size());
+        log.warn("{}User {} started force return job {} for {} licenses (platform {}, license group {}, users {})", logPrefix, requestedBy, job.jobId, licenses.size(), cloudPlatformId, licenseGroupId, upns);
+        pruneJobs();
+        jobs.put(job.jobId, job);
+        jobExecutor.submit(() -> runJob(job, licenses));
+        return job.toResponse();
+    }
+
+    public ForceReturnJobResponse getJob(String jobId) {
+        Job job = jobs.get(jobId);
+        return job == null ? null : job.toResponse();
+    }
+
+    private void runJob(Job job, List<LicenseDTO> licenses) {
+        final String logPrefix = "runJob() - ";
+        log.trace("{}Entering Method", logPrefix);
+        job.state = JobState.RUNNING;
+        job.started = LocalDateTime.now();
+        waitQueue.pause();
+        try {
+            expiryEngine.processLicenses(licenses,
+                    lic -> licMgmt.returnUserLicense(lic.getId(), ReturnReason.ADMIN_FORCE),
+                    (lic, resp) -> {
+                        job.completed.incrementAndGet();
+                        if (resp != null && resp.isSuccess()) {
+                            job.succeeded.incrementAndGet();
+                        }
+                        else if (job.failed.incrementAndGet() <= failuresRetained) {
+                            job.failures.add("License " + lic.getId() + " (" + lic.getUpn() + "): " + (resp == null ? "no response" : resp.getDetailedMessage()));
+                        }
+                    });
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Exception encountered running force return job {}", logPrefix, job.jobId, ex);
+        }
+        finally {
+            waitQueue.resume();
+        }
+        job.finished = LocalDateTime.now();
+        job.state = JobState.COMPLETE;
+        log.info("{}Force return job {} complete: {} returned, {} failed", logPrefix, job.jobId, job.succeeded.get(), job.failed.get());
+
+        AlertMessage am = new AlertMessage()
+                .setSubject("GCloud Licensing - Administrator Force Return Complete")
+                .setMessage("Force return job " + job.jobId + " requested by " + job.requestedBy + " has completed")
+                .setSource("ForceReturnJobManager.runJob()")
+                .setDetails(
+                        "Total Licenses: " + job.total
+                        + " | Returned: " + job.succeeded.get()
+                        + " | Failed: " + job.failed.get()
+                );
+        alertFunc.alertPlatformAdmins(am);
+    }
+
+    private void pruneJobs() {
+        if (jobs.size() < jobsRetained) {
+            return;
+        }
+        jobs.values().stream()
+                .filter(j -> j.state == JobState.COMPLETE)
+                .sorted((a, b) -> a.finished.compareTo(b.finished))
+                .limit(jobs.size() - jobsRetained + 1L)
+                .forEach(j -> jobs.remove(j.jobId));
+    }
+
+    private static class Job {
+
+        private final String jobId;
+        private final String requestedBy;
+        private final int total;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final Collection<String> failures = new ConcurrentLinkedQueue<>();
+        private volatile JobState state = JobState.QUEUED;
+        private volatile LocalDateTime started;
+        private volatile LocalDateTime finished;
+
+        Job(String jobId, String requestedBy, int total) {
+            this.jobId = jobId;
+            this.requestedBy = requestedBy;
+            this.total = total;
+        }
+
+        ForceReturnJobResponse toResponse() {
+            List<String> failureList = new ArrayList<>(failures);
+            return new ForceReturnJobResponse()
+                    .setJobId(jobId)
+                    .setState(state)
+                    .setRequestedBy(requestedBy)
+                    .setStarted(started)
+                    .setFinished(finished)
+                    .setTotal(total)
+                    .setCompleted(completed.get())
+                    .setSucceeded(succeeded.get())
+                    .setFailed(failed.get())
+                    .setFailures(failureList)
+                    .setFailuresOmitted(Math.max(0, failed.get() - failureList.size()));
+        }
+    }
+}
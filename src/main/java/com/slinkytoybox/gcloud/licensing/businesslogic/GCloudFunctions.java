@@ -46,6 +46,9 @@ public class GCloudFunctions {
     @Autowired
     private GCloudAPIConnection cloudApi;
 
+    @Autowired
+    private GenesysUserCache userCache;
+
     String getAzureAdAccessGroup(Long cloudPlatformId) {
         final String logPrefix = "getCloudAzureAdControlGroup() - ";
         log.trace("{}Entering Method", logPrefix);
@@ -58,6 +61,8 @@ public class GCloudFunctions {
 
     }
 
+    // The user id is taken from the cache when it can be, so a logout is normally a single token delete. A 404 on
+    // the delete means the cached id is stale (the user was recreated), so it is dropped and the search run again
     boolean forceLogOutUser(String upn, Long cloudPlatformId) {
         final String logPrefix = "forceLogOutUser() - ";
         log.trace("{}Entering Method", logPrefix);
@@ -67,6 +72,54 @@ public class GCloudFunctions {
         log.debug("{}Creating API Clients", logPrefix);
         UsersApi userApi = new UsersApi(cp.getApiClient());
         TokensApi tokenApi = new TokensApi(cp.getApiClient());
+
+        String userId = userCache.getUserId(cloudPlatformId, upn);
+        boolean fromCache = userId != null;
+        if (fromCache) {
+            log.debug("{}Using cached Genesys user ID {} for {}", logPrefix, userId, upn);
+        }
+        else {
+            userId = findUserId(userApi, upn, cloudPlatformId);
+            if (userId == null) {
+                return false;
+            }
+        }
+
+        log.info("{}Deleting all authentication tokens for user {} ({})", logPrefix, upn, userId);
+        try {
+            tokenApi.deleteToken(userId);
+        }
+        catch (ApiException ex) {
+            if (ex.getStatusCode() != 404 || !fromCache) {
+                log.error("{}Exception encountered removing all tokens", logPrefix, ex);
+                return false;
+            }
+            log.warn("{}Cached Genesys user ID {} for {} was not found. Searching again", logPrefix, userId, upn);
+            userCache.invalidate(cloudPlatformId, upn);
+            userId = findUserId(userApi, upn, cloudPlatformId);
+            if (userId == null) {
+                return false;
+            }
+            try {
+                tokenApi.deleteToken(userId);
+            }
+            catch (ApiException | IOException retryEx) {
+                log.error("{}Exception encountered removing all tokens", logPrefix, retryEx);
+                return false;
+            }
+        }
+        catch (IOException ex) {
+            log.error("{}Exception encountered removing all tokens", logPrefix, ex);
+            return false;
+        }
+
+        return true;
+
+    }
+
+    private String findUserId(UsersApi userApi, String upn, Long cloudPlatformId) {
+        final String logPrefix = "findUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
         log.debug("{}Creating search request", logPrefix);
         UserSearchRequest userSearch = new UserSearchRequest();
         List<UserSearchCriteria> criteriaList = new ArrayList<>();
@@ -80,35 +133,27 @@ public class GCloudFunctions {
         userSearch.setQuery(criteriaList);
         log.debug("{}Query formed: {}", logPrefix, userSearch);
 
-        log.debug("{}About to send off API Search Requst for user");
+        log.debug("{}About to send off API Search Requst for user", logPrefix);
         UsersSearchResponse userResult;
         try {
             userResult = userApi.postUsersSearch(userSearch);
         }
         catch (ApiException | IOException ex) {
             log.error("{}Exception encountered searching for Genesys Cloud user", logPrefix, ex);
-            return false;
+            userCache.invalidate(cloudPlatformId, upn);
+            return null;
         }
         if (userResult.getTotal() != 1) {
-            log.error("{}Search found () users. Expected only one.", logPrefix, userResult.getTotal());
-            return false;
+            log.error("{}Search found {} users. Expected only one.", logPrefix, userResult.getTotal());
+            userCache.invalidate(cloudPlatformId, upn);
+            return null;
         }
         log.trace("{}Getting user result list and first/only entry", logPrefix);
         List<User> resultList = userResult.getResults();
         User foundUser = resultList.get(0);
         log.debug("{}UPN Search {} found Genesys user ID {}", logPrefix, upn, foundUser.getId());
-
-        log.info("{}Deleting all authentication tokens for user {} ({})", logPrefix, upn, foundUser.getId());
-        try {
-            tokenApi.deleteToken(foundUser.getId());
-        }
-        catch (ApiException | IOException ex) {
-            log.error("{}Exception encountered removing all tokens", logPrefix, ex);
-            return false;
-        }
-
-        return true;
-
+        userCache.putUserId(cloudPlatformId, upn, foundUser.getId());
+        return foundUser.getId();
     }
 
 }
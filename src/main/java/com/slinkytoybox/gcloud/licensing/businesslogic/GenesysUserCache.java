@@ -0,0 +1,163 @@
+/*
+ *   gcloudlicensemanagement - GenesysUserCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of Genesys Cloud user ids keyed by cloud platform and UPN, filled the
+ * first time a user is looked up. With persistence enabled the ids are also
+ * kept in LIC_GENESYS_USER, so they survive a restart and are shared between
+ * nodes. Entries are dropped as soon as an id stops resolving.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class GenesysUserCache {
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Value("${genesys.user-cache.enabled:true}")
+    private Boolean cacheEnabled;
+
+    @Value("${genesys.user-cache.persist:false}")
+    private Boolean persistCache;
+
+    @Value("${genesys.user-cache.ttl-seconds:86400}")
+    private Long ttlSeconds;
+
+    @Value("${genesys.user-cache.max-entries:20000}")
+    private Integer maxEntries;
+
+    private final Map<String, CachedUser> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong databaseHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(cacheEnabled);
+    }
+
+    // null when the user has not been cached and the caller has to search for them
+    String getUserId(Long cloudPlatformId, String upn) {
+        final String logPrefix = "getUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = cacheKey(cloudPlatformId, upn);
+        CachedUser cached = cache.get(key);
+        if (cached != null && Instant.now().isBefore(cached.expiresAt)) {
+            hits.incrementAndGet();
+            return cached.userId;
+        }
+        if (Boolean.TRUE.equals(persistCache)) {
+            String userId = dbFunc.getGenesysUserId(cloudPlatformId, upn);
+            if (userId != null) {
+                databaseHits.incrementAndGet();
+                log.debug("{}Genesys user id for {} on platform {} read from database", logPrefix, upn, cloudPlatformId);
+                store(key, userId);
+                return userId;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void putUserId(Long cloudPlatformId, String upn, String userId) {
+        final String logPrefix = "putUserId() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!isEnabled()) {
+            return;
+        }
+        store(cacheKey(cloudPlatformId, upn), userId);
+        if (Boolean.TRUE.equals(persistCache) && !dbFunc.saveGenesysUserId(cloudPlatformId, upn, userId)) {
+            log.warn("{}Could not persist Genesys user id for {} on platform {}", logPrefix, upn, cloudPlatformId);
+        }
+    }
+
+    void invalidate(Long cloudPlatformId, String upn) {
+        final String logPrefix = "invalidate() - ";
+        log.debug("{}Invalidating Genesys user id for {} on platform {}", logPrefix, upn, cloudPlatformId);
+        if (!isEnabled()) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        cache.remove(cacheKey(cloudPlatformId, upn));
+        if (Boolean.TRUE.equals(persistCache)) {
+            dbFunc.deleteGenesysUserId(cloudPlatformId, upn);
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("entries", cache.size());
+        stats.put("hits", hits.get());
+        stats.put("databaseHits", databaseHits.get());
+        stats.put("misses", misses.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private void store(String key, String userId) {
+        cache.put(key, new CachedUser(userId, Instant.now().plusSeconds(ttlSeconds)));
+        if (cache.size() > maxEntries) {
+            Instant now = Instant.now();
+            cache.values().removeIf(c -> now.isAfter(c.expiresAt));
+            int excess = cache.size() - maxEntries;
+            if (excess > 0) {
+                cache.entrySet().stream()
+                        .sorted(Comparator.comparing(e -> e.getValue().expiresAt))
+                        .limit(excess)
+                        .map(Map.Entry::getKey)
+                        .toList()
+                        .forEach(cache::remove);
+            }
+        }
+    }
+
+    private static String cacheKey(Long cloudPlatformId, String upn) {
+        return cloudPlatformId + "|" + upn.toLowerCase();
+    }
+
+    private static class CachedUser {
+
+        private final String userId;
+        private final Instant expiresAt;
+
+        private CachedUser(String userId, Instant expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ *   gcloudlicensemanagement - GraphThrottle.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs Graph calls under an adaptive concurrency limit and retries the ones
+ * Graph throttles. A 429 or 503 halves the number of calls allowed in flight
+ * and the call is retried after the Retry-After the service asked for, or a
+ * jittered exponential backoff when it gave none. Each successful call raises
+ * the limit again by a fraction, so it settles just below the rate Graph will
+ * accept.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class GraphThrottle {
+
+    @Value("${azure.throttle.max-concurrency:16}")
+    private Integer maxConcurrency;
+
+    @Value("${azure.throttle.min-concurrency:1}")
+    private Integer minConcurrency;
+
+    @Value("${azure.throttle.max-retries:5}")
+    private Integer maxRetries;
+
+    @Value("${azure.throttle.backoff-base-millis:500}")
+    private Long backoffBaseMillis;
+
+    @Value("${azure.throttle.backoff-max-seconds:60}")
+    private Long backoffMaxSeconds;
+
+    @Value("${azure.throttle.max-retry-after-seconds:120}")
+    private Long maxRetryAfterSeconds;
+
+    @Value("${azure.throttle.acquire-timeout-seconds:60}")
+    private Long acquireTimeoutSeconds;
+
+    @Value("${azure.throttle.decrease-interval-millis:1000}")
+    private Long decreaseIntervalMillis;
+
+    // a lock rather than synchronized, so callers waiting for a slot do not pin a virtual thread carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private double limit = -1;
+    private int inFlight = 0;
+    private boolean hasDecreased = false;
+    private long lastDecreaseNanos;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong backoffMillis = new AtomicLong();
+    private final AtomicLong maxRetryAfterSeen = new AtomicLong();
+
+    <T> T execute(String operation, Supplier<T> call) {
+        final String logPrefix = "execute() - ";
+        log.trace("{}Entering Method", logPrefix);
+        for (int attempt = 0;; attempt++) {
+            acquire(operation);
+            calls.incrementAndGet();
+            Long retryAfter;
+            try {
+                T result = call.get();
+                onSuccess();
+                return result;
+            }
+            catch (GraphServiceException ex) {
+                if (!isThrottle(ex.getResponseCode())) {
+                    throw ex;
+                }
+                retryAfter = getRetryAfterSeconds(ex.getResponseHeaders());
+                onThrottle(retryAfter);
+                if (attempt >= maxRetries) {
+                    exhausted.incrementAndGet();
+                    log.error("{}{} still throttled ({}) after {} retries. Giving up", logPrefix, operation, ex.getResponseCode(), attempt);
+                    throw ex;
+                }
+                log.warn("{}{} throttled with {} (Retry-After {}). Retry {} of {}", logPrefix, operation, ex.getResponseCode(), retryAfter, attempt + 1, maxRetries);
+            }
+            finally {
+                release();
+            }
+            retries.incrementAndGet();
+            if (!backOff(operation, attempt, retryAfter)) {
+                throw new ClientException("Interrupted while backing off " + operation, null);
+            }
+        }
+    }
+
+    static boolean isThrottle(int statusCode) {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    // For batch steps, which carry their own status and headers. Lowers the limit and sleeps for the longest
+    // Retry-After any throttled step asked for; returns false once the caller has used up its retries
+    boolean throttledRetry(String operation, int attempt, Long retryAfterSeconds) {
+        final String logPrefix = "throttledRetry() - ";
+        onThrottle(retryAfterSeconds);
+        if (attempt >= maxRetries) {
+            exhausted.incrementAndGet();
+            log.error("{}{} still throttled after {} retries. Giving up", logPrefix, operation, attempt);
+            return false;
+        }
+        retries.incrementAndGet();
+        return backOff(operation, attempt, retryAfterSeconds);
+    }
+
+    // The longest one call can spend waiting on the throttle: a slot, then every retry backing off for the longest
+    // delay allowed. Work that must finish inside a lease allows this on top of its own time
+    long getRetryBudgetSeconds() {
+        return acquireTimeoutSeconds + maxRetries * Math.max(maxRetryAfterSeconds, backoffMaxSeconds);
+    }
+
+    // Graph sends Retry-After as a number of seconds, but the HTTP date form is accepted as well
+    static Long parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String trimmed = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(trimmed));
+        }
+        catch (NumberFormatException ex) {
+            // not a number of seconds
+        }
+        try {
+            ZonedDateTime retryAt = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).getSeconds());
+        }
+        catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    // the SDK hands the headers back as "Name : value" strings, so match on the name rather than the exact format
+    private static Long getRetryAfterSeconds(List<String> headers) {
+        if (headers == null) {
+            return null;
+        }
+        for (String header : headers) {
+            int colon = header == null ? -1 : header.indexOf(':');
+            if (colon > 0 && "retry-after".equalsIgnoreCase(header.substring(0, colon).trim())) {
+                return parseRetryAfter(header.substring(colon + 1));
+            }
+        }
+        return null;
+    }
+
+    // batch step headers come back as a map, with whatever case the service used for the names
+    static Long getRetryAfterSeconds(Map<String, String> headers) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if ("retry-after".equalsIgnoreCase(header.getKey())) {
+                return parseRetryAfter(header.getValue());
+            }
+        }
+        return null;
+    }
+
+    private boolean backOff(String operation, int attempt, Long retryAfterSeconds) {
+        final String logPrefix = "backOff() - ";
+        long delayMillis;
+        if (retryAfterSeconds != null) {
+            delayMillis = TimeUnit.SECONDS.toMillis(Math.min(retryAfterSeconds, maxRetryAfterSeconds));
+        }
+        else {
+            // full jitter keeps a burst of throttled callers from all retrying at the same moment
+            long ceiling = Math.min(backoffBaseMillis << Math.min(attempt, 20), TimeUnit.SECONDS.toMillis(backoffMaxSeconds));
+            delayMillis = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        }
+        backoffMillis.addAndGet(delayMillis);
+        log.debug("{}Waiting {}ms before retrying {}", logPrefix, delayMillis, operation);
+        try {
+            Thread.sleep(delayMillis);
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void acquire(String operation) {
+        lock.lock();
+        try {
+            if (limit < 0) {
+                limit = maxConcurrency;
+            }
+            long remaining = TimeUnit.SECONDS.toNanos(acquireTimeoutSeconds);
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    throw new ClientException("Timed out waiting for a Graph call slot for " + operation, null);
+                }
+                remaining = slotFreed.awaitNanos(remaining);
+            }
+            inFlight++;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted waiting for a Graph call slot for " + operation, ex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            slotFreed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // additive increase: one extra slot for every "limit" successful calls
+    private void onSuccess() {
+        lock.lock();
+        try {
+            limit = Math.min(maxConcurrency, limit + 1.0 / limit);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // multiplicative decrease, at most once per decrease interval so one burst of 429s does not drive the limit straight to the floor
+    private void onThrottle(Long retryAfterSeconds) {
+        final String logPrefix = "onThrottle() - ";
+        throttled.incrementAndGet();
+        if (retryAfterSeconds != null) {
+            maxRetryAfterSeen.accumulateAndGet(retryAfterSeconds, Math::max);
+        }
+        lock.lock();
+        try {
+            if (limit < 0) {
+                limit = maxConcurrency;
+            }
+            long now = System.nanoTime();
+            // nanoTime has an arbitrary origin, so the first decrease cannot be measured against an initial timestamp
+            if (!hasDecreased || now - lastDecreaseNanos >= TimeUnit.MILLISECONDS.toNanos(decreaseIntervalMillis)) {
+                double previous = limit;
+                limit = Math.max(minConcurrency, limit / 2);
+                hasDecreased = true;
+                lastDecreaseNanos = now;
+                log.info("{}Graph throttling. Concurrency limit {} -> {}", logPrefix, (int) previous, (int) limit);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        lock.lock();
+        try {
+            stats.put("concurrencyLimit", limit < 0 ? maxConcurrency : (int) limit);
+            stats.put("inFlight", inFlight);
+        }
+        finally {
+            lock.unlock();
+        }
+        stats.put("calls", calls.get());
+        stats.put("throttled", throttled.get());
+        stats.put("retries", retries.get());
+        stats.put("retriesExhausted", exhausted.get());
+        stats.put("backoffMillis", backoffMillis.get());
+        stats.put("maxRetryAfterSeconds", maxRetryAfterSeen.get());
+        return stats;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *   gcloudlicensemanagement - GroupMembershipMirror.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.GroupMemberDelta;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local copy of the user membership of every Azure AD access group, kept up to
+ * date by the scheduler with Graph delta queries so only the changes since the
+ * previous sync are transferred. The mirror feeds the reconciliation report,
+ * and is only trusted while its last successful sync is younger than the
+ * configured maximum age. It can lag changes made by other
+ * nodes, so membership writes always go to Graph.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class GroupMembershipMirror {
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Value("${azure.group-mirror.enabled:false}")
+    private Boolean mirrorEnabled;
+
+    @Value("${azure.group-mirror.persist:false}")
+    private Boolean persistMirror;
+
+    @Value("${azure.group-mirror.max-age-seconds:300}")
+    private Long maxAgeSeconds;
+
+    private final Map<String, MirroredGroup> groups = new ConcurrentHashMap<>();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong syncFailures = new AtomicLong();
+    private final AtomicLong staleLookups = new AtomicLong();
+
+    private Supplier<Collection<String>> groupIdSource;
+    private BiFunction<String, String, GroupMemberDelta> deltaFetcher;
+
+    // AzureADFunctions supplies the group ids and the Graph delta call, which keeps this class free of a dependency back on it
+    void start(Supplier<Collection<String>> groupIdSource, BiFunction<String, String, GroupMemberDelta> deltaFetcher) {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        this.groupIdSource = groupIdSource;
+        this.deltaFetcher = deltaFetcher;
+        if (!isEnabled()) {
+            log.info("{}Group membership mirror is disabled", logPrefix);
+            return;
+        }
+        if (Boolean.TRUE.equals(persistMirror)) {
+            for (String groupId : groupIdSource.get()) {
+                GroupMemberDelta stored = dbFunc.loadGroupMirror(groupId);
+                if (stored != null) {
+                    // the stored copy is not trusted until the first delta sync has brought it up to date
+                    MirroredGroup group = groups.computeIfAbsent(groupId, k -> new MirroredGroup());
+                    group.members = ConcurrentHashMap.newKeySet();
+                    group.members.addAll(stored.getAdded());
+                    group.deltaLink = stored.getDeltaLink();
+                    log.info("{}Loaded {} persisted members for group {}", logPrefix, group.members.size(), groupId);
+                }
+            }
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(mirrorEnabled);
+    }
+
+    public void sync() {
+        final String logPrefix = "sync() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (groupIdSource == null) {
+            log.debug("{}Mirror has not been started yet", logPrefix);
+            return;
+        }
+        if (!syncLock.tryLock()) {
+            log.debug("{}Sync already in progress", logPrefix);
+            return;
+        }
+        try {
+            Collection<String> groupIds = groupIdSource.get();
+            groups.keySet().retainAll(groupIds);
+            for (String groupId : groupIds) {
+                syncGroup(groupId);
+            }
+        }
+        finally {
+            syncLock.unlock();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    private void syncGroup(String groupId) {
+        final String logPrefix = "syncGroup() - ";
+        MirroredGroup group = groups.computeIfAbsent(groupId, k -> new MirroredGroup());
+        synchronized (group) {
+            group.syncing = true;
+            group.changesDuringSync.clear();
+        }
+        GroupMemberDelta delta;
+        try {
+            delta = deltaFetcher.apply(groupId, group.deltaLink);
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Exception encountered syncing group {}", logPrefix, groupId, ex);
+            delta = null;
+        }
+        if (delta == null) {
+            synchronized (group) {
+                group.syncing = false;
+                group.changesDuringSync.clear();
+            }
+            syncFailures.incrementAndGet();
+            log.warn("{}Could not sync group {}. Mirror will go stale after {} seconds", logPrefix, groupId, maxAgeSeconds);
+            return;
+        }
+
+        Set<String> members = ConcurrentHashMap.newKeySet();
+        synchronized (group) {
+            if (delta.isFullSync()) {
+                fullSyncs.incrementAndGet();
+            }
+            else if (group.members != null) {
+                members.addAll(group.members);
+                members.removeAll(delta.getRemoved());
+            }
+            members.addAll(delta.getAdded());
+            // changes this node made while the delta was being read are at least as new as it, so they win
+            group.changesDuringSync.forEach((userId, member) -> {
+                if (member) {
+                    members.add(userId);
+                }
+                else {
+                    members.remove(userId);
+                }
+            });
+            group.members = members;
+            group.deltaLink = delta.getDeltaLink();
+            group.lastSync = Instant.now();
+            group.syncing = false;
+            group.changesDuringSync.clear();
+        }
+        syncs.incrementAndGet();
+        log.debug("{}Group {} synced ({}): +{} -{}, {} members", logPrefix, groupId, delta.isFullSync() ? "full" : "delta", delta.getAdded().size(), delta.getRemoved().size(), members.size());
+
+        if (Boolean.TRUE.equals(persistMirror) && !dbFunc.saveGroupMirror(delta)) {
+            log.warn("{}Could not persist mirror for group {}. The next restart will run a full sync", logPrefix, groupId);
+        }
+    }
+
+    // applies a change this node has just made, so the mirror does not wait for the next delta to see it
+    void recordChange(String groupId, String userId, boolean member) {
+        MirroredGroup group = groups.get(groupId);
+        if (group == null) {
+            return;
+        }
+        synchronized (group) {
+            if (group.syncing) {
+                // kept so the sync in progress does not overwrite it with the older membership it read
+                group.changesDuringSync.put(userId, member);
+            }
+            if (group.members == null) {
+                return;
+            }
+            if (member) {
+                group.members.add(userId);
+            }
+            else {
+                group.members.remove(userId);
+            }
+        }
+    }
+
+    Set<String> getMembers(String groupId) {
+        MirroredGroup group = currentGroup(groupId);
+        return group == null ? null : Collections.unmodifiableSet(new HashSet<>(group.members));
+    }
+
+    Instant getLastSync(String groupId) {
+        MirroredGroup group = groups.get(groupId);
+        return group == null ? null : group.lastSync;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        Map<String, Object> groupStats = new HashMap<>();
+        Instant now = Instant.now();
+        groups.forEach((groupId, group) -> {
+            Map<String, Object> detail = new HashMap<>();
+            detail.put("members", group.members == null ? 0 : group.members.size());
+            detail.put("lastSync", group.lastSync == null ? null : group.lastSync.toString());
+            detail.put("current", group.lastSync != null && now.isBefore(group.lastSync.plusSeconds(maxAgeSeconds)));
+            groupStats.put(groupId, detail);
+        });
+        stats.put("enabled", isEnabled());
+        stats.put("groups", groupStats);
+        stats.put("syncs", syncs.get());
+        stats.put("fullSyncs", fullSyncs.get());
+        stats.put("syncFailures", syncFailures.get());
+        stats.put("staleLookups", staleLookups.get());
+        return stats;
+    }
+
+    private MirroredGroup currentGroup(String groupId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        MirroredGroup group = groups.get(groupId);
+        if (group == null || group.members == null || group.lastSync == null) {
+            return null;
+        }
+        if (Instant.now().isAfter(group.lastSync.plusSeconds(maxAgeSeconds))) {
+            staleLookups.incrementAndGet();
+            return null;
+        }
+        return group;
+    }
+
+    private static class MirroredGroup {
+
+        private volatile Set<String> members;
+        private volatile String deltaLink;
+        private volatile Instant lastSync;
+        // guarded by the group itself
+        private boolean syncing;
+        private final Map<String, Boolean> changesDuringSync = new HashMap<>();
+    }
+}
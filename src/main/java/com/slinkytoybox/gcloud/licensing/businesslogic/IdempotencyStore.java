@@ -0,0 +1,126 @@
+/*
+ *   gcloudlicensemanagement - IdempotencyStore.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the result of recent requests by caller and idempotency key. A
+ * repeat of a request that is still running waits for the original and a
+ * repeat of a completed request gets the stored result, so neither touches the
+ * downstream systems again. Entries are held for idempotency.ttl-seconds and
+ * the oldest are evicted past idempotency.max-entries.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class IdempotencyStore {
+
+    @Value("${idempotency.ttl-seconds:300}")
+    private Long ttlSeconds;
+
+    @Value("${idempotency.max-entries:10000}")
+    private Integer maxEntries;
+
+    // insertion order, so the eldest entries are always at the head
+    private final Map<String, StoredResult> results = new LinkedHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String caller, String idempotencyKey, String fingerprint, Supplier<T> action, Supplier<T> keyReused) {
+        final String logPrefix = "execute() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String storeKey = caller + "|" + idempotencyKey;
+        CompletableFuture<Object> ours = new CompletableFuture<>();
+        StoredResult existing;
+
+        synchronized (results) {
+            evict();
+            existing = results.get(storeKey);
+            if (existing == null) {
+                results.put(storeKey, new StoredResult(fingerprint, ours));
+            }
+        }
+
+        if (existing != null) {
+            if (!existing.fingerprint.equals(fingerprint)) {
+                log.error("{}Idempotency key {} from {} was reused for a different request", logPrefix, idempotencyKey, caller);
+                return keyReused.get();
+            }
+            log.info("{}Duplicate request {} from {}. {} original result", logPrefix, idempotencyKey, caller, existing.result.isDone() ? "Replaying" : "Waiting for");
+            try {
+                return (T) existing.result.join();
+            }
+            catch (CompletionException ex) {
+                throw (ex.getCause() instanceof RuntimeException rte) ? rte : ex;
+            }
+        }
+
+        try {
+            T result = action.get();
+            ours.complete(result);
+            return result;
+        }
+        catch (RuntimeException ex) {
+            // do not remember exceptions, so the caller can retry with the same key
+            synchronized (results) {
+                results.remove(storeKey);
+            }
+            ours.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    private void evict() {
+        LocalDateTime cutoff = LocalDateTime.now().minusSeconds(ttlSeconds);
+        Iterator<StoredResult> it = results.values().iterator();
+        while (it.hasNext()) {
+            StoredResult stored = it.next();
+            // in-flight entries are never evicted, otherwise a duplicate could start a second request
+            if ((stored.created.isBefore(cutoff) || results.size() > maxEntries) && stored.result.isDone()) {
+                it.remove();
+            }
+            else if (!stored.created.isBefore(cutoff) && results.size() <= maxEntries) {
+                break;
+            }
+        }
+    }
+
+    private static class StoredResult {
+
+        private final String fingerprint;
+        private final CompletableFuture<Object> result;
+        private final LocalDateTime created = LocalDateTime.now();
+
+        StoredResult(String fingerprint, CompletableFuture<Object> result) {
+            this.fingerprint = fingerprint;
+            this.result = result;
+        }
+    }
+}
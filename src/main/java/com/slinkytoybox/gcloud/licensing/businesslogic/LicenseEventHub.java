@@ -0,0 +1,199 @@
+/*
+ *   gcloudlicensemanagement - LicenseEventHub.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.response.LicenseEvent;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Fan-out of license state changes to the browsers of the affected user over
+ * Server-Sent Events. Emitters are idle async requests, so holding one per open
+ * tab costs no servlet thread; all writes happen on a single sender thread.
+ * Events are not relayed between nodes: a browser connected to another node
+ * sees the change on its next poll instead.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class LicenseEventHub {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Value("${sse.enabled:true}")
+    private Boolean sseEnabled;
+
+    @Value("${sse.timeout-seconds:1800}")
+    private Long timeoutSeconds;
+
+    @Value("${sse.max-connections-per-user:10}")
+    private Integer maxConnectionsPerUser;
+
+    @Value("${sse.expiry-warning-seconds:600}")
+    private Long expiryWarningSeconds;
+
+    private final Map<String, Set<SseEmitter>> emitters = new ConcurrentHashMap<>();
+    // license id -> the expiry that has already been warned about, so each expiry is only warned once
+    private final Map<Long, LocalDateTime> warnedExpiries = new ConcurrentHashMap<>();
+    private ExecutorService sender;
+
+    @PostConstruct
+    public void start() {
+        sender = Executors.newSingleThreadExecutor(executionMode.namedThreadFactory("license-event-hub"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        final String logPrefix = "stop() - ";
+        log.trace("{}Entering Method", logPrefix);
+        sender.shutdownNow();
+        emitters.values().forEach(set -> set.forEach(SseEmitter::complete));
+        emitters.clear();
+    }
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(sseEnabled);
+    }
+
+    public SseEmitter register(String upn) {
+        final String logPrefix = "register() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String key = upn.toLowerCase();
+        Set<SseEmitter> userEmitters = emitters.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+        if (userEmitters.size() >= maxConnectionsPerUser) {
+            log.warn("{}User {} already has {} event streams open", logPrefix, upn, userEmitters.size());
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutSeconds * 1000);
+        userEmitters.add(emitter);
+        emitter.onCompletion(() -> unregister(key, emitter));
+        emitter.onTimeout(() -> unregister(key, emitter));
+        emitter.onError(ex -> unregister(key, emitter));
+        // flush the response headers straight away so proxies treat the stream as open
+        sender.execute(() -> send(key, emitter, SseEmitter.event().comment("connected")));
+        log.info("{}Opened event stream for {}. {} users connected", logPrefix, upn, emitters.size());
+        return emitter;
+    }
+
+    void publish(LicenseEvent event) {
+        final String logPrefix = "publish() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (event.getUpn() == null) {
+            return;
+        }
+        String key = event.getUpn().toLowerCase();
+        Set<SseEmitter> userEmitters = emitters.get(key);
+        if (userEmitters == null || userEmitters.isEmpty()) {
+            return;
+        }
+        log.debug("{}Publishing {} to {} streams", logPrefix, event, userEmitters.size());
+        sender.execute(() -> userEmitters.forEach(emitter
+                -> send(key, emitter, SseEmitter.event().name("license").data(event, MediaType.APPLICATION_JSON))));
+    }
+
+    void publish(LicenseEvent.EventType eventType, LicenseDTO license) {
+        if (license.getId() != null) {
+            warnedExpiries.remove(license.getId());
+        }
+        publish(new LicenseEvent()
+                .setEventType(eventType)
+                .setUpn(license.getUpn())
+                .setCloudPlatformId(license.getCloudPlatformId())
+                .setLicenseId(license.getId())
+                .setExpiryDate(license.getExpiryDate()));
+    }
+
+    public void heartbeat() {
+        final String logPrefix = "heartbeat() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (emitters.isEmpty()) {
+            return;
+        }
+        log.debug("{}Sending heartbeat to {} users", logPrefix, emitters.size());
+        sender.execute(() -> emitters.forEach((key, userEmitters) -> userEmitters.forEach(emitter
+                -> send(key, emitter, SseEmitter.event().comment("heartbeat")))));
+    }
+
+    public void warnApproachingExpiry() {
+        final String logPrefix = "warnApproachingExpiry() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (emitters.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        // read from the database rather than this node's memory, so licenses issued or extended on other nodes are
+        // warned about too. One query per run covers every connected user
+        for (LicenseDTO lic : dbFunc.getLicensesExpiringBetween(now, now.plusSeconds(expiryWarningSeconds))) {
+            LocalDateTime expiry = lic.getExpiryDate();
+            if (lic.getUpn() == null || !emitters.containsKey(lic.getUpn().toLowerCase()) || expiry.equals(warnedExpiries.get(lic.getId()))) {
+                continue;
+            }
+            log.debug("{}License {} for {} expires at {}", logPrefix, lic.getId(), lic.getUpn(), expiry);
+            warnedExpiries.put(lic.getId(), expiry);
+            publish(new LicenseEvent()
+                    .setEventType(LicenseEvent.EventType.EXPIRY_WARNING)
+                    .setUpn(lic.getUpn())
+                    .setCloudPlatformId(lic.getCloudPlatformId())
+                    .setLicenseId(lic.getId())
+                    .setExpiryDate(expiry));
+        }
+        warnedExpiries.values().removeIf(expiry -> expiry.isBefore(now));
+    }
+
+    private void send(String key, SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+        final String logPrefix = "send() - ";
+        try {
+            emitter.send(event);
+        }
+        catch (IOException | IllegalStateException ex) {
+            log.debug("{}Event stream for {} is closed: {}", logPrefix, key, ex.getMessage());
+            unregister(key, emitter);
+        }
+    }
+
+    private void unregister(String key, SseEmitter emitter) {
+        final String logPrefix = "unregister() - ";
+        emitters.computeIfPresent(key, (k, userEmitters) -> {
+            userEmitters.remove(emitter);
+            return userEmitters.isEmpty() ? null : userEmitters;
+        });
+        log.trace("{}Closed event stream for {}. {} users connected", logPrefix, key, emitters.size());
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *   gcloudlicensemanagement - LicenseExpiryEngine.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.ExpiryStatistics;
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.response.BooleanResponse;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Processes batches of licenses concurrently. Licenses are split into one queue
+ * per cloud platform and handed to a pool sized to the global limit, each only
+ * once its platform has a free permit. The per-platform limit is held across
+ * calls, so the expiry dispatcher, the sweep and force-return jobs running
+ * together stay within it, and a busy platform never holds pool threads that
+ * other platforms could use.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class LicenseExpiryEngine {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Value("${expiry.concurrency.global:8}")
+    private Integer globalConcurrency;
+
+    @Value("${expiry.concurrency.per-platform:4}")
+    private Integer platformConcurrency;
+
+    private ExecutorService executor;
+    private final Map<Long, Semaphore> platformPermits = new ConcurrentHashMap<>();
+    private final ReentrantLock releaseLock = new ReentrantLock();
+    private final Condition released = releaseLock.newCondition();
+    private long releaseCount = 0;
+
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong totalProcessed = new AtomicLong();
+    private final AtomicLong totalFailed = new AtomicLong();
+    private volatile ExpiryStatistics lastRun = new ExpiryStatistics();
+
+    @PostConstruct
+    public void startEngine() {
+        final String logPrefix = "startEngine() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Starting expiry engine with global concurrency {} and per-platform concurrency {}", logPrefix, globalConcurrency, platformConcurrency);
+        // the pool size is the cap on concurrent Azure AD and Genesys calls, so it stays bounded on virtual threads too
+        executor = Executors.newFixedThreadPool(Math.max(1, globalConcurrency), executionMode.threadFactory("license-expiry-"));
+    }
+
+    @PreDestroy
+    public void stopEngine() {
+        final String logPrefix = "stopEngine() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Shutting down expiry engine", logPrefix);
+        executor.shutdownNow();
+    }
+
+    ExpiryStatistics processLicenses(Collection<LicenseDTO> licenses, Function<LicenseDTO, BooleanResponse> action) {
+        return processLicenses(licenses, action, (lic, resp) -> {
+        });
+    }
+
+    ExpiryStatistics processLicenses(Collection<LicenseDTO> licenses, Function<LicenseDTO, BooleanResponse> action, BiConsumer<LicenseDTO, BooleanResponse> onComplete) {
+        final String logPrefix = "processLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        LocalDateTime started = LocalDateTime.now();
+        long startNanos = System.nanoTime();
+
+        Map<Long, Queue<LicenseDTO>> platformQueues = new LinkedHashMap<>();
+        for (LicenseDTO lic : licenses) {
+            platformQueues.computeIfAbsent(lic.getCloudPlatformId(), k -> new ArrayDeque<>()).add(lic);
+        }
+        backlog.addAndGet(licenses.size());
+        platformQueues.forEach((platformId, queue) -> log.debug("{}Platform {} has {} licenses to process", logPrefix, platformId, queue.size()));
+
+        // This thread hands out the work. A license only goes to the pool once its platform has a free permit, so a
+        // pool thread never waits on a busy platform while work for the others is queued behind it
+        AtomicLong processed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        while (!platformQueues.isEmpty()) {
+            long releasesSeen = getReleaseCount();
+            boolean dispatched = false;
+            Iterator<Map.Entry<Long, Queue<LicenseDTO>>> it = platformQueues.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Queue<LicenseDTO>> platformQueue = it.next();
+                Semaphore permits = platformPermits.computeIfAbsent(platformQueue.getKey(), k -> new Semaphore(Math.max(1, platformConcurrency)));
+                if (!permits.tryAcquire()) {
+                    continue;
+                }
+                // one license per platform per pass, so every platform gets its turn
+                LicenseDTO lic = platformQueue.getValue().poll();
+                if (platformQueue.getValue().isEmpty()) {
+                    it.remove();
+                }
+                tasks.add(CompletableFuture.runAsync(() -> processLicense(lic, permits, action, onComplete, processed, failed), executor));
+                dispatched = true;
+            }
+            if (!dispatched && !awaitRelease(releasesSeen)) {
+                int remaining = platformQueues.values().stream().mapToInt(Queue::size).sum();
+                log.warn("{}Interrupted waiting for a platform permit. Leaving {} licenses unprocessed", logPrefix, remaining);
+                backlog.addAndGet(-remaining);
+                break;
+            }
+        }
+        CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+
+        long durationMillis = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+        ExpiryStatistics stats = new ExpiryStatistics()
+                .setLastRunStarted(started)
+                .setLastRunDurationMillis(durationMillis)
+                .setLastRunProcessed(processed.get())
+                .setLastRunFailed(failed.get())
+                .setLastRunThroughputPerSecond(processed.get() * 1000.0 / durationMillis)
+                .setTotalProcessed(totalProcessed.get())
+                .setTotalFailed(totalFailed.get())
+                .setBacklog(backlog.get());
+        lastRun = stats;
+        if (!licenses.isEmpty()) {
+            log.info("{}Processed {} licenses ({} failed) in {}ms - {} per second", logPrefix, stats.getLastRunProcessed(), stats.getLastRunFailed(), durationMillis, String.format("%.1f", stats.getLastRunThroughputPerSecond()));
+        }
+        log.trace("{}Leaving Method", logPrefix);
+        return stats;
+    }
+
+    private void processLicense(LicenseDTO lic, Semaphore permits, Function<LicenseDTO, BooleanResponse> action, BiConsumer<LicenseDTO, BooleanResponse> onComplete,
+            AtomicLong processed, AtomicLong failed) {
+        final String logPrefix = "processLicense() - ";
+        BooleanResponse resp;
+        try {
+            resp = action.apply(lic);
+            log.debug("{}Status for {} is {} - ErrorCode: {}", logPrefix, lic.getId(), resp.isSuccess(), resp.getDetailedMessage());
+            if (!resp.isSuccess()) {
+                failed.incrementAndGet();
+                totalFailed.incrementAndGet();
+            }
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Exception encountered processing license {}", logPrefix, lic.getId(), ex);
+            resp = new BooleanResponse().setSuccess(false).setDetailedMessage(ex.getMessage());
+            failed.incrementAndGet();
+            totalFailed.incrementAndGet();
+        }
+        finally {
+            permits.release();
+            permitReleased();
+            processed.incrementAndGet();
+            totalProcessed.incrementAndGet();
+            backlog.decrementAndGet();
+        }
+        onComplete.accept(lic, resp);
+    }
+
+    private long getReleaseCount() {
+        releaseLock.lock();
+        try {
+            return releaseCount;
+        }
+        finally {
+            releaseLock.unlock();
+        }
+    }
+
+    // wakes every caller waiting to hand out work, whichever platform the permit belongs to
+    private void permitReleased() {
+        releaseLock.lock();
+        try {
+            releaseCount++;
+            released.signalAll();
+        }
+        finally {
+            releaseLock.unlock();
+        }
+    }
+
+    // waits until a permit is released after the given count was read, so a release in between is not missed
+    private boolean awaitRelease(long releasesSeen) {
+        releaseLock.lock();
+        try {
+            while (releaseCount == releasesSeen) {
+                released.await();
+            }
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            releaseLock.unlock();
+        }
+    }
+
+    public ExpiryStatistics getStatistics() {
+        return new ExpiryStatistics()
+                .setLastRunStarted(lastRun.getLastRunStarted())
+                .setLastRunDurationMillis(lastRun.getLastRunDurationMillis())
+                .setLastRunProcessed(lastRun.getLastRunProcessed())
+                .setLastRunFailed(lastRun.getLastRunFailed())
+                .setLastRunThroughputPerSecond(lastRun.getLastRunThroughputPerSecond())
+                .setTotalProcessed(totalProcessed.get())
+                .setTotalFailed(totalFailed.get())
+                .setBacklog(backlog.get());
+    }
+
+}
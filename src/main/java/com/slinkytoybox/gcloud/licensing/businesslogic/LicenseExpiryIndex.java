@@ -0,0 +1,252 @@
+/*
+ *   gcloudlicensemanagement - LicenseExpiryIndex.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of issued licenses keyed by expiry time. A dispatcher thread
+ * waits on the earliest deadline and hands due licenses to the expiry handler,
+ * so licenses are returned as they expire rather than on the next DB sweep.
+ * The whole table is read once at startup; after that the sweep only reads
+ * licenses issued since the last read, which is how licenses issued on other
+ * nodes get in. A license whose return fails is retried with backoff. It only
+ * holds what this node has loaded or issued, so nothing that must be
+ * consistent across nodes is answered from it.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+@DependsOn("CloudDatabaseConnection")
+public class LicenseExpiryIndex {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    // issue times are set when a transaction runs but only seen once it commits, so each refresh re-reads this far
+    // back past the newest issue time already seen
+    @Value("${expiry.index.refresh-overlap-seconds:60}")
+    private Long refreshOverlapSeconds;
+
+    @Value("${expiry.retry.initial-seconds:5}")
+    private Long retryInitialSeconds;
+
+    @Value("${expiry.retry.max-seconds:300}")
+    private Long retryMaxSeconds;
+
+    private final DelayQueue<ExpiryEntry> expiryQueue = new DelayQueue<>();
+    private final Map<Long, LicenseDTO> indexedLicenses = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> retryAttempts = new ConcurrentHashMap<>();
+    private volatile LocalDateTime issuedWatermark;
+    private Thread dispatcher;
+
+    void start(Consumer<List<LicenseDTO>> expiryHandler) {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        reload();
+        dispatcher = executionMode.newThread("license-expiry-dispatcher", () -> dispatch(expiryHandler));
+        dispatcher.start();
+        log.info("{}Started expiry dispatcher with {} indexed licenses", logPrefix, indexedLicenses.size());
+    }
+
+    @PreDestroy
+    public void stop() {
+        final String logPrefix = "stop() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (dispatcher != null) {
+            log.info("{}Stopping expiry dispatcher", logPrefix);
+            dispatcher.interrupt();
+        }
+    }
+
+    void reload() {
+        final String logPrefix = "reload() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // only licenses indexed before the reload started can be stale. Anything scheduled while the pages are being
+        // read was issued or extended after the read began and must be kept
+        Set<Long> previouslyIndexed = new HashSet<>(indexedLicenses.keySet());
+        Set<Long> streamed = new HashSet<>();
+        LocalDateTime[] newestIssue = {null};
+        boolean complete = dbFunc.streamIssuedLicenses(page -> page.forEach(lic -> {
+            streamed.add(lic.getId());
+            newestIssue[0] = later(newestIssue[0], lic.getIssueDate());
+            schedule(lic);
+        }));
+        if (!complete) {
+            log.warn("{}Could not read all issued licenses from database. Keeping existing index entries", logPrefix);
+            return;
+        }
+        previouslyIndexed.removeAll(streamed);
+        previouslyIndexed.forEach(this::remove);
+        issuedWatermark = newestIssue[0] == null ? LocalDateTime.now() : newestIssue[0];
+        log.debug("{}Expiry index holds {} licenses", logPrefix, indexedLicenses.size());
+    }
+
+    // Picks up licenses issued since the last read, mostly by other nodes. Licenses those nodes return or extend need
+    // no refresh: the dispatcher re-checks the database before expiring anything
+    void refresh() {
+        final String logPrefix = "refresh() - ";
+        log.trace("{}Entering Method", logPrefix);
+        LocalDateTime watermark = issuedWatermark;
+        if (watermark == null) {
+            log.info("{}Expiry index has not been fully loaded yet. Reloading", logPrefix);
+            reload();
+            return;
+        }
+        LocalDateTime[] newestIssue = {watermark};
+        int[] count = {0};
+        boolean complete = dbFunc.streamLicensesIssuedSince(watermark.minusSeconds(refreshOverlapSeconds), page -> page.forEach(lic -> {
+            newestIssue[0] = later(newestIssue[0], lic.getIssueDate());
+            count[0]++;
+            schedule(lic);
+        }));
+        if (!complete) {
+            log.warn("{}Could not read newly issued licenses from database. They will be read on the next refresh", logPrefix);
+            return;
+        }
+        issuedWatermark = newestIssue[0];
+        log.debug("{}Read {} licenses issued since {}. Expiry index holds {} licenses", logPrefix, count[0], watermark, indexedLicenses.size());
+    }
+
+    void schedule(LicenseDTO license) {
+        final String logPrefix = "schedule() - ";
+        log.trace("{}Entering Method", logPrefix);
+        LicenseDTO previous = indexedLicenses.put(license.getId(), license);
+        if (previous != null && previous.getExpiryDate().equals(license.getExpiryDate())) {
+            return;
+        }
+        retryAttempts.remove(license.getId());
+        log.debug("{}Scheduling expiry of license {} at {}", logPrefix, license.getId(), license.getExpiryDate());
+        expiryQueue.put(new ExpiryEntry(license.getId(), license.getExpiryDate()));
+    }
+
+    void remove(Long licenseId) {
+        final String logPrefix = "remove() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // the queued entry is left in place and discarded when it fires
+        indexedLicenses.remove(licenseId);
+        retryAttempts.remove(licenseId);
+    }
+
+    // Queues another attempt at a license whose return failed, backing off exponentially up to the maximum. Nothing is
+    // queued if the license has since been extended or removed
+    void retryLater(LicenseDTO license) {
+        final String logPrefix = "retryLater() - ";
+        log.trace("{}Entering Method", logPrefix);
+        LicenseDTO current = indexedLicenses.get(license.getId());
+        if (current == null || !current.getExpiryDate().equals(license.getExpiryDate())) {
+            return;
+        }
+        int attempts = retryAttempts.merge(license.getId(), 1, Integer::sum);
+        long delaySeconds = Math.min(retryMaxSeconds, retryInitialSeconds << Math.min(attempts - 1, 20));
+        log.info("{}Retrying expiry of license {} in {} seconds (attempt {})", logPrefix, license.getId(), delaySeconds, attempts + 1);
+        expiryQueue.put(new ExpiryEntry(license.getId(), license.getExpiryDate(), System.currentTimeMillis() + delaySeconds * 1000));
+    }
+
+    private static LocalDateTime later(LocalDateTime current, LocalDateTime candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        return current == null || candidate.isAfter(current) ? candidate : current;
+    }
+
+    private void dispatch(Consumer<List<LicenseDTO>> expiryHandler) {
+        final String logPrefix = "dispatch() - ";
+        log.trace("{}Entering Method", logPrefix);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<ExpiryEntry> dueEntries = new ArrayList<>();
+                dueEntries.add(expiryQueue.take());
+                expiryQueue.drainTo(dueEntries);
+
+                List<LicenseDTO> dueLicenses = new ArrayList<>();
+                for (ExpiryEntry entry : dueEntries) {
+                    LicenseDTO lic = indexedLicenses.get(entry.licenseId);
+                    // skip entries superseded by an extension or for licenses already returned
+                    if (lic != null && lic.getExpiryDate().equals(entry.expiry)) {
+                        dueLicenses.add(lic);
+                    }
+                }
+                if (!dueLicenses.isEmpty()) {
+                    log.info("{}{} licenses have reached expiry", logPrefix, dueLicenses.size());
+                    expiryHandler.accept(dueLicenses);
+                }
+            }
+            catch (InterruptedException ex) {
+                log.info("{}Expiry dispatcher interrupted. Exiting", logPrefix);
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException ex) {
+                log.error("{}Exception encountered dispatching expired licenses", logPrefix, ex);
+            }
+        }
+    }
+
+    private static class ExpiryEntry implements Delayed {
+
+        private final Long licenseId;
+        private final LocalDateTime expiry;
+        private final long deadlineMillis;
+
+        ExpiryEntry(Long licenseId, LocalDateTime expiry) {
+            this(licenseId, expiry, expiry.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+
+        // a retry is due after its backoff but still matches the license by its expiry
+        ExpiryEntry(Long licenseId, LocalDateTime expiry, long deadlineMillis) {
+            this.licenseId = licenseId;
+            this.expiry = expiry;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
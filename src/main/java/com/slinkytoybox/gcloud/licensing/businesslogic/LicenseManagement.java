@@ -20,14 +20,32 @@
 package com.slinkytoybox.gcloud.licensing.businesslogic;
 
 import com.slinkytoybox.gcloud.licensing.dto.internal.AlertMessage;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AllocationResult;
+import com.slinkytoybox.gcloud.licensing.dto.internal.ExpiryStatistics;
 import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.internal.QueuedLicenseRequest;
+import com.slinkytoybox.gcloud.licensing.dto.internal.UserEntitlement;
 import com.slinkytoybox.gcloud.licensing.dto.response.*;
+import jakarta.annotation.PostConstruct;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -50,6 +68,59 @@ public class LicenseManagement {
     @Autowired
     private AlertFunctions alertFunc;
 
+    @Autowired
+    private LicenseQuotaLedger quotaLedger;
+
+    @Autowired
+    private LicenseExpiryEngine expiryEngine;
+
+    @Autowired
+    private LicenseExpiryIndex expiryIndex;
+
+    @Autowired
+    private LicenseWaitQueue waitQueue;
+
+    @Autowired
+    private SideEffectOutbox sideEffects;
+
+    @Autowired
+    private EntitlementCache entitlementCache;
+
+    @Autowired
+    private UserPlatformIndex platformIndex;
+
+    @Autowired
+    private LicenseEventHub eventHub;
+
+    @Autowired
+    private GroupMembershipMirror membershipMirror;
+
+    @Value("${expiry.enabled:true}")
+    private Boolean expiryEnabled;
+
+    @Value("${license.reservation.seconds:120}")
+    private Long reservationSeconds;
+
+    @Value("${expiry.mode:PER_LICENSE}")
+    private ExpiryMode expiryMode;
+
+    @Value("${expiry.set-based.batch-size:1000}")
+    private Integer expiryBatchSize;
+
+    private final Set<Long> returnsInProgress = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void startBackgroundServices() {
+        final String logPrefix = "startBackgroundServices() - ";
+        log.trace("{}Entering Method", logPrefix);
+        waitQueue.start(this::serveQueuedRequest);
+        if (!Boolean.TRUE.equals(expiryEnabled)) {
+            log.warn("{}Expiry is disabled. Not starting expiry index", logPrefix);
+            return;
+        }
+        expiryIndex.start(this::expireIndexedLicenses);
+    }
+
     // Check license available
     public Boolean isLicenseAvailable(String upn, Long cloudPlatformId) {
         final String logPrefix = "isLicenseAvailable() - ";
@@ -59,6 +130,10 @@ public class LicenseManagement {
 
     // Create new license
     public BooleanResponse createUserLicense(String upn, Long cloudPlatformId) {
+        return createUserLicense(upn, cloudPlatformId, false);
+    }
+
+    private BooleanResponse createUserLicense(String upn, Long cloudPlatformId, boolean fromQueue) {
         final String logPrefix = "createUserLicense() - ";
         log.trace("{}Entering Method", logPrefix);
         if (upn == null || upn.isBlank()) {
@@ -72,8 +147,8 @@ public class LicenseManagement {
         BooleanResponse response = new BooleanResponse();
 
         // look up license group for user
-        Map<String, Object> licenseGroupDetails = dbFunc.getUserLicenseGroupDetails(upn, cloudPlatformId);
-        if (licenseGroupDetails == null) {
+        UserEntitlement entitlement = entitlementCache.getEntitlement(upn, cloudPlatformId);
+        if (entitlement == null) {
             response.setFriendlyMessage("Your account is not configured correctly. Please contact your team leader.");
             response.setDetailedMessage("Unable to retrieve license group details");
             response.setSuccess(false);
@@ -86,63 +161,127 @@ public class LicenseManagement {
             alertFunc.alertPlatformAdmins(am);
             return response;
         }
+        Long licenseGroupId = entitlement.getLicenseGroupId();
+
+        // users already waiting for this license group are served first
+        if (!fromQueue && waitQueue.isEnabled() && (waitQueue.isQueued(upn, cloudPlatformId) || waitQueue.hasWaiters(licenseGroupId))) {
+            int position = waitQueue.enqueue(licenseGroupId, upn, cloudPlatformId, false);
+            return queuedResponse(licenseGroupId, position);
+        }
 
-        // get count of licenses in use
-        log.debug("{}Getting existing license counts", logPrefix);
-        Map<Long, Long> licenseCount = dbFunc.getCurrentLicenseUsage();
-        Long lgCount = licenseCount.get((Long) licenseGroupDetails.get("LICENSEGROUPID"));
+        // a group the database showed full moments ago is turned away without another guarded insert. Anything less
+        // certain goes to the database, which enforces the hard limit exactly
+        Long lgCount = quotaLedger.getUsage(licenseGroupId);
+        if (quotaLedger.isKnownFull(licenseGroupId, entitlement.getHardLimit())) {
+            log.info("{}Ledger shows License Group {} full ({} of {})", logPrefix, licenseGroupId, lgCount, entitlement.getHardLimit());
+            return handleOverHardLimit(upn, cloudPlatformId, entitlement, lgCount, fromQueue);
+        }
 
-        // check current license count
-        if (lgCount >= (Long) licenseGroupDetails.get("HARDLIMIT")) {
-            // over hard limit
-            log.error("{}License Group {} has {} issued licenses, over hard limit of {}", logPrefix, licenseGroupDetails.get("LICENSEGROUPID"), lgCount, licenseGroupDetails.get("HARDLIMIT"));
-            response.setFriendlyMessage("There are insufficent licenses available at this time. Please contact your team leader.");
-            response.setDetailedMessage("License Group " + (Long) licenseGroupDetails.get("LICENSEGROUPID") + " has " + lgCount + " >  Hard Limit: " + (Long) licenseGroupDetails.get("HARDLIMIT") + "");
-            response.setSuccess(false);
-            AlertMessage am = new AlertMessage()
-                    .setSubject("GCloud Licensing - License Hard Limit Reached")
-                    .setMessage("License Group: " + (String) licenseGroupDetails.get("LICENSEGROUPNAME") + " has exceeded its hard limit of licenses. A user has been affected!")
-                    .setSource("LicenseManagement.createUserLicense()")
-                    .setDetails(
-                            "Cloud Platform ID: " + cloudPlatformId
-                            + " | License Group ID: " + (Long) licenseGroupDetails.get("LICENSEGROUPID")
-                            + " | Hard Limit: " + (Long) licenseGroupDetails.get("HARDLIMIT")
-                            + " | Current Licenses: " + lgCount
-                            + " | User UPN: " + upn
-                            + " | User Name: " + (String) licenseGroupDetails.get("USERFULLNAME")
-                            + " | User Type: " + (String) licenseGroupDetails.get("USERTYPENAME")
-                    );
-            alertFunc.alertPlatformAdmins(am);
-            return response;
+        log.info("{}Creating new license for {} on platform {}", logPrefix, upn, cloudPlatformId);
+
+        // reserve the license in the database - the capacity check and insert happen in one statement. The reservation
+        // holds the slot while Azure AD is updated and is reclaimed by the sweeper if it is never confirmed. With the
+        // outbox enabled the license is issued straight away and the Azure AD change is queued in the same transaction
+        LocalDateTime reservationExpiry = LocalDateTime.now().plusSeconds(reservationSeconds);
+        LocalDateTime issuedExpiry = LocalDateTime.now().plusSeconds(entitlement.getDefaultIssueSeconds());
+        AllocationResult allocation = sideEffects.isEnabled()
+                ? dbFunc.issueLicenseWithOutbox(entitlement.getUserId(), upn, licenseGroupId, cloudPlatformId, entitlement.getHardLimit(), issuedExpiry)
+                : dbFunc.reserveLicenseInDatabase(entitlement.getUserId(), licenseGroupId, cloudPlatformId, entitlement.getHardLimit(), reservationExpiry);
+        if (allocation.getInUseCount() != null) {
+            lgCount = allocation.getInUseCount();
+            quotaLedger.recordUsage(licenseGroupId, lgCount);
         }
-        else if (lgCount >= (Long) licenseGroupDetails.get("SOFTLIMIT")) {
+
+        switch (allocation.getStatus()) {
+            case ALLOCATED ->
+                log.info("{}Successfully reserved license {} in database", logPrefix, allocation.getLicenseId());
+            case OVER_HARD_LIMIT -> {
+                return handleOverHardLimit(upn, cloudPlatformId, entitlement, lgCount, fromQueue);
+            }
+            case ALREADY_LICENSED -> {
+                log.warn("{}User {} already holds a license on platform {}", logPrefix, upn, cloudPlatformId);
+                response.setFriendlyMessage("You already have a license allocated for this platform.");
+                response.setDetailedMessage("User already holds a license on Cloud Platform " + cloudPlatformId);
+                response.setSuccess(false);
+                return response;
+            }
+            default -> {
+                log.error("{}An error occurred writing the license to the database", logPrefix);
+                response.setFriendlyMessage("A system error occurred allocating a license. Please contact your team leader.");
+                response.setDetailedMessage("Database reserveLicense function returned error");
+                response.setSuccess(false);
+                AlertMessage am = new AlertMessage()
+                        .setSubject("GCloud Licensing - Database Write Failed")
+                        .setMessage("User: " + upn + " license could not be written to the database")
+                        .setSource("LicenseManagement.createUserLicense()")
+                        .setDetails(
+                                "Cloud Platform ID: " + cloudPlatformId
+                                + " | License Group ID: " + licenseGroupId
+                                + " | Current Licenses: " + lgCount
+                                + " | User UPN: " + upn
+                                + " | User Name: " + entitlement.getUserFullName()
+                                + " | User Type: " + entitlement.getUserTypeName()
+                        );
+                alertFunc.alertPlatformAdmins(am);
+                return response;
+            }
+        }
+
+        // the allocated license is included in the count, so the soft limit is breached once the count exceeds it
+        if (lgCount > entitlement.getSoftLimit()) {
             // over soft limit
-            log.warn("{}License Group {} has {} issued licenses, over soft limit of {}", logPrefix, lgCount, licenseGroupDetails.get("SOFTLIMIT"));
+            log.warn("{}License Group {} has {} issued licenses, over soft limit of {}", logPrefix, licenseGroupId, lgCount, entitlement.getSoftLimit());
 
             AlertMessage am = new AlertMessage()
                     .setSubject("GCloud Licensing - License Soft Limit Reached")
-                    .setMessage("License Group: " + (String) licenseGroupDetails.get("LICENSEGROUPNAME") + " has exceeded its soft limit of licenses. There is no user impact yet.")
+                    .setMessage("License Group: " + entitlement.getLicenseGroupName() + " has exceeded its soft limit of licenses. There is no user impact yet.")
                     .setSource("LicenseManagement.createUserLicense()")
                     .setDetails(
                             "Cloud Platform ID: " + cloudPlatformId
-                            + " | License Group ID: " + (Long) licenseGroupDetails.get("LICENSEGROUPID")
-                            + " | Soft Limit: " + (Long) licenseGroupDetails.get("SOFTLIMIT")
-                            + " | Hard Limit: " + (Long) licenseGroupDetails.get("HARDLIMIT")
+                            + " | License Group ID: " + licenseGroupId
+                            + " | Soft Limit: " + entitlement.getSoftLimit()
+                            + " | Hard Limit: " + entitlement.getHardLimit()
                             + " | Current Licenses: " + lgCount + ""
                     );
             alertFunc.alertPlatformAdmins(am);
         }
 
-        log.info("{}Creating new license for {} on platform {}", logPrefix, upn, cloudPlatformId);
+        if (sideEffects.isEnabled()) {
+            log.info("{}License {} issued. Azure AD group update queued in outbox", logPrefix, allocation.getLicenseId());
+            sideEffects.wakeUp();
+            LicenseDTO issued = new LicenseDTO()
+                    .setId(allocation.getLicenseId())
+                    .setUpn(upn)
+                    .setUserId(entitlement.getUserId())
+                    .setCloudPlatformId(cloudPlatformId)
+                    .setLicenseGroupId(licenseGroupId)
+                    .setIssueDate(LocalDateTime.now())
+                    .setExpiryDate(issuedExpiry);
+            expiryIndex.schedule(issued);
+            eventHub.publish(LicenseEvent.EventType.ISSUED, issued);
+            response.setSuccess(true);
+            return response;
+        }
 
         // update AzureAd Group
         String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
         log.trace("{}Find Azure group '{}' for PlatformID: {}", logPrefix, groupName, cloudPlatformId);
 
         if (groupName != null && !groupName.isBlank()) {
-            Boolean success = adFunc.addUserToGroup(upn, groupName);
+            boolean success;
+            try {
+                success = adFunc.addUserToGroup(upn, groupName);
+            }
+            catch (RuntimeException ex) {
+                // the reservation would otherwise hold a slot until it times out
+                log.error("{}Exception encountered adding user to the AD group", logPrefix, ex);
+                success = false;
+            }
             if (!success) {
-                log.error("{}An error occurred adding user to the AD group", logPrefix);
+                log.error("{}An error occurred adding user to the AD group. Releasing license {}", logPrefix, allocation.getLicenseId());
+                if (dbFunc.releaseReservation(allocation.getLicenseId())) {
+                    releaseSlot(licenseGroupId);
+                }
                 response.setFriendlyMessage("A system error occurred allocating a license. Please contact your team leader.");
                 response.setDetailedMessage("AzureAD addUserToGroup function returned error");
                 response.setSuccess(false);
@@ -152,11 +291,11 @@ public class LicenseManagement {
                         .setSource("LicenseManagement.createUserLicense()")
                         .setDetails(
                                 "Cloud Platform ID: " + cloudPlatformId
-                                + " | License Group ID: " + (Long) licenseGroupDetails.get("LICENSEGROUPID")
+                                + " | License Group ID: " + licenseGroupId
                                 + " | Current Licenses: " + lgCount
                                 + " | User UPN: " + upn
-                                + " | User Name: " + (String) licenseGroupDetails.get("USERFULLNAME")
-                                + " | User Type: " + (String) licenseGroupDetails.get("USERTYPENAME")
+                                + " | User Name: " + entitlement.getUserFullName()
+                                + " | User Type: " + entitlement.getUserTypeName()
                                 + " | Azure AD Group: " + groupName
                         );
                 alertFunc.alertPlatformAdmins(am);
@@ -167,37 +306,342 @@ public class LicenseManagement {
             log.warn("{}No AzureAd group defined for Cloud Platform {}. Not adding to the group", logPrefix, cloudPlatformId);
         }
 
-        // write license to database
-        Long secondsToAdd = (Long) licenseGroupDetails.get("DEFAULTISSUESECONDS");
+        // confirm the reservation as an issued license
+        Long secondsToAdd = entitlement.getDefaultIssueSeconds();
         LocalDateTime expiryTime = LocalDateTime.now().plusSeconds(secondsToAdd);
-        if (dbFunc.writeLicenseToDatabase((Long) licenseGroupDetails.get("USERID"), (Long) licenseGroupDetails.get("LICENSEGROUPID"), cloudPlatformId, expiryTime)) {
-            log.info("{}Successfully wrote license to database. Returning license allocation success", logPrefix);
+        if (dbFunc.confirmReservation(allocation.getLicenseId(), expiryTime)) {
+            log.info("{}Successfully confirmed license in database. Returning license allocation success", logPrefix);
+            LicenseDTO issued = new LicenseDTO()
+                    .setId(allocation.getLicenseId())
+                    .setUpn(upn)
+                    .setUserId(entitlement.getUserId())
+                    .setCloudPlatformId(cloudPlatformId)
+                    .setLicenseGroupId(licenseGroupId)
+                    .setIssueDate(LocalDateTime.now())
+                    .setExpiryDate(expiryTime);
+            expiryIndex.schedule(issued);
+            eventHub.publish(LicenseEvent.EventType.ISSUED, issued);
             response.setSuccess(true);
+            return response;
         }
-        else {
-            log.error("{}An error occurred writing the license to the database", logPrefix);
-            response.setFriendlyMessage("A system error occurred allocating a license. Please contact your team leader.");
-            response.setDetailedMessage("Database writeLicense function returned error");
-            response.setSuccess(false);
+
+        log.error("{}An error occurred confirming the license reservation in the database", logPrefix);
+        if (dbFunc.releaseReservation(allocation.getLicenseId())) {
+            releaseSlot(licenseGroupId);
+        }
+        if (groupName != null && !groupName.isBlank()) {
+            log.debug("{}Removing user from AD group after failed confirmation", logPrefix);
+            adFunc.removeUserFromGroup(upn, groupName);
+        }
+        response.setFriendlyMessage("A system error occurred allocating a license. Please contact your team leader.");
+        response.setDetailedMessage("Database confirmReservation function returned error");
+        response.setSuccess(false);
+        AlertMessage am = new AlertMessage()
+                .setSubject("GCloud Licensing - Database Write Failed")
+                .setMessage("User: " + upn + " license reservation could not be confirmed in the database")
+                .setSource("LicenseManagement.createUserLicense()")
+                .setDetails(
+                        "Cloud Platform ID: " + cloudPlatformId
+                        + " | License Group ID: " + licenseGroupId
+                        + " | License ID: " + allocation.getLicenseId()
+                        + " | User UPN: " + upn
+                        + " | User Name: " + entitlement.getUserFullName()
+                        + " | User Type: " + entitlement.getUserTypeName()
+                        + " | Azure AD Group: " + groupName
+                );
+        alertFunc.alertPlatformAdmins(am);
+        return response;
+    }
+
+    private BooleanResponse handleOverHardLimit(String upn, Long cloudPlatformId, UserEntitlement entitlement, Long lgCount, boolean fromQueue) {
+        final String logPrefix = "handleOverHardLimit() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!waitQueue.isEnabled()) {
+            return rejectOverHardLimit(upn, cloudPlatformId, entitlement, lgCount);
+        }
+        // only alert the first time a user is turned away, not each time the queue retries them
+        if (!fromQueue) {
+            rejectOverHardLimit(upn, cloudPlatformId, entitlement, lgCount);
+        }
+        Long licenseGroupId = entitlement.getLicenseGroupId();
+        int position = waitQueue.enqueue(licenseGroupId, upn, cloudPlatformId, fromQueue);
+        return queuedResponse(licenseGroupId, position);
+    }
+
+    private BooleanResponse queuedResponse(Long licenseGroupId, int position) {
+        return new BooleanResponse()
+                .setSuccess(false)
+                .setQueuePosition(position)
+                .setFriendlyMessage("All licenses are currently in use. You are number " + position + " in the queue and a license will be allocated automatically when one becomes available.")
+                .setDetailedMessage("Queued at position " + position + " for License Group " + licenseGroupId);
+    }
+
+    // serves a request from the wait queue. Returns false if the license group is still full
+    private boolean serveQueuedRequest(QueuedLicenseRequest request) {
+        final String logPrefix = "serveQueuedRequest() - ";
+        log.trace("{}Entering Method", logPrefix);
+        BooleanResponse response = createUserLicense(request.getUpn(), request.getCloudPlatformId(), true);
+        if (response.isSuccess()) {
+            log.info("{}Allocated queued license for {} on platform {} after waiting since {}", logPrefix, request.getUpn(), request.getCloudPlatformId(), request.getEnqueued());
             AlertMessage am = new AlertMessage()
-                    .setSubject("GCloud Licensing - Database Write Failed")
-                    .setMessage("User: " + upn + " license could not be written to the database")
-                    .setSource("LicenseManagement.createUserLicense()")
+                    .setSubject("GCloud Licensing - License Allocated")
+                    .setMessage("A license has become available and has been allocated to you. You can now log into Genesys Cloud.")
+                    .setSource("LicenseManagement.serveQueuedRequest()")
+                    .setDetails("Cloud Platform ID: " + request.getCloudPlatformId());
+            alertFunc.alertUser(am, request.getUpn());
+            return true;
+        }
+        if (response.getQueuePosition() != null) {
+            log.debug("{}License Group {} is still full. {} remains at the head of the queue", logPrefix, request.getLicenseGroupId(), request.getUpn());
+            return false;
+        }
+        log.warn("{}Queued request for {} on platform {} could not be served: {}", logPrefix, request.getUpn(), request.getCloudPlatformId(), response.getDetailedMessage());
+        return true;
+    }
+
+    // a license in the group has been released, so update the ledger and let the next queued user have it
+    private void releaseSlot(Long licenseGroupId) {
+        quotaLedger.licenseReturned(licenseGroupId);
+        waitQueue.slotFreed(licenseGroupId);
+    }
+
+    // Version tag for a user's license page, built without loading the license rows. Null when it cannot be worked out
+    // cheaply (platform index disabled or not loaded, or a database error) and the caller has to build the page
+    public String getUserLicenseVersion(String upn, Long canExtendSeconds) {
+        final String logPrefix = "getUserLicenseVersion() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<PlatformDTO> platforms = platformIndex.isEnabled() ? platformIndex.getPlatforms(upn) : null;
+        if (platforms == null) {
+            return null;
+        }
+        String licenseVersion = dbFunc.getUserLicenseVersion(upn, LocalDateTime.now().plusSeconds(canExtendSeconds));
+        if (licenseVersion == null) {
+            return null;
+        }
+        int queueHash = 1;
+        for (PlatformDTO plat : platforms) {
+            queueHash = 31 * queueHash + Objects.hashCode(getQueuePosition(upn, plat.getId()));
+        }
+        return String.format("%s-%08x-%08x", licenseVersion, platforms.hashCode(), queueHash);
+    }
+
+    public Integer getQueuePosition(String upn, Long cloudPlatformId) {
+        return waitQueue.getPosition(upn, cloudPlatformId);
+    }
+
+    public BooleanResponse leaveQueue(String upn, Long cloudPlatformId) {
+        final String logPrefix = "leaveQueue() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (waitQueue.dequeue(upn, cloudPlatformId)) {
+            return new BooleanResponse().setSuccess(true);
+        }
+        log.warn("{}User {} is not queued for platform {}", logPrefix, upn, cloudPlatformId);
+        return new BooleanResponse()
+                .setSuccess(false)
+                .setDetailedMessage("User is not queued for Cloud Platform " + cloudPlatformId)
+                .setFriendlyMessage("You are not waiting for a license on this platform");
+    }
+
+    private BooleanResponse rejectOverHardLimit(String upn, Long cloudPlatformId, UserEntitlement entitlement, Long lgCount) {
+        final String logPrefix = "rejectOverHardLimit() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.error("{}License Group {} has {} issued licenses, over hard limit of {}", logPrefix, entitlement.getLicenseGroupId(), lgCount, entitlement.getHardLimit());
+        BooleanResponse response = new BooleanResponse();
+        response.setFriendlyMessage("There are insufficent licenses available at this time. Please contact your team leader.");
+        response.setDetailedMessage("License Group " + entitlement.getLicenseGroupId() + " has " + lgCount + " >  Hard Limit: " + entitlement.getHardLimit() + "");
+        response.setSuccess(false);
+        AlertMessage am = new AlertMessage()
+                .setSubject("GCloud Licensing - License Hard Limit Reached")
+                .setMessage("License Group: " + entitlement.getLicenseGroupName() + " has exceeded its hard limit of licenses. A user has been affected!")
+                .setSource("LicenseManagement.createUserLicense()")
+                .setDetails(
+                        "Cloud Platform ID: " + cloudPlatformId
+                        + " | License Group ID: " + entitlement.getLicenseGroupId()
+                        + " | Hard Limit: " + entitlement.getHardLimit()
+                        + " | Current Licenses: " + lgCount
+                        + " | User UPN: " + upn
+                        + " | User Name: " + entitlement.getUserFullName()
+                        + " | User Type: " + entitlement.getUserTypeName()
+                );
+        alertFunc.alertPlatformAdmins(am);
+        return response;
+    }
+
+    // Create licenses for many users at once
+    public BulkLicenseResponse createUserLicenses(Collection<String> upns, Long cloudPlatformId) {
+        final String logPrefix = "createUserLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (upns == null || upns.isEmpty()) {
+            log.error("{}UPN list cannot be null or empty", logPrefix);
+            throw new IllegalArgumentException("UPN list cannot be null or empty");
+        }
+        if (cloudPlatformId == null || cloudPlatformId == 0) {
+            log.error("{}CloudPlatformId cannot be null or zero", logPrefix);
+            throw new IllegalArgumentException("CloudPlatformId cannot be null or zero");
+        }
+
+        Set<String> requestedUpns = new LinkedHashSet<>();
+        upns.stream().filter(u -> u != null && !u.isBlank()).map(String::trim).forEach(requestedUpns::add);
+        log.info("{}Bulk allocating licenses for {} users on platform {}", logPrefix, requestedUpns.size(), cloudPlatformId);
+        Map<String, BulkLicenseResponse.UserResult> results = new LinkedHashMap<>();
+        requestedUpns.forEach(upn -> results.put(upn, new BulkLicenseResponse.UserResult().setUpn(upn)));
+
+        // look up license groups for all users in one query
+        Map<String, UserEntitlement> foundDetails = entitlementCache.getEntitlements(requestedUpns, cloudPlatformId);
+        if (foundDetails == null) {
+            results.values().forEach(r -> r.setSuccess(false)
+                    .setFriendlyMessage("A system error occurred allocating a license.")
+                    .setDetailedMessage("Unable to retrieve license group details"));
+            return buildBulkResponse(results);
+        }
+        Map<String, UserEntitlement> userDetails = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        userDetails.putAll(foundDetails);
+
+        Map<Long, List<String>> groupUsers = new LinkedHashMap<>();
+        for (String upn : requestedUpns) {
+            UserEntitlement details = userDetails.get(upn);
+            if (details == null) {
+                results.get(upn).setSuccess(false)
+                        .setFriendlyMessage("The account is not configured correctly.")
+                        .setDetailedMessage("Unable to retrieve license group details");
+                continue;
+            }
+            groupUsers.computeIfAbsent(details.getLicenseGroupId(), k -> new ArrayList<>()).add(upn);
+        }
+
+        String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
+        groupUsers.forEach((licenseGroupId, groupUpns) -> allocateGroupLicenses(cloudPlatformId, licenseGroupId, groupUpns, userDetails, groupName, results));
+
+        BulkLicenseResponse response = buildBulkResponse(results);
+        log.info("{}Bulk allocation on platform {} finished: {} allocated, {} failed", logPrefix, cloudPlatformId, response.getAllocated(), response.getFailed());
+        if (response.getFailed() > 0) {
+            AlertMessage am = new AlertMessage()
+                    .setSubject("GCloud Licensing - Bulk Allocation Incomplete")
+                    .setMessage(response.getFailed() + " of " + results.size() + " users could not be allocated a license")
+                    .setSource("LicenseManagement.createUserLicenses()")
                     .setDetails(
                             "Cloud Platform ID: " + cloudPlatformId
-                            + " | License Group ID: " + (Long) licenseGroupDetails.get("LICENSEGROUPID")
-                            + " | Current Licenses: " + lgCount
-                            + " | User UPN: " + upn
-                            + " | User Name: " + (String) licenseGroupDetails.get("USERFULLNAME")
-                            + " | User Type: " + (String) licenseGroupDetails.get("USERTYPENAME")
-                            + " | Azure AD Group: " + groupName
+                            + " | Failed Users: " + results.values().stream().filter(r -> !r.isSuccess()).map(BulkLicenseResponse.UserResult::getUpn).toList()
                     );
             alertFunc.alertPlatformAdmins(am);
         }
-
         return response;
     }
 
+    private void allocateGroupLicenses(Long cloudPlatformId, Long licenseGroupId, List<String> groupUpns, Map<String, UserEntitlement> userDetails, String groupName, Map<String, BulkLicenseResponse.UserResult> results) {
+        final String logPrefix = "allocateGroupLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        UserEntitlement groupDetails = userDetails.get(groupUpns.get(0));
+        Long hardLimit = groupDetails.getHardLimit();
+        Map<Long, String> userIdToUpn = new LinkedHashMap<>();
+        groupUpns.forEach(upn -> userIdToUpn.put(userDetails.get(upn).getUserId(), upn));
+
+        // reserve capacity for the whole group at once
+        LocalDateTime reservationExpiry = LocalDateTime.now().plusSeconds(reservationSeconds);
+        Map<Long, AllocationResult> reservations = dbFunc.reserveLicensesInDatabase(userIdToUpn.keySet(), licenseGroupId, cloudPlatformId, hardLimit, reservationExpiry);
+        Map<String, Long> reservedUpns = new LinkedHashMap<>();
+        boolean hardLimitReached = false;
+        for (Map.Entry<Long, AllocationResult> entry : reservations.entrySet()) {
+            String upn = userIdToUpn.get(entry.getKey());
+            AllocationResult allocation = entry.getValue();
+            if (allocation.getInUseCount() != null) {
+                quotaLedger.recordUsage(licenseGroupId, allocation.getInUseCount());
+            }
+            switch (allocation.getStatus()) {
+                case ALLOCATED ->
+                    reservedUpns.put(upn, allocation.getLicenseId());
+                case ALREADY_LICENSED ->
+                    results.get(upn).setSuccess(false)
+                            .setFriendlyMessage("A license is already allocated for this platform.")
+                            .setDetailedMessage("User already holds a license on Cloud Platform " + cloudPlatformId);
+                case OVER_HARD_LIMIT -> {
+                    hardLimitReached = true;
+                    results.get(upn).setSuccess(false)
+                            .setFriendlyMessage("There are insufficent licenses available at this time.")
+                            .setDetailedMessage("License Group " + licenseGroupId + " is at its hard limit of " + hardLimit);
+                }
+                default ->
+                    results.get(upn).setSuccess(false)
+                            .setFriendlyMessage("A system error occurred allocating a license.")
+                            .setDetailedMessage("Database reserveLicenses function returned error");
+            }
+        }
+        if (hardLimitReached) {
+            AlertMessage am = new AlertMessage()
+                    .setSubject("GCloud Licensing - License Hard Limit Reached")
+                    .setMessage("License Group: " + groupDetails.getLicenseGroupName() + " reached its hard limit during a bulk allocation. Users have been affected!")
+                    .setSource("LicenseManagement.createUserLicenses()")
+                    .setDetails(
+                            "Cloud Platform ID: " + cloudPlatformId
+                            + " | License Group ID: " + licenseGroupId
+                            + " | Hard Limit: " + hardLimit
+                    );
+            alertFunc.alertPlatformAdmins(am);
+        }
+        if (reservedUpns.isEmpty()) {
+            return;
+        }
+
+        // update the AzureAd group for all reserved users, releasing any that fail
+        if (groupName != null && !groupName.isBlank()) {
+            Map<String, Boolean> added = adFunc.addUsersToGroup(reservedUpns.keySet(), groupName);
+            for (String upn : new ArrayList<>(reservedUpns.keySet())) {
+                if (!Boolean.TRUE.equals(added.get(upn))) {
+                    log.error("{}Could not add {} to AD group {}. Releasing reservation", logPrefix, upn, groupName);
+                    if (dbFunc.releaseReservation(reservedUpns.remove(upn))) {
+                        releaseSlot(licenseGroupId);
+                    }
+                    results.get(upn).setSuccess(false)
+                            .setFriendlyMessage("A system error occurred allocating a license.")
+                            .setDetailedMessage("AzureAD addUserToGroup function returned error");
+                }
+            }
+        }
+        else {
+            log.warn("{}No AzureAd group defined for Cloud Platform {}. Not adding to the group", logPrefix, cloudPlatformId);
+        }
+
+        // confirm all reservations in one batch
+        LocalDateTime expiryTime = LocalDateTime.now().plusSeconds(groupDetails.getDefaultIssueSeconds());
+        Set<Long> confirmed = dbFunc.confirmReservations(reservedUpns.values(), expiryTime);
+        reservedUpns.forEach((upn, licenseId) -> {
+            if (confirmed.contains(licenseId)) {
+                results.get(upn).setSuccess(true).setLicenseId(licenseId);
+                LicenseDTO issued = new LicenseDTO()
+                        .setId(licenseId)
+                        .setUpn(upn)
+                        .setUserId(userDetails.get(upn).getUserId())
+                        .setCloudPlatformId(cloudPlatformId)
+                        .setLicenseGroupId(licenseGroupId)
+                        .setIssueDate(LocalDateTime.now())
+                        .setExpiryDate(expiryTime);
+                expiryIndex.schedule(issued);
+                eventHub.publish(LicenseEvent.EventType.ISSUED, issued);
+            }
+            else {
+                log.error("{}Could not confirm reservation {} for {}", logPrefix, licenseId, upn);
+                if (dbFunc.releaseReservation(licenseId)) {
+                    releaseSlot(licenseGroupId);
+                }
+                if (groupName != null && !groupName.isBlank()) {
+                    adFunc.removeUserFromGroup(upn, groupName);
+                }
+                results.get(upn).setSuccess(false)
+                        .setFriendlyMessage("A system error occurred allocating a license.")
+                        .setDetailedMessage("Database confirmReservations function returned error");
+            }
+        });
+    }
+
+    private BulkLicenseResponse buildBulkResponse(Map<String, BulkLicenseResponse.UserResult> results) {
+        List<BulkLicenseResponse.UserResult> resultList = new ArrayList<>(results.values());
+        int allocated = (int) resultList.stream().filter(BulkLicenseResponse.UserResult::isSuccess).count();
+        return new BulkLicenseResponse()
+                .setResults(resultList)
+                .setAllocated(allocated)
+                .setFailed(resultList.size() - allocated);
+    }
+
     // Get existing license from database
     public Map<Long, LicenseDTO> getUserLicenses(String upn) {
         final String logPrefix = "getUserLicenses() - ";
@@ -208,6 +652,7 @@ public class LicenseManagement {
             throw new IllegalArgumentException("UPN cannot be null or empty");
         }
 
+        // always read from the database: the expiry index only sees other nodes' changes when it is reloaded
         Map<Long, LicenseDTO> licenses = dbFunc.getUserLicensesFromDB(upn);
         log.info("{}Found a total of {} issued licenses for user {}", logPrefix, licenses.size(), upn);
         return licenses;
@@ -318,8 +763,8 @@ public class LicenseManagement {
         String upn = license.getUpn();
         Long cloudPlatformId = license.getCloudPlatformId();
         log.debug("{}Getting license group details", logPrefix);
-        Map<String, Object> licenseGroupDetails = dbFunc.getUserLicenseGroupDetails(upn, cloudPlatformId);
-        if (licenseGroupDetails == null) {
+        UserEntitlement entitlement = entitlementCache.getEntitlement(upn, cloudPlatformId);
+        if (entitlement == null) {
             response.setFriendlyMessage("Your account is not configured correctly. Please contact your team leader.");
             response.setDetailedMessage("Unable to retrieve license group details");
             response.setSuccess(false);
@@ -332,11 +777,13 @@ public class LicenseManagement {
             return response;
         }
 
-        Long secondsToAdd = (Long) licenseGroupDetails.get("EXTENSIONTIMESECONDS");
+        Long secondsToAdd = entitlement.getExtensionTimeSeconds();
         LocalDateTime newExpiry = currentExpiry.plusSeconds(secondsToAdd);
         log.debug("{}Setting new expiry {}", logPrefix, newExpiry.format(DateTimeFormatter.ISO_DATE_TIME));
         log.debug("{}About to write to database", logPrefix);
         if (dbFunc.extendLicense(licenseId, newExpiry)) {
+            expiryIndex.schedule(license.setExpiryDate(newExpiry));
+            eventHub.publish(LicenseEvent.EventType.EXTENDED, license);
             response.setSuccess(true);
             return response;
         }
@@ -356,14 +803,57 @@ public class LicenseManagement {
             throw new IllegalArgumentException("licenseId cannot be null or zero");
         }
 
+        // the expiry dispatcher, the safety sweep and the user can all try to return the same license
+        if (!returnsInProgress.add(licenseId)) {
+            log.warn("{}License {} is already being returned", logPrefix, licenseId);
+            return new BooleanResponse()
+                    .setSuccess(false)
+                    .setDetailedMessage("License ID #" + licenseId + " is already being returned")
+                    .setFriendlyMessage("This license is already being returned");
+        }
+        try {
+            return processLicenseReturn(licenseId, reason);
+        }
+        finally {
+            returnsInProgress.remove(licenseId);
+        }
+    }
+
+    private BooleanResponse processLicenseReturn(Long licenseId, ReturnReason reason) {
+        final String logPrefix = "processLicenseReturn() - ";
+        log.trace("{}Entering Method", logPrefix);
         BooleanResponse response = new BooleanResponse();
 
         log.info("{}Returning license {}", logPrefix, licenseId);
 
         LicenseDTO license = dbFunc.getLicenseFromDB(licenseId);
+        if (license == null) {
+            // expiry now runs concurrently, so the license may already have been returned by another worker or the user
+            log.warn("{}License {} does not exist. It may already have been returned", logPrefix, licenseId);
+            response.setSuccess(false)
+                    .setDetailedMessage("License ID #" + licenseId + " does not exist")
+                    .setFriendlyMessage("The license you are trying to return is invalid");
+            return response;
+        }
         String upn = license.getUpn();
         Long cloudPlatformId = license.getCloudPlatformId();
 
+        if (sideEffects.isEnabled()) {
+            // history, delete and the queued Azure AD removal and Genesys logout are committed together
+            if (dbFunc.returnLicenseWithOutbox(license, reason)) {
+                releaseSlot(license.getLicenseGroupId());
+                expiryIndex.remove(licenseId);
+                sideEffects.wakeUp();
+                eventHub.publish(reason == ReturnReason.EXPIRED ? LicenseEvent.EventType.EXPIRED : LicenseEvent.EventType.RETURNED, license);
+                response.setSuccess(true);
+                return response;
+            }
+            response.setSuccess(false)
+                    .setDetailedMessage("Error returning license in database")
+                    .setFriendlyMessage("There was an error returning your license");
+            return response;
+        }
+
         // Remove from AD Group
         log.debug("{}About to remove user from AD Group", logPrefix);
         String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
@@ -402,29 +892,12 @@ public class LicenseManagement {
             return response;
         }
 
-        // Write history record
-        log.debug("{}About to write history record", logPrefix);
-        if (!dbFunc.writeLicenseHistoryRecord(licenseId, reason)) {
-            log.warn("{}Unable to write history record. Alerting", logPrefix);
-            AlertMessage am = new AlertMessage()
-                    .setSubject("GCloud Licensing - License History Failed")
-                    .setMessage("Could not write history record to database. This is not critical and does not impact the user.")
-                    .setSource("LicenseManagement.createUserLicense()")
-                    .setDetails(
-                            "Cloud Platform ID: " + cloudPlatformId
-                            + " | License ID: " + licenseId
-                            + " | User UPN: " + upn
-                            + " | Azure AD Group: " + groupName
-                    );
-            alertFunc.alertPlatformAdmins(am);
-        }
-        else {
-            log.debug("{}History record written succesfully", logPrefix);
-        }
-
-        // Delete from Database
-        log.debug("{}About to delete from database", logPrefix);
-        if (dbFunc.deleteLicense(licenseId)) {
+        // Delete from Database and write history record in one transaction, reusing the license already loaded
+        log.debug("{}About to delete from database and write history record", logPrefix);
+        if (dbFunc.retireLicense(license, reason)) {
+            releaseSlot(license.getLicenseGroupId());
+            expiryIndex.remove(licenseId);
+            eventHub.publish(reason == ReturnReason.EXPIRED ? LicenseEvent.EventType.EXPIRED : LicenseEvent.EventType.RETURNED, license);
             response.setSuccess(true);
             return response;
         }
@@ -446,29 +919,243 @@ public class LicenseManagement {
             throw new IllegalArgumentException("UPN cannot be null or empty");
         }
 
-        List<PlatformDTO> platforms = dbFunc.getPlatformsForUserFromDB(upn);
+        List<PlatformDTO> platforms = platformIndex.isEnabled() ? platformIndex.getPlatforms(upn) : null;
+        if (platforms == null) {
+            platforms = dbFunc.getPlatformsForUserFromDB(upn);
+        }
         log.info("{}Found a total of {} platforms for user {}", logPrefix, platforms.size(), upn);
         return platforms;
     }
 
+    // Compares the mirrored access group membership with the issued licenses. Reads only the mirror and the database,
+    // plus Graph lookups for any licensed users whose ids are not already cached
+    public GroupReconciliationResponse getGroupReconciliation(Long cloudPlatformId) {
+        final String logPrefix = "getGroupReconciliation() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
+        GroupReconciliationResponse response = new GroupReconciliationResponse()
+                .setCloudPlatformId(cloudPlatformId)
+                .setGroupName(groupName);
+        if (groupName == null || groupName.isBlank()) {
+            return response.setMessage("No Azure AD access group is configured for this platform");
+        }
+        String groupId = adFunc.getGroupId(groupName);
+        if (groupId == null) {
+            return response.setMessage("Access group could not be found in Azure AD");
+        }
+        response.setGroupId(groupId);
+
+        Set<String> members = membershipMirror.getMembers(groupId);
+        Instant lastSync = membershipMirror.getLastSync(groupId);
+        if (lastSync != null) {
+            response.setLastSync(LocalDateTime.ofInstant(lastSync, ZoneId.systemDefault()));
+        }
+        if (members == null) {
+            return response.setMessage(membershipMirror.isEnabled() ? "Group mirror is not in sync yet" : "Group mirror is disabled");
+        }
+        response.setMirrorSynced(true)
+                .setGroupMemberCount(members.size());
+
+        List<String> licensedUpns = dbFunc.getLicensedUpns(cloudPlatformId);
+        if (licensedUpns == null) {
+            return response.setMessage("Error reading issued licenses from database");
+        }
+        Set<String> licensedIds = new HashSet<>();
+        adFunc.getUserIds(new LinkedHashSet<>(licensedUpns)).forEach((upn, userId) -> {
+            if (userId == null) {
+                response.getUnresolvedUsers().add(upn);
+            }
+            else {
+                licensedIds.add(userId);
+                if (!members.contains(userId)) {
+                    response.getLicensedNotInGroup().add(upn);
+                }
+            }
+        });
+        response.setLicensedUserCount(licensedIds.size() + response.getUnresolvedUsers().size());
+        for (String userId : members) {
+            if (!licensedIds.contains(userId)) {
+                String upn = adFunc.getCachedUpn(userId);
+                response.getInGroupWithoutLicense().add(upn == null ? userId : upn);
+            }
+        }
+        log.info("{}Platform {}: {} licensed not in group, {} in group without license, {} unresolved", logPrefix, cloudPlatformId, response.getLicensedNotInGroup().size(), response.getInGroupWithoutLicense().size(), response.getUnresolvedUsers().size());
+        return response;
+    }
+
     public enum ReturnReason {
         AGENT_REQEUST,
         ADMIN_FORCE,
         EXPIRED
     }
 
+    public enum ExpiryMode {
+        PER_LICENSE,
+        SET_BASED
+    }
+
     public void expireOldLicenses() {
         final String logPrefix = "expireOldLicenses() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.debug("{}Get expired licenses from DB", logPrefix);
-        List<LicenseDTO> expiredLicenses = dbFunc.getExpiredLicensesFromDB();
-        log.trace("{}Iterating licenses", logPrefix);
-        for (LicenseDTO lic : expiredLicenses) {
+        if (expiryMode == ExpiryMode.SET_BASED) {
+            expireLicensesSetBased();
+            if (Boolean.TRUE.equals(expiryEnabled)) {
+                expiryIndex.refresh();
+            }
+            return;
+        }
+        log.debug("{}Streaming expired licenses from DB", logPrefix);
+        // each page is handed to the expiry engine as soon as it is read, so a large backlog is worked through in
+        // page-sized pieces rather than loaded into memory at once
+        boolean complete = dbFunc.streamExpiredLicenses(page -> {
+            log.trace("{}Handing {} licenses to expiry engine", logPrefix, page.size());
+            ExpiryStatistics stats = expiryEngine.processLicenses(page, lic -> {
+                log.trace("{}Expiring : {}", logPrefix, lic);
+                return returnUserLicense(lic.getId(), ReturnReason.EXPIRED);
+            });
+            log.info("{}Finished expiring page of licenses: {}", logPrefix, stats);
+        });
+        if (!complete) {
+            log.warn("{}Could not read all expired licenses. The remainder will be picked up on the next sweep", logPrefix);
+        }
+        if (Boolean.TRUE.equals(expiryEnabled)) {
+            log.debug("{}Refreshing expiry index to pick up licenses issued by other nodes", logPrefix);
+            expiryIndex.refresh();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    private void expireIndexedLicenses(List<LicenseDTO> dueLicenses) {
+        final String logPrefix = "expireIndexedLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (expiryMode == ExpiryMode.SET_BASED) {
+            // the database decides what has expired, so extended or already returned licenses are left alone
+            expireLicensesSetBased();
+            return;
+        }
+        ExpiryStatistics stats = expiryEngine.processLicenses(dueLicenses, lic -> {
+            // re-check the database as the license may have been extended or returned on another node
+            LicenseDTO current = dbFunc.getLicenseFromDB(lic.getId());
+            if (current == null) {
+                log.debug("{}License {} no longer exists", logPrefix, lic.getId());
+                expiryIndex.remove(lic.getId());
+                return new BooleanResponse().setSuccess(true).setDetailedMessage("License already returned");
+            }
+            if (current.getExpiryDate().isAfter(LocalDateTime.now())) {
+                log.debug("{}License {} has been extended to {}. Rescheduling", logPrefix, lic.getId(), current.getExpiryDate());
+                expiryIndex.schedule(current);
+                return new BooleanResponse().setSuccess(true).setDetailedMessage("License extended");
+            }
             log.trace("{}Expiring : {}", logPrefix, lic);
-            BooleanResponse resp = returnUserLicense(lic.getId(), ReturnReason.EXPIRED);
-            log.debug("{}Expiry status for {} is {} - ErrorCode: {}", logPrefix, lic.getId(), resp.isSuccess(), resp.getDetailedMessage());
+            return returnUserLicense(lic.getId(), ReturnReason.EXPIRED);
+        }, (lic, resp) -> {
+            if (!resp.isSuccess()) {
+                expiryIndex.retryLater(lic);
+            }
+        });
+        log.info("{}Finished expiring indexed licenses: {}", logPrefix, stats);
+    }
+
+    private void expireLicensesSetBased() {
+        final String logPrefix = "expireLicensesSetBased() - ";
+        log.trace("{}Entering Method", logPrefix);
+        int total = 0;
+        while (true) {
+            List<LicenseDTO> expired = dbFunc.expireLicensesInDatabase(expiryBatchSize, sideEffects.isEnabled());
+            if (expired == null || expired.isEmpty()) {
+                break;
+            }
+            total += expired.size();
+            cleanUpExpiredLicenses(expired);
+            if (expired.size() < expiryBatchSize) {
+                break;
+            }
+        }
+        log.info("{}Set-based expiry removed {} licenses", logPrefix, total);
+    }
+
+    // the licenses are already archived and deleted, so only the Azure AD and Genesys clean-up remains
+    private void cleanUpExpiredLicenses(List<LicenseDTO> expired) {
+        final String logPrefix = "cleanUpExpiredLicenses() - ";
+        log.trace("{}Entering Method", logPrefix);
+        for (LicenseDTO lic : expired) {
+            releaseSlot(lic.getLicenseGroupId());
+            expiryIndex.remove(lic.getId());
+            eventHub.publish(LicenseEvent.EventType.EXPIRED, lic);
         }
-        log.info("{}Finished expiring licenses", logPrefix);
+        if (sideEffects.isEnabled()) {
+            log.debug("{}Clean-up for {} licenses queued in outbox", logPrefix, expired.size());
+            sideEffects.wakeUp();
+            return;
+        }
+
+        // failures are added from the expiry engine's threads
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<LicenseDTO> toLogOut = new ArrayList<>();
+        Map<Long, List<LicenseDTO>> byPlatform = new LinkedHashMap<>();
+        expired.forEach(lic -> byPlatform.computeIfAbsent(lic.getCloudPlatformId(), k -> new ArrayList<>()).add(lic));
+        byPlatform.forEach((cloudPlatformId, licenses) -> {
+            String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
+            if (groupName == null || groupName.isBlank()) {
+                log.warn("{}No AzureAd group defined for Cloud Platform {}. Not removing users from the group", logPrefix, cloudPlatformId);
+                toLogOut.addAll(licenses);
+                return;
+            }
+            Map<String, Boolean> removed = adFunc.removeUsersFromGroup(licenses.stream().map(LicenseDTO::getUpn).toList(), groupName);
+            for (LicenseDTO lic : licenses) {
+                if (Boolean.TRUE.equals(removed.get(lic.getUpn()))) {
+                    toLogOut.add(lic);
+                }
+                else {
+                    failures.add(lic.getUpn() + " (platform " + cloudPlatformId + "): AzureAD removal failed");
+                }
+            }
+        });
+
+        ExpiryStatistics stats = expiryEngine.processLicenses(toLogOut,
+                lic -> cloudFunc.forceLogOutUser(lic.getUpn(), lic.getCloudPlatformId())
+                ? new BooleanResponse().setSuccess(true)
+                : new BooleanResponse().setSuccess(false).setDetailedMessage("Error logging user out of Cloud"),
+                (lic, resp) -> {
+                    if (!resp.isSuccess()) {
+                        failures.add(lic.getUpn() + " (platform " + lic.getCloudPlatformId() + "): " + resp.getDetailedMessage());
+                    }
+                });
+        log.info("{}Cleaned up {} expired licenses: {}", logPrefix, expired.size(), stats);
+
+        if (!failures.isEmpty()) {
+            AlertMessage am = new AlertMessage()
+                    .setSubject("GCloud Licensing - Expired License Clean-up Failed")
+                    .setMessage(failures.size() + " expired licenses were removed from the database but their access could not be fully revoked. Manual action is required.")
+                    .setSource("LicenseManagement.cleanUpExpiredLicenses()")
+                    .setDetails(String.join(" | ", failures));
+            alertFunc.alertPlatformAdmins(am);
+        }
+    }
+
+    public void reclaimExpiredReservations() {
+        final String logPrefix = "reclaimExpiredReservations() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<LicenseDTO> reclaimed = dbFunc.reclaimExpiredReservations();
+        Map<Long, List<String>> byPlatform = new LinkedHashMap<>();
+        for (LicenseDTO lic : reclaimed) {
+            log.warn("{}Reservation {} for {} on platform {} was never confirmed. Releasing", logPrefix, lic.getId(), lic.getUpn(), lic.getCloudPlatformId());
+            releaseSlot(lic.getLicenseGroupId());
+            byPlatform.computeIfAbsent(lic.getCloudPlatformId(), k -> new ArrayList<>()).add(lic.getUpn());
+        }
+        // the requests may have added the users to the group before they were abandoned
+        byPlatform.forEach((cloudPlatformId, upns) -> {
+            String groupName = cloudFunc.getAzureAdAccessGroup(cloudPlatformId);
+            if (groupName == null || groupName.isBlank()) {
+                return;
+            }
+            adFunc.removeUsersFromGroup(upns, groupName).forEach((upn, removed) -> {
+                if (!removed) {
+                    log.error("{}Could not remove {} from AD group {} after reclaiming reservation", logPrefix, upn, groupName);
+                }
+            });
+        });
         log.trace("{}Leaving Method", logPrefix);
     }
 
@@ -0,0 +1,135 @@
+/*
+ *   gcloudlicensemanagement - LicenseQuotaLedger.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import jakarta.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory count of issued licenses per license group. Seeded from the
+ * database at startup, refreshed with the count returned by each allocation,
+ * decremented as licenses are returned and periodically reconciled against the
+ * database by the scheduler.
+ * <p>
+ * The ledger cannot see returns made on other nodes, so it only turns a
+ * request away on its own when the count was read from the database within
+ * the last license.ledger.trust-seconds and still shows the group full after
+ * this node's returns. Anything else goes to the guarded insert, which
+ * enforces the hard limit exactly.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+@DependsOn("CloudDatabaseConnection")
+public class LicenseQuotaLedger {
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Value("${license.ledger.trust-seconds:5}")
+    private Long trustSeconds;
+
+    private final Map<Long, Usage> groupUsage = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void seedLedger() {
+        final String logPrefix = "seedLedger() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Seeding license quota ledger from database", logPrefix);
+        reconcile();
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    public void reconcile() {
+        final String logPrefix = "reconcile() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        Map<Long, Long> licenseCount = dbFunc.getCurrentLicenseUsage();
+        if (licenseCount.isEmpty()) {
+            log.warn("{}No license usage returned from database. Keeping existing ledger values", logPrefix);
+            return;
+        }
+
+        long readAt = System.nanoTime();
+        licenseCount.forEach((groupId, inUse) -> {
+            Usage previous = groupUsage.put(groupId, new Usage(inUse, readAt));
+            if (previous != null && previous.inUse != inUse) {
+                log.debug("{}License Group {} ledger drift corrected {} -> {}", logPrefix, groupId, previous.inUse, inUse);
+            }
+        });
+        groupUsage.keySet().retainAll(licenseCount.keySet());
+        log.debug("{}Ledger reconciled for {} license groups", logPrefix, groupUsage.size());
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    // the last known count, or null if the group has not been seen yet. Never goes to the database
+    Long getUsage(Long licenseGroupId) {
+        Usage usage = groupUsage.get(licenseGroupId);
+        return usage == null ? null : usage.inUse;
+    }
+
+    // true only when a recent database count, less this node's returns since, leaves no room in the group
+    boolean isKnownFull(Long licenseGroupId, Long hardLimit) {
+        final String logPrefix = "isKnownFull() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Usage usage = groupUsage.get(licenseGroupId);
+        if (usage == null || usage.inUse < hardLimit) {
+            return false;
+        }
+        return System.nanoTime() - usage.readAtNanos < TimeUnit.SECONDS.toNanos(trustSeconds);
+    }
+
+    void recordUsage(Long licenseGroupId, Long inUse) {
+        final String logPrefix = "recordUsage() - ";
+        log.trace("{}Entering Method", logPrefix);
+        groupUsage.put(licenseGroupId, new Usage(inUse, System.nanoTime()));
+        log.debug("{}License Group {} now has {} licenses in use", logPrefix, licenseGroupId, inUse);
+    }
+
+    void licenseReturned(Long licenseGroupId) {
+        final String logPrefix = "licenseReturned() - ";
+        log.trace("{}Entering Method", logPrefix);
+        // the reading keeps its age. A return only lowers the count, so it can never make the ledger reject wrongly
+        Usage usage = groupUsage.computeIfPresent(licenseGroupId, (k, u) -> new Usage(Math.max(0, u.inUse - 1), u.readAtNanos));
+        if (usage != null) {
+            log.debug("{}License Group {} now has {} licenses in use", logPrefix, licenseGroupId, usage.inUse);
+        }
+    }
+
+    private static class Usage {
+
+        private final long inUse;
+        private final long readAtNanos;
+
+        private Usage(long inUse, long readAtNanos) {
+            this.inUse = inUse;
+            this.readAtNanos = readAtNanos;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ *   gcloudlicensemanagement - LicenseRequestExecutor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded pool that runs license requests off the servlet threads. The Azure
+ * AD and Genesys calls behind an allocation or return can take seconds, so the
+ * request thread is released while they run and the pool caps how many run at
+ * once. With virtual threads each request gets its own thread and a semaphore
+ * sized to the database pool and Graph concurrency does the capping instead.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class LicenseRequestExecutor {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Value("${license.request.threads:16}")
+    private Integer threadCount;
+
+    @Value("${license.request.queue-size:256}")
+    private Integer queueSize;
+
+    @Value("${license.request.timeout-seconds:30}")
+    private Long timeoutSeconds;
+
+    @Value("${cloud.database.pool.max-size:10}")
+    private Integer databasePoolSize;
+
+    @Value("${azure.throttle.max-concurrency:16}")
+    private Integer graphConcurrency;
+
+    private ExecutorService executor;
+    private ThreadPoolExecutor platformPool;
+    private Semaphore running;
+    private Semaphore admitted;
+
+    @PostConstruct
+    public void startExecutor() {
+        final String logPrefix = "startExecutor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        executor = executionMode.newThreadPerTaskExecutor("license-request-");
+        if (executor != null) {
+            // each request gets its own virtual thread, so nothing is pooled. A request alternates between the database
+            // and Graph, so this many running at once can keep both busy without queueing on either
+            int concurrency = databasePoolSize + graphConcurrency;
+            running = new Semaphore(concurrency, true);
+            admitted = new Semaphore(concurrency + Math.max(1, queueSize));
+            log.info("{}Starting license requests on virtual threads, {} running and {} waiting at most", logPrefix, concurrency, queueSize);
+            return;
+        }
+        log.info("{}Starting license request pool with {} threads and a queue of {}", logPrefix, threadCount, queueSize);
+        platformPool = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), executionMode.threadFactory("license-request-"), new ThreadPoolExecutor.AbortPolicy());
+        executor = platformPool;
+    }
+
+    @PreDestroy
+    public void stopExecutor() {
+        final String logPrefix = "stopExecutor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Shutting down license request pool", logPrefix);
+        executor.shutdown();
+    }
+
+    /**
+     * Runs the task on the pool. The returned future completes exceptionally
+     * with a RejectedExecutionException when the pool and queue are full, or a
+     * TimeoutException when the task has not finished within the configured
+     * timeout. A timed out task keeps running to completion.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        final String logPrefix = "submit() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (platformPool != null) {
+            try {
+                return CompletableFuture.supplyAsync(task, platformPool).orTimeout(timeoutSeconds, TimeUnit.SECONDS);
+            }
+            catch (RejectedExecutionException ex) {
+                log.warn("{}License request pool is full: {} active, {} queued", logPrefix, platformPool.getActiveCount(), platformPool.getQueue().size());
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+
+        if (!admitted.tryAcquire()) {
+            log.warn("{}License request limit reached: {} requests waiting for a slot", logPrefix, running.getQueueLength());
+            return CompletableFuture.failedFuture(new RejectedExecutionException("License request limit reached"));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> runBounded(task), executor).orTimeout(timeoutSeconds, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException ex) {
+            admitted.release();
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    // a waiting virtual thread parks on the semaphore without holding a carrier thread
+    private <T> T runBounded(Supplier<T> task) {
+        try {
+            running.acquire();
+        }
+        catch (InterruptedException ex) {
+            admitted.release();
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+        try {
+            return task.get();
+        }
+        finally {
+            running.release();
+            admitted.release();
+        }
+    }
+
+    public long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+}
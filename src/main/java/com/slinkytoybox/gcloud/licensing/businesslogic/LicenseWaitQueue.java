@@ -0,0 +1,254 @@
+/*
+ *   gcloudlicensemanagement - LicenseWaitQueue.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.QueuedLicenseRequest;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * First-in first-out queue of license requests per license group, used when a
+ * group is at its hard limit. Requests are served in order on a single worker
+ * thread whenever a slot is freed. Entries that are not seen by the UI for
+ * license.queue.ttl-seconds are dropped so abandoned requests do not hold up
+ * the queue. Serving is paused while an administrator force-return job runs,
+ * so the licenses it frees are not handed straight back out.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class LicenseWaitQueue {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Value("${license.queue.enabled:true}")
+    private Boolean queueEnabled;
+
+    @Value("${license.queue.ttl-seconds:600}")
+    private Long ttlSeconds;
+
+    private final Map<Long, LinkedList<QueuedLicenseRequest>> groupQueues = new HashMap<>();
+    private Predicate<QueuedLicenseRequest> server;
+    private ExecutorService serveExecutor;
+    private final AtomicInteger pauses = new AtomicInteger();
+
+    public void start(Predicate<QueuedLicenseRequest> server) {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!isEnabled()) {
+            log.warn("{}License wait queue is disabled", logPrefix);
+            return;
+        }
+        this.server = server;
+        serveExecutor = Executors.newSingleThreadExecutor(executionMode.namedThreadFactory("license-wait-queue"));
+        log.info("{}License wait queue started with a TTL of {} seconds", logPrefix, ttlSeconds);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (serveExecutor != null) {
+            serveExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(queueEnabled);
+    }
+
+    // adds the request to the back of the queue, or the front if it was being served, and returns its position
+    synchronized int enqueue(Long licenseGroupId, String upn, Long cloudPlatformId, boolean atFront) {
+        final String logPrefix = "enqueue() - ";
+        log.trace("{}Entering Method", logPrefix);
+        LinkedList<QueuedLicenseRequest> queue = groupQueues.computeIfAbsent(licenseGroupId, k -> new LinkedList<>());
+        int position = findPosition(queue, upn, cloudPlatformId);
+        if (position > 0) {
+            queue.get(position - 1).setLastSeen(LocalDateTime.now());
+            return position;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        QueuedLicenseRequest request = new QueuedLicenseRequest()
+                .setUpn(upn)
+                .setCloudPlatformId(cloudPlatformId)
+                .setLicenseGroupId(licenseGroupId)
+                .setEnqueued(now)
+                .setLastSeen(now);
+        if (atFront) {
+            queue.addFirst(request);
+        }
+        else {
+            queue.addLast(request);
+        }
+        position = atFront ? 1 : queue.size();
+        log.info("{}Queued {} for platform {} in License Group {} at position {}", logPrefix, upn, cloudPlatformId, licenseGroupId, position);
+        return position;
+    }
+
+    // returns the 1-based queue position, or null if the user is not queued. Refreshes the entry so it does not expire
+    public synchronized Integer getPosition(String upn, Long cloudPlatformId) {
+        for (LinkedList<QueuedLicenseRequest> queue : groupQueues.values()) {
+            int position = findPosition(queue, upn, cloudPlatformId);
+            if (position > 0) {
+                queue.get(position - 1).setLastSeen(LocalDateTime.now());
+                return position;
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean isQueued(String upn, Long cloudPlatformId) {
+        return groupQueues.values().stream().anyMatch(q -> findPosition(q, upn, cloudPlatformId) > 0);
+    }
+
+    synchronized boolean hasWaiters(Long licenseGroupId) {
+        LinkedList<QueuedLicenseRequest> queue = groupQueues.get(licenseGroupId);
+        return queue != null && !queue.isEmpty();
+    }
+
+    public synchronized boolean dequeue(String upn, Long cloudPlatformId) {
+        final String logPrefix = "dequeue() - ";
+        log.trace("{}Entering Method", logPrefix);
+        for (LinkedList<QueuedLicenseRequest> queue : groupQueues.values()) {
+            int position = findPosition(queue, upn, cloudPlatformId);
+            if (position > 0) {
+                queue.remove(position - 1);
+                log.info("{}Removed {} for platform {} from the wait queue", logPrefix, upn, cloudPlatformId);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized QueuedLicenseRequest poll(Long licenseGroupId) {
+        LinkedList<QueuedLicenseRequest> queue = groupQueues.get(licenseGroupId);
+        if (queue == null) {
+            return null;
+        }
+        pruneExpired(queue);
+        return queue.pollFirst();
+    }
+
+    // a slot has been freed in the license group, so serve the waiting requests in order
+    void slotFreed(Long licenseGroupId) {
+        final String logPrefix = "slotFreed() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (serveExecutor == null || !hasWaiters(licenseGroupId)) {
+            return;
+        }
+        if (isPaused()) {
+            log.debug("{}Slot freed in License Group {} while serving is paused", logPrefix, licenseGroupId);
+            return;
+        }
+        log.debug("{}Slot freed in License Group {}. Serving wait queue", logPrefix, licenseGroupId);
+        serveExecutor.submit(() -> serveQueue(licenseGroupId));
+    }
+
+    // Held for the length of a force-return job. Pauses nest, so serving only resumes once every job has finished, and
+    // then every queue is retried for the slots freed in the meantime
+    void pause() {
+        final String logPrefix = "pause() - ";
+        log.info("{}Pausing wait queue serving ({} holding)", logPrefix, pauses.incrementAndGet());
+    }
+
+    void resume() {
+        final String logPrefix = "resume() - ";
+        int remaining = pauses.updateAndGet(count -> Math.max(0, count - 1));
+        log.info("{}Releasing wait queue pause ({} still holding)", logPrefix, remaining);
+        if (remaining == 0) {
+            sweep();
+        }
+    }
+
+    boolean isPaused() {
+        return pauses.get() > 0;
+    }
+
+    // drops abandoned requests and retries every queue, picking up slots freed on other nodes
+    public void sweep() {
+        final String logPrefix = "sweep() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<Long> waitingGroups = new ArrayList<>();
+        synchronized (this) {
+            groupQueues.values().forEach(this::pruneExpired);
+            groupQueues.values().removeIf(LinkedList::isEmpty);
+            waitingGroups.addAll(groupQueues.keySet());
+        }
+        waitingGroups.forEach(this::slotFreed);
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    private void serveQueue(Long licenseGroupId) {
+        final String logPrefix = "serveQueue() - ";
+        log.trace("{}Entering Method", logPrefix);
+        QueuedLicenseRequest request;
+        while (!isPaused() && (request = poll(licenseGroupId)) != null) {
+            log.info("{}Serving queued request for {} on platform {}", logPrefix, request.getUpn(), request.getCloudPlatformId());
+            try {
+                // the server re-queues the request at the front and returns false if the group is still full
+                if (!server.test(request)) {
+                    break;
+                }
+            }
+            catch (RuntimeException ex) {
+                log.error("{}Exception encountered serving queued request {}", logPrefix, request, ex);
+            }
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    private void pruneExpired(LinkedList<QueuedLicenseRequest> queue) {
+        final String logPrefix = "pruneExpired() - ";
+        LocalDateTime cutoff = LocalDateTime.now().minusSeconds(ttlSeconds);
+        Iterator<QueuedLicenseRequest> it = queue.iterator();
+        while (it.hasNext()) {
+            QueuedLicenseRequest request = it.next();
+            if (request.getLastSeen().isBefore(cutoff)) {
+                log.info("{}Dropping abandoned queued request for {} on platform {}", logPrefix, request.getUpn(), request.getCloudPlatformId());
+                it.remove();
+            }
+        }
+    }
+
+    private int findPosition(List<QueuedLicenseRequest> queue, String upn, Long cloudPlatformId) {
+        for (int i = 0; i < queue.size(); i++) {
+            QueuedLicenseRequest request = queue.get(i);
+            if (request.getUpn().equalsIgnoreCase(upn) && request.getCloudPlatformId().equals(cloudPlatformId)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+}
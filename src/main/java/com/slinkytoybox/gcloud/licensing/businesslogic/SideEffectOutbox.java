@@ -0,0 +1,280 @@
+/*
+ *   gcloudlicensemanagement - SideEffectOutbox.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.AlertMessage;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry.SideEffectType;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies the Azure AD and Genesys changes queued in LIC_SIDE_EFFECT_OUTBOX.
+ * Entries are claimed in batches with a lease, so several nodes can drain the
+ * table together and an entry held by a crashed node is picked up again once
+ * its lease runs out. The lease covers the Graph throttle's retry budget as
+ * well as outbox.lease-seconds, and a claim whose lease ran out anyway cannot
+ * complete or reschedule the entry over the newer claim. Failures are retried
+ * with exponential backoff and are dead-lettered, with an alert, after
+ * outbox.max-attempts.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+@DependsOn("CloudDatabaseConnection")
+public class SideEffectOutbox {
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Autowired
+    private AzureADFunctions adFunc;
+
+    @Autowired
+    private GCloudFunctions cloudFunc;
+
+    @Autowired
+    private AlertFunctions alertFunc;
+
+    @Autowired
+    private GraphThrottle graphThrottle;
+
+    @Value("${outbox.enabled:false}")
+    private Boolean outboxEnabled;
+
+    @Value("${outbox.workers:4}")
+    private Integer workerCount;
+
+    @Value("${outbox.batch-size:20}")
+    private Integer batchSize;
+
+    @Value("${outbox.lease-seconds:120}")
+    private Integer leaseSeconds;
+
+    @Value("${outbox.poll-millis:1000}")
+    private Long pollMillis;
+
+    @Value("${outbox.max-attempts:8}")
+    private Integer maxAttempts;
+
+    @Value("${outbox.retry-base-seconds:5}")
+    private Long retryBaseSeconds;
+
+    private final Semaphore wakeUp = new Semaphore(0);
+    private int claimSeconds;
+    private ExecutorService workerPool;
+    private Thread dispatcher;
+    private volatile boolean running = false;
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(outboxEnabled);
+    }
+
+    @PostConstruct
+    public void start() {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!isEnabled()) {
+            log.info("{}Side effect outbox is disabled. Azure AD and Genesys changes are made inline", logPrefix);
+            return;
+        }
+        // a throttled Graph call can back off for minutes, and the entry must not be reclaimed while it does
+        claimSeconds = (int) (leaseSeconds + graphThrottle.getRetryBudgetSeconds());
+        workerPool = Executors.newFixedThreadPool(workerCount, executionMode.threadFactory("outbox-worker-"));
+        running = true;
+        dispatcher = executionMode.newThread("outbox-dispatcher", this::dispatchLoop);
+        dispatcher.start();
+        log.info("{}Side effect outbox started with {} workers and a {} second lease", logPrefix, workerCount, claimSeconds);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+        }
+    }
+
+    // called after an outbox row is committed so it is picked up without waiting for the next poll
+    void wakeUp() {
+        if (running) {
+            wakeUp.release();
+        }
+    }
+
+    private void dispatchLoop() {
+        final String logPrefix = "dispatchLoop() - ";
+        log.trace("{}Entering Method", logPrefix);
+        while (running) {
+            try {
+                List<OutboxEntry> entries = dbFunc.claimOutboxEntries(batchSize, claimSeconds);
+                if (entries.isEmpty()) {
+                    wakeUp.tryAcquire(pollMillis, TimeUnit.MILLISECONDS);
+                    wakeUp.drainPermits();
+                    continue;
+                }
+                Map<Long, Boolean> groupResults = applyGroupChanges(entries);
+                List<Callable<Void>> tasks = new ArrayList<>();
+                entries.forEach(entry -> tasks.add(() -> {
+                    processEntry(entry, groupResults.get(entry.getId()));
+                    return null;
+                }));
+                workerPool.invokeAll(tasks);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (RuntimeException ex) {
+                log.error("{}Unexpected exception draining outbox", logPrefix, ex);
+            }
+        }
+        log.info("{}Outbox dispatcher stopped", logPrefix);
+    }
+
+    // Sends the group changes of a claimed batch to Graph together, per platform and direction, so they go out as a few
+    // $batch calls. Returns the outcome per outbox entry id; entries without one make their own Graph call
+    private Map<Long, Boolean> applyGroupChanges(List<OutboxEntry> entries) {
+        final String logPrefix = "applyGroupChanges() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<Long, Boolean> results = new HashMap<>();
+        Map<String, List<OutboxEntry>> batches = new LinkedHashMap<>();
+        entries.forEach(entry -> batches.computeIfAbsent(entry.getCloudPlatformId() + ":" + entry.getEffectType(), k -> new ArrayList<>()).add(entry));
+        for (List<OutboxEntry> batch : batches.values()) {
+            if (batch.size() < 2) {
+                continue;
+            }
+            OutboxEntry first = batch.get(0);
+            try {
+                String groupName = cloudFunc.getAzureAdAccessGroup(first.getCloudPlatformId());
+                if (groupName == null || groupName.isBlank()) {
+                    continue;
+                }
+                List<String> upns = batch.stream().map(OutboxEntry::getUpn).distinct().toList();
+                Map<String, Boolean> changed = first.getEffectType() == SideEffectType.GRANT_ACCESS
+                        ? adFunc.addUsersToGroup(upns, groupName)
+                        : adFunc.removeUsersFromGroup(upns, groupName);
+                batch.forEach(entry -> results.put(entry.getId(), Boolean.TRUE.equals(changed.get(entry.getUpn()))));
+            }
+            catch (RuntimeException ex) {
+                log.error("{}Exception applying {} group changes for platform {}. Falling back to single changes", logPrefix, first.getEffectType(), first.getCloudPlatformId(), ex);
+            }
+        }
+        return results;
+    }
+
+    private void processEntry(OutboxEntry entry, Boolean groupResult) {
+        final String logPrefix = "processEntry() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Applying {} (attempt {})", logPrefix, entry, entry.getAttempts());
+        String error;
+        try {
+            error = switch (entry.getEffectType()) {
+                case GRANT_ACCESS ->
+                    grantAccess(entry, groupResult);
+                case REVOKE_ACCESS ->
+                    revokeAccess(entry, groupResult);
+            };
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Exception applying {}", logPrefix, entry, ex);
+            error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+        }
+
+        if (error == null) {
+            log.info("{}Applied {} for {} on platform {}", logPrefix, entry.getEffectType(), entry.getUpn(), entry.getCloudPlatformId());
+            if (!dbFunc.completeOutboxEntry(entry.getId(), entry.getAttempts())) {
+                log.warn("{}Could not mark {} done. Its lease may have run out and another worker claimed it", logPrefix, entry);
+            }
+            return;
+        }
+
+        if (entry.getAttempts() >= maxAttempts) {
+            log.error("{}Giving up on {} after {} attempts: {}", logPrefix, entry, entry.getAttempts(), error);
+            if (!dbFunc.rescheduleOutboxEntry(entry.getId(), entry.getAttempts(), LocalDateTime.now(), error, true)) {
+                log.warn("{}Could not reschedule {}. Its lease may have run out and another worker claimed it", logPrefix, entry);
+                return;
+            }
+            AlertMessage am = new AlertMessage()
+                    .setSubject("GCloud Licensing - Side Effect Failed")
+                    .setMessage("User: " + entry.getUpn() + " could not have " + entry.getEffectType() + " applied after " + entry.getAttempts() + " attempts. Manual action is required.")
+                    .setSource("SideEffectOutbox.processEntry()")
+                    .setDetails(
+                            "Cloud Platform ID: " + entry.getCloudPlatformId()
+                            + " | License ID: " + entry.getLicenseId()
+                            + " | Outbox ID: " + entry.getId()
+                            + " | Last Error: " + error
+                    );
+            alertFunc.alertPlatformAdmins(am);
+            return;
+        }
+        long backoffSeconds = Math.min(retryBaseSeconds << Math.min(entry.getAttempts() - 1, 10), 900);
+        log.warn("{}Failed to apply {} ({}). Retrying in {} seconds", logPrefix, entry, error, backoffSeconds);
+        if (!dbFunc.rescheduleOutboxEntry(entry.getId(), entry.getAttempts(), LocalDateTime.now().plusSeconds(backoffSeconds), error, false)) {
+            log.warn("{}Could not reschedule {}. Its lease may have run out and another worker claimed it", logPrefix, entry);
+        }
+    }
+
+    private String grantAccess(OutboxEntry entry, Boolean groupResult) {
+        String groupName = cloudFunc.getAzureAdAccessGroup(entry.getCloudPlatformId());
+        if (groupName == null || groupName.isBlank()) {
+            log.warn("grantAccess() - No AzureAd group defined for Cloud Platform {}. Not adding to the group", entry.getCloudPlatformId());
+            return null;
+        }
+        boolean added = groupResult != null ? groupResult : adFunc.addUserToGroup(entry.getUpn(), groupName);
+        return added ? null : "AzureAD addUserToGroup function returned error";
+    }
+
+    private String revokeAccess(OutboxEntry entry, Boolean groupResult) {
+        // remove the group first so the user cannot log straight back in, then end their Genesys session
+        String groupName = cloudFunc.getAzureAdAccessGroup(entry.getCloudPlatformId());
+        if (groupName != null && !groupName.isBlank()) {
+            boolean removed = groupResult != null ? groupResult : adFunc.removeUserFromGroup(entry.getUpn(), groupName);
+            if (!removed) {
+                return "AzureAD removeUserFromGroup function returned error";
+            }
+        }
+        return cloudFunc.forceLogOutUser(entry.getUpn(), entry.getCloudPlatformId()) ? null : "Error logging user out of Cloud";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *   gcloudlicensemanagement - UserPlatformIndex.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.response.PlatformDTO;
+import jakarta.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory map of UPN to the cloud platforms the user is provisioned on.
+ * Built at startup and refreshed by the scheduler whenever the provisioning
+ * table checksums change; only users whose platforms differ are updated.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+@DependsOn("CloudDatabaseConnection")
+public class UserPlatformIndex {
+
+    @Autowired
+    private DatabaseFunctions dbFunc;
+
+    @Autowired
+    private EntitlementCache entitlementCache;
+
+    @Value("${platform.index.enabled:true}")
+    private Boolean indexEnabled;
+
+    private final Map<String, List<PlatformDTO>> platformsByUser = new ConcurrentHashMap<>();
+    private Map<String, Integer> lastChecksums = null;
+    private volatile boolean loaded = false;
+    // a lock rather than synchronized, so a refresh waiting on the database does not pin a virtual thread carrier
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    @PostConstruct
+    public void buildIndex() {
+        final String logPrefix = "buildIndex() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!isEnabled()) {
+            log.info("{}User platform index is disabled. Platforms will be read from the database", logPrefix);
+            return;
+        }
+        log.info("{}Building user platform index from database", logPrefix);
+        refresh();
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(indexEnabled);
+    }
+
+    public void refresh() {
+        final String logPrefix = "refresh() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!refreshLock.tryLock()) {
+            log.debug("{}Refresh already in progress", logPrefix);
+            return;
+        }
+        try {
+            refreshIndex();
+        }
+        finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private void refreshIndex() {
+        final String logPrefix = "refreshIndex() - ";
+
+        Map<String, Integer> checksums = dbFunc.getProvisioningChecksums();
+        if (checksums == null) {
+            log.warn("{}Could not read provisioning checksums. Keeping existing index", logPrefix);
+            return;
+        }
+        if (checksums.equals(lastChecksums)) {
+            log.debug("{}Provisioning tables unchanged", logPrefix);
+            return;
+        }
+        log.info("{}Provisioning tables changed: {} -> {}", logPrefix, lastChecksums, checksums);
+
+        Map<String, List<PlatformDTO>> current = dbFunc.getAllUserPlatformsFromDB();
+        if (current == null) {
+            log.warn("{}Could not read user platforms. Keeping existing index", logPrefix);
+            return;
+        }
+
+        Set<String> removedUsers = new HashSet<>(platformsByUser.keySet());
+        removedUsers.removeAll(current.keySet());
+        removedUsers.forEach(platformsByUser::remove);
+
+        int changedUsers = 0;
+        for (Map.Entry<String, List<PlatformDTO>> entry : current.entrySet()) {
+            List<PlatformDTO> platforms = Collections.unmodifiableList(entry.getValue());
+            List<PlatformDTO> previous = platformsByUser.put(entry.getKey(), platforms);
+            if (!platforms.equals(previous)) {
+                changedUsers++;
+            }
+        }
+        log.info("{}User platform index holds {} users. {} changed, {} removed", logPrefix, platformsByUser.size(), changedUsers, removedUsers.size());
+
+        // user types and license groups feed the entitlements as well, so any provisioning change makes them stale
+        if (lastChecksums != null) {
+            entitlementCache.invalidateAll();
+        }
+        lastChecksums = checksums;
+        loaded = true;
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    List<PlatformDTO> getPlatforms(String upn) {
+        final String logPrefix = "getPlatforms() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!loaded) {
+            return null;
+        }
+        return platformsByUser.getOrDefault(upn.toLowerCase(), Collections.emptyList());
+    }
+}
@@ -66,6 +66,9 @@ public class CloudDatabaseConnection {
     @Value("${cloud.database.pool.min-size:3}")
     private int poolMinSize;
 
+    @Value("${cloud.database.pool.max-size:10}")
+    private int poolMaxSize;
+
     @Value("${cloud.database.pool.test-query:SELECT 1}")
     private String poolTestQuery;
 
@@ -120,6 +123,7 @@ public class CloudDatabaseConnection {
         poolSource.setPassword(decryptedPassword);
         poolSource.setDataSourceProperties(dsProps);
         poolSource.setMinimumIdle(poolMinSize);
+        poolSource.setMaximumPoolSize(Math.max(poolMinSize, poolMaxSize));
 
         poolSource.setConnectionTestQuery(poolTestQuery);
         poolSource.setPoolName("Genesys-Cloud-DB");
@@ -177,15 +181,10 @@ public class CloudDatabaseConnection {
         log.trace("{}Entering Method", logPrefix);
 
         try {
+            // Hikari validates idle connections before handing them out, so there is no need to test them again here
             Connection conn = poolSource.getConnection();
-            if (conn.isValid(5)) {
-                log.trace("{}Returning active connection", logPrefix);
-                return conn;
-            }
-            else {
-                log.error("{}Database did not respond within 5 seconds", logPrefix);
-                throw new SQLException("Database did not respond within 5 seconds");
-            }
+            log.trace("{}Returning active connection", logPrefix);
+            return conn;
         }
         catch (SQLException ex) {
             log.error("{}SQL Exception encountered getting connection from pool!", logPrefix);
@@ -0,0 +1,183 @@
+/*
+ *   gcloudlicensemanagement - AdminApiController.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.controller;
+
+import com.slinkytoybox.gcloud.licensing.businesslogic.AzureDirectoryCache;
+import com.slinkytoybox.gcloud.licensing.businesslogic.EntitlementCache;
+import com.slinkytoybox.gcloud.licensing.businesslogic.ForceReturnJobManager;
+import com.slinkytoybox.gcloud.licensing.businesslogic.GenesysUserCache;
+import com.slinkytoybox.gcloud.licensing.businesslogic.GraphThrottle;
+import com.slinkytoybox.gcloud.licensing.businesslogic.GroupMembershipMirror;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseExpiryEngine;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement;
+import com.slinkytoybox.gcloud.licensing.dto.internal.ExpiryStatistics;
+import com.slinkytoybox.gcloud.licensing.dto.request.ForceReturnRequest;
+import com.slinkytoybox.gcloud.licensing.dto.response.ForceReturnJobResponse;
+import com.slinkytoybox.gcloud.licensing.dto.response.GroupReconciliationResponse;
+import com.slinkytoybox.gcloud.licensing.security.roles.RoleAdmin;
+import java.security.Principal;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@RestController
+@Slf4j
+@RequestMapping(path = "/api/v1/admin")
+@RoleAdmin
+public class AdminApiController {
+
+    @Autowired
+    private ForceReturnJobManager forceReturnJobs;
+
+    @Autowired
+    private LicenseExpiryEngine expiryEngine;
+
+    @Autowired
+    private EntitlementCache entitlementCache;
+
+    @Autowired
+    private AzureDirectoryCache directoryCache;
+
+    @Autowired
+    private GroupMembershipMirror membershipMirror;
+
+    @Autowired
+    private GraphThrottle graphThrottle;
+
+    @Autowired
+    private GenesysUserCache genesysUserCache;
+
+    @Autowired
+    private LicenseManagement licMgmt;
+
+    @PostMapping(path = "/forceReturn", produces = "application/json", consumes = "application/json")
+    public ResponseEntity<ForceReturnJobResponse> forceReturn(Principal principal, @RequestBody ForceReturnRequest forceRequest) {
+        final String logPrefix = "forceReturn() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Processing POST for /forceReturn for {} -> {}", logPrefix, principal.getName(), forceRequest);
+        ForceReturnJobResponse resp;
+        try {
+            resp = forceReturnJobs.startForceReturn(forceRequest.getCloudPlatformId(), forceRequest.getLicenseGroupId(), forceRequest.getUpns(), principal.getName());
+        }
+        catch (IllegalArgumentException ex) {
+            log.error("{}Invalid force return request: {}", logPrefix, ex.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        catch (IllegalStateException ex) {
+            log.error("{}Could not start force return job: {}", logPrefix, ex.getMessage());
+            return ResponseEntity.internalServerError().build();
+        }
+        log.debug("{}Returning response: {}", logPrefix, resp);
+        return ResponseEntity.accepted().body(resp);
+    }
+
+    @GetMapping(path = "/forceReturn/{jobId}", produces = "application/json")
+    public ResponseEntity<ForceReturnJobResponse> getForceReturnJob(Principal principal, @PathVariable String jobId) {
+        final String logPrefix = "getForceReturnJob() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /forceReturn/{} for {}", logPrefix, jobId, principal.getName());
+        ForceReturnJobResponse resp = forceReturnJobs.getJob(jobId);
+        if (resp == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().body(resp);
+    }
+
+    @GetMapping(path = "/expiryStatistics", produces = "application/json")
+    public ResponseEntity<ExpiryStatistics> getExpiryStatistics(Principal principal) {
+        final String logPrefix = "getExpiryStatistics() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /expiryStatistics for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(expiryEngine.getStatistics());
+    }
+
+    @GetMapping(path = "/entitlementCache", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getEntitlementCache(Principal principal) {
+        final String logPrefix = "getEntitlementCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /entitlementCache for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(entitlementCache.getStatistics());
+    }
+
+    @PostMapping(path = "/entitlementCache/invalidate", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> invalidateEntitlementCache(Principal principal, @RequestParam(name = "upn", required = false) String upn) {
+        final String logPrefix = "invalidateEntitlementCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Processing POST for /entitlementCache/invalidate for {} -> {}", logPrefix, principal.getName(), upn == null ? "ALL" : upn);
+        int removed = (upn == null || upn.isBlank()) ? entitlementCache.invalidateAll() : entitlementCache.invalidate(upn);
+        return ResponseEntity.ok().body(Map.of("invalidated", removed));
+    }
+
+    @GetMapping(path = "/directoryCache", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getDirectoryCache(Principal principal) {
+        final String logPrefix = "getDirectoryCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /directoryCache for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(directoryCache.getStatistics());
+    }
+
+    @GetMapping(path = "/genesysUserCache", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getGenesysUserCache(Principal principal) {
+        final String logPrefix = "getGenesysUserCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /genesysUserCache for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(genesysUserCache.getStatistics());
+    }
+
+    @GetMapping(path = "/graphThrottle", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getGraphThrottle(Principal principal) {
+        final String logPrefix = "getGraphThrottle() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /graphThrottle for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(graphThrottle.getStatistics());
+    }
+
+    @GetMapping(path = "/groupMirror", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> getGroupMirror(Principal principal) {
+        final String logPrefix = "getGroupMirror() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /groupMirror for {}", logPrefix, principal.getName());
+        return ResponseEntity.ok().body(membershipMirror.getStatistics());
+    }
+
+    @GetMapping(path = "/groupReconciliation/{cloudPlatformId}", produces = "application/json")
+    public ResponseEntity<GroupReconciliationResponse> getGroupReconciliation(Principal principal, @PathVariable Long cloudPlatformId) {
+        final String logPrefix = "getGroupReconciliation() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Processing GET for /groupReconciliation/{} for {}", logPrefix, cloudPlatformId, principal.getName());
+        GroupReconciliationResponse resp;
+        try {
+            resp = licMgmt.getGroupReconciliation(cloudPlatformId);
+        }
+        catch (IllegalArgumentException ex) {
+            log.error("{}Invalid reconciliation request: {}", logPrefix, ex.getMessage());
+            return ResponseEntity.notFound().build();
+        }
+        log.debug("{}Returning response: {}", logPrefix, resp);
+        return ResponseEntity.ok().body(resp);
+    }
+
+}
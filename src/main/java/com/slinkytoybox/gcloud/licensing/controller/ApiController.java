@@ -20,10 +20,14 @@
 package com.slinkytoybox.gcloud.licensing.controller;
 
 import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.businesslogic.IdempotencyStore;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseEventHub;
 import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseRequestExecutor;
 import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement.ReturnReason;
 import com.slinkytoybox.gcloud.licensing.dto.request.*;
 import com.slinkytoybox.gcloud.licensing.dto.response.*;
+import com.slinkytoybox.gcloud.licensing.security.roles.RoleTeamLeader;
 import com.slinkytoybox.gcloud.licensing.security.roles.RoleUser;
 import java.security.Principal;
 import java.time.LocalDateTime;
@@ -31,11 +35,21 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  *
@@ -50,17 +64,86 @@ public class ApiController {
     @Autowired
     private LicenseManagement licMgmt;
 
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private LicenseEventHub eventHub;
+
+    @Autowired
+    private LicenseRequestExecutor requestExecutor;
+
     @Value("${license.extend-time:7200}")
     private Long canExtendTime;
 
+    @Value("${license.bulk.max-users:500}")
+    private Integer bulkMaxUsers;
+
     @PostMapping(path = "/myLicenses", produces = "application/json")
     public ResponseEntity<UserLicenseResponse> getMyLicenses(Principal principal) {
         final String logPrefix = "getMyLicenses() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Processing POST for /myLicenses for {}", logPrefix, principal.getName());
         UserLicenseResponse response = new UserLicenseResponse();
-        List<PlatformDTO> platforms = licMgmt.getUserPlatforms(principal.getName());
-        Map<Long, LicenseDTO> licenses = licMgmt.getUserLicenses(principal.getName());
+        response.setLicenseResponse(buildLicenseRows(principal.getName()));
+        return ResponseEntity.ok().body(response);
+
+    }
+
+    @GetMapping(path = "/myLicenses", produces = "application/json")
+    public ResponseEntity<UserLicenseResponse> getMyLicensesCacheable(Principal principal, WebRequest webRequest) {
+        final String logPrefix = "getMyLicensesCacheable() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /myLicenses for {}", logPrefix, principal.getName());
+
+        // the version is checked before any rows are built, so an unchanged page costs one aggregate query
+        String version = licMgmt.getUserLicenseVersion(principal.getName(), canExtendTime);
+        String eTag = version == null ? null : "\"" + version + "\"";
+        if (eTag != null && webRequest.checkNotModified(eTag)) {
+            log.trace("{}Version tag {} unchanged for {}", logPrefix, eTag, principal.getName());
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .eTag(eTag)
+                    .build();
+        }
+
+        List<UserLicenseResponse.LicenseResponse> licResp = buildLicenseRows(principal.getName());
+        if (eTag == null) {
+            // no cheap version available, so tag the built rows instead. Spring still answers 304 when it matches
+            eTag = String.format("\"%08x%04x\"", licResp.hashCode(), licResp.size());
+        }
+        log.trace("{}Version tag for {} is {}", logPrefix, principal.getName(), eTag);
+        UserLicenseResponse response = new UserLicenseResponse();
+        response.setLicenseResponse(licResp);
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .eTag(eTag)
+                .body(response);
+    }
+
+    @GetMapping(path = "/licenseEvents", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> getLicenseEvents(Principal principal) {
+        final String logPrefix = "getLicenseEvents() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Processing GET for /licenseEvents for {}", logPrefix, principal.getName());
+        if (!eventHub.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        SseEmitter emitter = eventHub.register(principal.getName());
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header("X-Accel-Buffering", "no")
+                .body(emitter);
+    }
+
+    private List<UserLicenseResponse.LicenseResponse> buildLicenseRows(String upn) {
+        final String logPrefix = "buildLicenseRows() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<PlatformDTO> platforms = licMgmt.getUserPlatforms(upn);
+        Map<Long, LicenseDTO> licenses = licMgmt.getUserLicenses(upn);
 
         List<UserLicenseResponse.LicenseResponse> licResp = new ArrayList<>();
 
@@ -85,23 +168,82 @@ public class ApiController {
                         .setExpiryDate(null)
                         .setIssueDate(null)
                         .setUpn(null)
-                        .setLicenseId(null);
+                        .setLicenseId(null)
+                        .setQueuePosition(licMgmt.getQueuePosition(upn, plat.getId()));
 
             }
             licResp.add(row);
             log.trace("{}Added license row: {}", logPrefix, row);
         }
         Collections.sort(licResp);
-        response.setLicenseResponse(licResp);
-        return ResponseEntity.ok().body(response);
-
+        return licResp;
     }
 
     @PostMapping(path = "/modifyLicense", produces = "application/json", consumes = "application/json")
-    public ResponseEntity<BooleanResponse> modifyLicense(Principal principal, @RequestBody UserLicenseRequest licenseRequest) {
+    public CompletableFuture<ResponseEntity<BooleanResponse>> modifyLicense(Principal principal, @RequestHeader(name = "Idempotency-Key", required = false) String idempotencyKey, @RequestBody UserLicenseRequest licenseRequest) {
         final String logPrefix = "modifyLicense() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Processing POST for /modifyLicense for {} -> {}", logPrefix, principal.getName(), licenseRequest);
+        log.info("{}Processing POST for /modifyLicense for {} -> {} (Idempotency-Key: {})", logPrefix, principal.getName(), licenseRequest, idempotencyKey);
+
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return runAsync(() -> processLicenseRequest(principal, licenseRequest));
+        }
+        if (idempotencyKey.length() > 128) {
+            log.error("{}Idempotency key is too long", logPrefix);
+            BooleanResponse resp = new BooleanResponse()
+                    .setSuccess(false)
+                    .setDetailedMessage("Idempotency-Key must not be longer than 128 characters")
+                    .setFriendlyMessage("License request is invalid");
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(resp));
+        }
+        return runAsync(() -> idempotencyStore.execute(principal.getName(), idempotencyKey, fingerprint(licenseRequest),
+                () -> processLicenseRequest(principal, licenseRequest),
+                () -> ResponseEntity.unprocessableEntity().body(new BooleanResponse()
+                        .setSuccess(false)
+                        .setDetailedMessage("Idempotency-Key " + idempotencyKey + " has already been used for a different request")
+                        .setFriendlyMessage("License request is invalid"))));
+    }
+
+    // built from the fields that drive the request rather than toString(), so the fingerprint does not change if the DTO
+    // gains fields or Lombok changes its output format
+    private static String fingerprint(UserLicenseRequest licenseRequest) {
+        return licenseRequest.getRequestType() + ":" + licenseRequest.getCloudPlatformId() + ":" + licenseRequest.getLicenseId();
+    }
+
+    // runs the request on the license request pool so the servlet thread is released during the Azure AD and Genesys
+    // calls. A full pool or a request still running at the timeout is answered with a 503 the page can retry
+    private CompletableFuture<ResponseEntity<BooleanResponse>> runAsync(Supplier<ResponseEntity<BooleanResponse>> request) {
+        final String logPrefix = "runAsync() - ";
+        return requestExecutor.submit(request).exceptionally(ex -> {
+            Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+            BooleanResponse resp = new BooleanResponse().setSuccess(false);
+            if (cause instanceof TimeoutException) {
+                log.warn("{}License request did not complete within {} seconds", logPrefix, requestExecutor.getTimeoutSeconds());
+                resp.setDetailedMessage("License request did not complete within " + requestExecutor.getTimeoutSeconds() + " seconds and is still being processed")
+                        .setFriendlyMessage("Your license request is taking longer than expected. Please refresh the page shortly to see the result.");
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(resp);
+            }
+            if (cause instanceof RejectedExecutionException) {
+                resp.setDetailedMessage("License request pool is full")
+                        .setFriendlyMessage("The license system is busy. Please try again in a moment.");
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "5").body(resp);
+            }
+            if (cause instanceof IllegalArgumentException) {
+                log.error("{}Invalid license request: {}", logPrefix, cause.getMessage());
+                resp.setDetailedMessage(cause.getMessage())
+                        .setFriendlyMessage("License request is invalid");
+                return ResponseEntity.badRequest().body(resp);
+            }
+            log.error("{}Exception encountered processing license request", logPrefix, cause);
+            resp.setDetailedMessage("Exception processing license request: " + cause.getMessage())
+                    .setFriendlyMessage("A system error occurred processing your license request. Please contact your team leader.");
+            return ResponseEntity.internalServerError().body(resp);
+        });
+    }
+
+    private ResponseEntity<BooleanResponse> processLicenseRequest(Principal principal, UserLicenseRequest licenseRequest) {
+        final String logPrefix = "processLicenseRequest() - ";
+        log.trace("{}Entering Method", logPrefix);
         BooleanResponse resp = new BooleanResponse();
 
         switch (licenseRequest.getRequestType()) {
@@ -142,6 +284,18 @@ public class ApiController {
                 resp = licMgmt.returnUserLicense(licenseRequest.getLicenseId(), ReturnReason.AGENT_REQEUST);
             }
 
+            case DEQUEUE -> {
+                log.debug("{}Detected leave queue request", logPrefix);
+                if (licenseRequest.getCloudPlatformId() == null || licenseRequest.getCloudPlatformId() == 0) {
+                    log.error("{}Cloud Platform ID must be supplied in request", logPrefix);
+                    resp.setSuccess(false);
+                    resp.setDetailedMessage("Cloud Platform ID must be supplied in request");
+                    resp.setFriendlyMessage("Leave queue request is invalid");
+                    return ResponseEntity.badRequest().body(resp);
+                }
+                resp = licMgmt.leaveQueue(principal.getName(), licenseRequest.getCloudPlatformId());
+            }
+
             default -> {
                 log.error("{}Could not detect request type!", logPrefix);
                 resp.setSuccess(false);
@@ -155,4 +309,31 @@ public class ApiController {
         return ResponseEntity.ok().body(resp);
     }
 
+    @PostMapping(path = "/bulkAllocate", produces = "application/json", consumes = "application/json")
+    @RoleTeamLeader
+    public ResponseEntity<BulkLicenseResponse> bulkAllocate(Principal principal, @RequestBody BulkLicenseRequest bulkRequest) {
+        final String logPrefix = "bulkAllocate() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Processing POST for /bulkAllocate for {} -> {}", logPrefix, principal.getName(), bulkRequest);
+
+        if (bulkRequest.getCloudPlatformId() == null || bulkRequest.getCloudPlatformId() == 0) {
+            log.error("{}Cloud Platform ID must be supplied in request", logPrefix);
+            return ResponseEntity.badRequest().body(new BulkLicenseResponse()
+                    .setResults(Collections.emptyList())
+                    .setDetailedMessage("Cloud Platform ID must be supplied in request")
+                    .setFriendlyMessage("Bulk license request is invalid"));
+        }
+        if (bulkRequest.getUpns() == null || bulkRequest.getUpns().isEmpty() || bulkRequest.getUpns().size() > bulkMaxUsers) {
+            log.error("{}Between 1 and {} UPNs must be supplied in request", logPrefix, bulkMaxUsers);
+            return ResponseEntity.badRequest().body(new BulkLicenseResponse()
+                    .setResults(Collections.emptyList())
+                    .setDetailedMessage("Between 1 and " + bulkMaxUsers + " UPNs must be supplied in request")
+                    .setFriendlyMessage("Select between 1 and " + bulkMaxUsers + " users to license"));
+        }
+
+        BulkLicenseResponse resp = licMgmt.createUserLicenses(bulkRequest.getUpns(), bulkRequest.getCloudPlatformId());
+        log.debug("{}Returning response: {}", logPrefix, resp);
+        return ResponseEntity.ok().body(resp);
+    }
+
 }
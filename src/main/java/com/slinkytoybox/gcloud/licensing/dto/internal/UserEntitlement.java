@@ -0,0 +1,46 @@
+/*
+ *   gcloudlicensemanagement - UserEntitlement.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.dto.internal;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * A user's license group entitlement on one cloud platform. Immutable so it
+ * can be shared from the entitlement cache.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Value
+@Builder
+public class UserEntitlement {
+
+    String upn;
+    Long cloudPlatformId;
+    Long userId;
+    String userFullName;
+    String userTypeName;
+    Long licenseGroupId;
+    String licenseGroupName;
+    Long softLimit;
+    Long hardLimit;
+    Long defaultIssueSeconds;
+    Long extensionTimeSeconds;
+}
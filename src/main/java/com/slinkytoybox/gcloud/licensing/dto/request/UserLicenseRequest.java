@@ -37,6 +37,7 @@ public class UserLicenseRequest implements Serializable {
     public enum RequestType {
         CREATE,
         EXTEND,
-        REVOKE
+        REVOKE,
+        DEQUEUE
     }
 }
@@ -34,5 +34,6 @@ public class BooleanResponse implements Serializable {
     private boolean success;
     private String detailedMessage;
     private String friendlyMessage;
+    private Integer queuePosition;
     
 }
@@ -50,6 +50,7 @@ public class UserLicenseResponse implements Serializable {
         private Long licenseId;
         private boolean canExtend;
         private boolean expired;
+        private Integer queuePosition;
 
         @Override
         public int compareTo(LicenseResponse o1) {
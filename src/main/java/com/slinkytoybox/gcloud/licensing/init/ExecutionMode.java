@@ -0,0 +1,134 @@
+/*
+ *   gcloudlicensemanagement - ExecutionMode.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.init;
+
+import jakarta.annotation.PostConstruct;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Source of threads for the request pool, background workers and scheduler.
+ * When threads.virtual.enabled is set and the JVM supports them (Java 21 and
+ * later) these are virtual threads, otherwise daemon platform threads. The
+ * build targets Java 17, so the virtual thread API is looked up reflectively.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Component
+@Slf4j
+public class ExecutionMode {
+
+    @Value("${threads.virtual.enabled:false}")
+    private Boolean virtualRequested;
+
+    private boolean virtual = false;
+    private Method ofVirtual;
+    private Method builderName;
+    private Method builderNumberedName;
+    private Method builderFactory;
+
+    @PostConstruct
+    public void resolveExecutionMode() {
+        final String logPrefix = "resolveExecutionMode() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!Boolean.TRUE.equals(virtualRequested)) {
+            log.info("{}Using platform threads", logPrefix);
+            return;
+        }
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class);
+            builderNumberedName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            virtual = true;
+            log.info("{}Using virtual threads for request handling and background workers", logPrefix);
+        }
+        catch (ReflectiveOperationException ex) {
+            log.warn("{}Virtual threads requested but not supported by Java {}. Using platform threads", logPrefix, Runtime.version().feature());
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    // threads named prefix1, prefix2, ...
+    public ThreadFactory threadFactory(String prefix) {
+        if (virtual) {
+            return virtualFactory(prefix, true);
+        }
+        AtomicInteger threadId = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // every thread gets the same name, for single thread executors and dispatchers
+    public ThreadFactory namedThreadFactory(String name) {
+        if (virtual) {
+            return virtualFactory(name, false);
+        }
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public Thread newThread(String name, Runnable task) {
+        return namedThreadFactory(name).newThread(task);
+    }
+
+    // an executor starting a new virtual thread per task, or null when running on platform threads
+    public ExecutorService newThreadPerTaskExecutor(String prefix) {
+        final String logPrefix = "newThreadPerTaskExecutor() - ";
+        if (!virtual) {
+            return null;
+        }
+        try {
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, threadFactory(prefix));
+        }
+        catch (ReflectiveOperationException ex) {
+            log.error("{}Could not create virtual thread executor", logPrefix, ex);
+            return null;
+        }
+    }
+
+    private ThreadFactory virtualFactory(String name, boolean numbered) {
+        try {
+            Object builder = ofVirtual.invoke(null);
+            builder = numbered ? builderNumberedName.invoke(builder, name, 1L) : builderName.invoke(builder, name);
+            return (ThreadFactory) builderFactory.invoke(builder);
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not create virtual thread factory", ex);
+        }
+    }
+}
@@ -19,7 +19,12 @@
  */
 package com.slinkytoybox.gcloud.licensing.init;
 
+import com.slinkytoybox.gcloud.licensing.businesslogic.GroupMembershipMirror;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseEventHub;
 import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseQuotaLedger;
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseWaitQueue;
+import com.slinkytoybox.gcloud.licensing.businesslogic.UserPlatformIndex;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.DependsOn;
@@ -40,9 +45,25 @@ public class Scheduler {
     @Autowired
     private LicenseManagement licMgmt;
 
+    @Autowired
+    private LicenseQuotaLedger quotaLedger;
+
+    @Autowired
+    private LicenseWaitQueue waitQueue;
+
+    @Autowired
+    private UserPlatformIndex platformIndex;
+
+    @Autowired
+    private LicenseEventHub eventHub;
+
+    @Autowired
+    private GroupMembershipMirror membershipMirror;
+
     @Autowired
     private Environment env;
 
+    // Licenses are expired as they fall due by the expiry index. This sweep is the safety net for anything it missed
     @Scheduled(fixedDelayString = "${expiry.repeat.seconds:120}000", initialDelayString = "${expiry.delay.seconds:30}000")
     public void runExpirySchedule() {
         final String logPrefix = "runExpirySchedule() - ";
@@ -51,9 +72,71 @@ public class Scheduler {
         boolean expiryEnabled = env.getProperty("expiry.enabled", Boolean.class, Boolean.TRUE);
         log.info("{}Expiry Enabled? {}", logPrefix, expiryEnabled);
         if (expiryEnabled) {
-            log.info("{}Scheduler running expiry routine", logPrefix);
+            log.info("{}Scheduler running expiry safety sweep", logPrefix);
             licMgmt.expireOldLicenses();
         }
         log.trace("{}Leaving Method", logPrefix);
     }
+
+    @Scheduled(fixedDelayString = "${ledger.reconcile.seconds:60}000", initialDelayString = "${ledger.reconcile.seconds:60}000")
+    public void runLedgerReconciliation() {
+        final String logPrefix = "runLedgerReconciliation() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Scheduler reconciling license quota ledger", logPrefix);
+        quotaLedger.reconcile();
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Scheduled(fixedDelayString = "${license.reservation.sweep-seconds:30}000", initialDelayString = "${expiry.delay.seconds:30}000")
+    public void runReservationSweep() {
+        final String logPrefix = "runReservationSweep() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Scheduler reclaiming timed out license reservations", logPrefix);
+        licMgmt.reclaimExpiredReservations();
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Scheduled(fixedDelayString = "${license.queue.sweep-seconds:30}000", initialDelayString = "${license.queue.sweep-seconds:30}000")
+    public void runWaitQueueSweep() {
+        final String logPrefix = "runWaitQueueSweep() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (waitQueue.isEnabled()) {
+            log.debug("{}Scheduler sweeping license wait queue", logPrefix);
+            waitQueue.sweep();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Scheduled(fixedDelayString = "${platform.index.refresh-seconds:60}000", initialDelayString = "${platform.index.refresh-seconds:60}000")
+    public void runPlatformIndexRefresh() {
+        final String logPrefix = "runPlatformIndexRefresh() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (platformIndex.isEnabled()) {
+            log.debug("{}Scheduler checking provisioning tables for changes", logPrefix);
+            platformIndex.refresh();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Scheduled(fixedDelayString = "${sse.heartbeat-seconds:25}000", initialDelayString = "${sse.heartbeat-seconds:25}000")
+    public void runEventHubHeartbeat() {
+        final String logPrefix = "runEventHubHeartbeat() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (eventHub.isEnabled()) {
+            eventHub.warnApproachingExpiry();
+            eventHub.heartbeat();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Scheduled(fixedDelayString = "${azure.group-mirror.sync-seconds:60}000", initialDelayString = "${expiry.delay.seconds:30}000")
+    public void runGroupMirrorSync() {
+        final String logPrefix = "runGroupMirrorSync() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (membershipMirror.isEnabled()) {
+            log.debug("{}Scheduler syncing Azure AD group mirror", logPrefix);
+            membershipMirror.sync();
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
 }
@@ -19,13 +19,19 @@
 
 package com.slinkytoybox.gcloud.licensing.init;          
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.CacheControl;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.ViewResolverRegistry;
@@ -46,6 +52,40 @@ public class SpringWebConfig implements WebMvcConfigurer {
 
     @Autowired
     ApplicationContext applicationContext;
+
+    @Autowired
+    private ExecutionMode executionMode;
+
+    @Value("${web.async.timeout-seconds:60}")
+    private Long asyncTimeoutSeconds;
+
+    // one thread per job in Scheduler, so a slow database sweep or a throttled Graph call cannot hold up the SSE
+    // heartbeat or the reservation sweep. Raise it if jobs are added there
+    @Value("${scheduler.pool-size:7}")
+    private Integer schedulerPoolSize;
+
+    @Bean
+    public TaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(Math.max(1, schedulerPoolSize));
+        scheduler.setThreadNamePrefix("scheduler-");
+        if (executionMode.isVirtual()) {
+            scheduler.setThreadFactory(executionMode.threadFactory("scheduler-"));
+        }
+        return scheduler;
+    }
+
+    // with virtual threads enabled every request gets its own virtual thread instead of a Tomcat worker. Concurrency is
+    // then limited by the database pool and the license request pool rather than server.tomcat.threads.max
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            ExecutorService requestExecutor = executionMode.newThreadPerTaskExecutor("tomcat-handler-");
+            if (requestExecutor != null) {
+                protocolHandler.setExecutor(requestExecutor);
+            }
+        };
+    }
     
     @Bean
     public SpringResourceTemplateResolver templateResolver() {
@@ -77,6 +117,12 @@ public class SpringWebConfig implements WebMvcConfigurer {
     }
     
     
+    // async license requests time out on their own executor first. This is the backstop for anything else
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(asyncTimeoutSeconds * 1000);
+    }
+
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         registry.addResourceHandler("/assets/js/**").addResourceLocations("classpath:/assets/js/").setCacheControl(CacheControl.noCache().mustRevalidate());
@@ -25,9 +25,14 @@ if (debug)
 
 let requestInProgress = false;
 
+// idempotency keys for requests that have not had a response yet. A retry of the same action reuses its key,
+// so the server replays the original result rather than allocating or returning a license twice
+let pendingRequestKeys = {};
+
 let extendIconCss = 'fas fa-square-plus';
 let allocateIconCss = 'fas fa-up-right-from-square';
 let revokeIconCss = 'fas fa-flag-checkered';
+let dequeueIconCss = 'fas fa-person-walking-arrow-right';
 
 let revokeModal = new bootstrap.Modal(document.getElementById("revokeConfimDialog"), {});
 
@@ -43,12 +48,13 @@ let licenseTable = $('#licenseTable').DataTable({
     "ordering": false,
     "ajax": {
         "url": ajaxBase + "myLicenses",
-        "contentType": "application/json",
-        "type": "POST",
+        "type": "GET",
         "dataType": "json",
         "dataSrc": "licenseResponse",
+        // let the browser revalidate with If-None-Match so an unchanged table costs a 304 rather than a full reload
+        "cache": true,
         "data": function (d) {
-            return JSON.stringify(d);
+            return {};
         }
     },
     "columns": [
@@ -71,6 +77,10 @@ let licenseTable = $('#licenseTable').DataTable({
                     }
                     buttonHtml += '<button class="btn btn-outline-danger btnLicense' + meta.row + '" onclick="revokeLicense(\'' + data + '\', ' + meta.row + ');"><span class="' + revokeIconCss + '" id="iconRevoke' + data + '"></span> Return</button>';
                 }
+                else if (row.queuePosition !== null) {
+                    buttonHtml += '<span class="badge bg-info text-dark">Queued #' + row.queuePosition + '</span>&nbsp;';
+                    buttonHtml += '<button class="btn btn-outline-secondary btnLicense' + meta.row + '" onclick="leaveQueue(\'' + row.cloudPlatformId + '\', ' + meta.row + ');"><span class="' + dequeueIconCss + '" id="iconDequeue' + row.cloudPlatformId + '"></span> Leave Queue</button>';
+                }
                 else {
                     buttonHtml += '<button class="btn btn-outline-success btnLicense' + meta.row + '" onclick="allocateLicense(\'' + row.cloudPlatformId + '\', ' + meta.row + ');"><span class="' + allocateIconCss + '" id="iconAllocate' + row.cloudPlatformId + '"></span> Allocate License</button>';
                 }
@@ -140,6 +150,10 @@ let stringMap = {
     EXTEND: {
         success: "The license was extended successfully.",
         failure: "An error was encountered whilst extending the license."
+    },
+    DEQUEUE: {
+        success: "You have left the license queue.",
+        failure: "An error was encountered whilst leaving the license queue."
     }
 };
 
@@ -182,6 +196,24 @@ function allocateLicense(platformId, rowid) {
     performLicenseRequest(licenseRequest, rowid);
 }
 
+function leaveQueue(platformId, rowid) {
+    if (debug)
+        console.log("Leaving license queue for platform", platformId);
+    if (requestInProgress) {
+        console.warn("Request in progress, not proceeding");
+        return;
+    }
+    $("#iconDequeue" + platformId).removeClass(dequeueIconCss).addClass('spinner-border spinner-border-sm');
+    requestInProgress = true;
+    let licenseRequest = {
+        "cloudPlatformId": platformId,
+        "licenseId": 0,
+        "requestType": "DEQUEUE"
+    };
+
+    performLicenseRequest(licenseRequest, rowid);
+}
+
 function revokeLicense(licenseId, rowid) {
     if (debug)
         console.log("Revoking license", licenseId);
@@ -232,19 +264,32 @@ function completeRevoke() {
 }
 
 
+function newIdempotencyKey() {
+    if (window.crypto && typeof window.crypto.randomUUID === 'function') {
+        return window.crypto.randomUUID();
+    }
+    return Date.now().toString(36) + '-' + Math.random().toString(36).substring(2) + Math.random().toString(36).substring(2);
+}
+
 function performLicenseRequest(licenseRequest, rowid) {
     if (debug)
         console.log("Row action on :", rowid);
     button = $('.btnLicense' + rowid);
     button.prop('disabled', true);
+    let requestId = licenseRequest.requestType + '|' + licenseRequest.cloudPlatformId + '|' + licenseRequest.licenseId;
+    if (!pendingRequestKeys[requestId]) {
+        pendingRequestKeys[requestId] = newIdempotencyKey();
+    }
     $.ajax({
         url: ajaxBase + "modifyLicense",
         method: "POST",
         contentType: "application/json",
         dataType: "json",
+        headers: {"Idempotency-Key": pendingRequestKeys[requestId]},
         "data": JSON.stringify(licenseRequest),
         success: function (responseData) {
             console.log("AJAX finished - ResponseData:", responseData);
+            delete pendingRequestKeys[requestId];
             if (responseData.success) {
                 console.log("Success creating license");
                 $('#jsSuccessText').text(stringMap[licenseRequest.requestType].success);
@@ -260,6 +305,9 @@ function performLicenseRequest(licenseRequest, rowid) {
                 else if (licenseRequest.requestType === "EXTEND") {
                     $("#iconExtend" + licenseRequest.licenseId).removeClass('spinner-border spinner-border-sm').addClass(extendIconCss);
                 }
+                else if (licenseRequest.requestType === "DEQUEUE") {
+                    $("#iconDequeue" + licenseRequest.cloudPlatformId).removeClass('spinner-border spinner-border-sm').addClass(dequeueIconCss);
+                }
                 button.prop('disabled', false);
                 console.log("Reloading license table");
                 licenseTable.ajax.reload();
@@ -279,10 +327,21 @@ function performLicenseRequest(licenseRequest, rowid) {
                 else if (licenseRequest.requestType === "EXTEND") {
                     $("#iconExtend" + licenseRequest.licenseId).removeClass('spinner-border spinner-border-sm').addClass(extendIconCss);
                 }
+                else if (licenseRequest.requestType === "DEQUEUE") {
+                    $("#iconDequeue" + licenseRequest.cloudPlatformId).removeClass('spinner-border spinner-border-sm').addClass(dequeueIconCss);
+                }
+                if (responseData.queuePosition !== null) {
+                    console.log("Request queued at position", responseData.queuePosition);
+                    licenseTable.ajax.reload();
+                }
             }
         },
         error: function (error) {
             console.error("Error calling API:", error);
+            // keep the key if the server never answered, so a retry can pick up the original result
+            if (error.status >= 400 && error.status < 500) {
+                delete pendingRequestKeys[requestId];
+            }
             $('#jsErrorText').text(stringMap[licenseRequest.requestType].failure);
             $('#jsError').show();
             button.prop('disabled', false);
@@ -296,15 +355,59 @@ function performLicenseRequest(licenseRequest, rowid) {
             else if (licenseRequest.requestType === "EXTEND") {
                 $("#iconExtend" + licenseRequest.licenseId).removeClass('spinner-border spinner-border-sm').addClass(extendIconCss);
             }
+            else if (licenseRequest.requestType === "DEQUEUE") {
+                $("#iconDequeue" + licenseRequest.cloudPlatformId).removeClass('spinner-border spinner-border-sm').addClass(dequeueIconCss);
+            }
         }
     });
 }
 
 
-let refreshId = setInterval(refreshDataTable, 30000);
+// the table is refreshed by server pushed events where the browser supports them. Events only come from the node
+// the stream is connected to, so changes made on another node are still picked up by the poll, which keeps its short
+// interval while the stream is open. Unchanged polls are answered with a 304 and cost little
+let pollInterval = 30000;
+let pushedPollInterval = 30000;
+let refreshId = setInterval(refreshDataTable, pollInterval);
+let licenseEvents = null;
 
 function refreshDataTable() {
     if (debug)
         console.log("Refreshing data table on timer");
-    licenseTable.ajax.reload();
-}
\ No newline at end of file
+    licenseTable.ajax.reload(null, false);
+}
+
+function setPollInterval(interval) {
+    clearInterval(refreshId);
+    refreshId = setInterval(refreshDataTable, interval);
+}
+
+function connectLicenseEvents() {
+    if (typeof EventSource === 'undefined') {
+        console.log("Browser does not support server sent events. Polling for license changes");
+        return;
+    }
+    licenseEvents = new EventSource(ajaxBase + "licenseEvents");
+    licenseEvents.onopen = function () {
+        if (debug)
+            console.log("License event stream open");
+        setPollInterval(pushedPollInterval);
+        // catch up on anything that changed while the stream was down
+        licenseTable.ajax.reload(null, false);
+    };
+    licenseEvents.addEventListener("license", function (event) {
+        let licenseEvent = JSON.parse(event.data);
+        if (debug)
+            console.log("License event:", licenseEvent);
+        licenseTable.ajax.reload(null, false);
+    });
+    licenseEvents.onerror = function () {
+        console.log("License event stream interrupted. Polling until it reconnects");
+        setPollInterval(pollInterval);
+        if (licenseEvents.readyState === EventSource.CLOSED) {
+            licenseEvents = null;
+        }
+    };
+}
+
+connectLicenseEvents();
\ No newline at end of file
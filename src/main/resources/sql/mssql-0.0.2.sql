@@ -0,0 +1,132 @@
+-- 
+--   gcloudlicensemanagement - mssql-0.0.2.sql
+--
+--   Copyright (c) 2022-2023, Slinky Software
+--
+--   This program is free software: you can redistribute it and/or modify
+--   it under the terms of the GNU Affero General Public License as
+--   published by the Free Software Foundation, either version 3 of the
+--   License, or (at your option) any later version.
+--
+--   This program is distributed in the hope that it will be useful,
+--   but WITHOUT ANY WARRANTY; without even the implied warranty of
+--   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--   GNU Affero General Public License for more details.
+--
+--   A copy of the GNU Affero General Public License is located in the 
+--   AGPL-3.0.md supplied with the source code.
+--
+-- 
+--
+-- Author:  Michael Junek (michael@juneks.com.au)
+-- Created: 17 Oct 2026
+-- 
+
+SET ANSI_NULLS ON
+GO
+SET QUOTED_IDENTIFIER ON
+GO
+
+---------------------------------
+-- LICENSE RESERVATION SUPPORT --
+---------------------------------
+
+-- Licenses are claimed as short-lived reservations before the Azure AD group is updated and confirmed afterwards.
+-- Reservations hold capacity but are not visible to users or expiry, and abandoned ones are reclaimed by the sweeper.
+ALTER TABLE [LIC_ISSUED_LICENSE] ADD [Reserved] [bit] NOT NULL CONSTRAINT [DF_LIC_ISSUED_LICENSE_Reserved] DEFAULT ((0))
+GO
+
+-------------------------------------
+-- END LICENSE RESERVATION SUPPORT --
+-------------------------------------
+
+-------------------------------
+-- SIDE EFFECT OUTBOX TABLES --
+-------------------------------
+
+-- Azure AD and Genesys changes that must follow a license change. Rows are written in the same transaction as the
+-- license row and removed once the side effect has been applied. Only used when outbox.enabled=true
+CREATE TABLE [LIC_SIDE_EFFECT_OUTBOX](
+	[Id] [bigint] IDENTITY(1,1) NOT NULL,
+	[EffectType] [nvarchar](50) NOT NULL,
+	[UPN] [nvarchar](255) NOT NULL,
+	[CloudPlatformId] [bigint] NOT NULL,
+	[LicenseId] [bigint] NULL,
+	[Attempts] [int] NOT NULL CONSTRAINT [DF_LIC_SIDE_EFFECT_OUTBOX_Attempts] DEFAULT ((0)),
+	[NextAttemptDateTime] [datetime] NOT NULL CONSTRAINT [DF_LIC_SIDE_EFFECT_OUTBOX_NextAttemptDateTime] DEFAULT (getdate()),
+	[ClaimedUntilDateTime] [datetime] NULL,
+	[DeadLettered] [bit] NOT NULL CONSTRAINT [DF_LIC_SIDE_EFFECT_OUTBOX_DeadLettered] DEFAULT ((0)),
+	[LastError] [nvarchar](1000) NULL,
+	[CreatedDateTime] [datetime] NOT NULL CONSTRAINT [DF_LIC_SIDE_EFFECT_OUTBOX_CreatedDateTime] DEFAULT (getdate()),
+ CONSTRAINT [LIC_SIDE_EFFECT_OUTBOX_PK] PRIMARY KEY CLUSTERED 
+(
+	[Id] ASC
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON, OPTIMIZE_FOR_SEQUENTIAL_KEY = OFF) 
+) 
+GO
+
+CREATE NONCLUSTERED INDEX [IX_LIC_SIDE_EFFECT_OUTBOX_Due] ON [LIC_SIDE_EFFECT_OUTBOX]
+(
+	[DeadLettered] ASC,
+	[NextAttemptDateTime] ASC
+)
+GO
+
+-----------------------------------
+-- END SIDE EFFECT OUTBOX TABLES --
+-----------------------------------
+
+----------------------------------
+-- AZURE AD GROUP MIRROR TABLES --
+----------------------------------
+
+-- Persisted copy of the access group membership mirror and the Graph delta link it was read up to, so a restart
+-- resumes from the delta link instead of listing every member again. Only used when azure.group-mirror.persist=true
+CREATE TABLE [LIC_AZURE_GROUP_MIRROR](
+	[GroupId] [nvarchar](64) NOT NULL,
+	[DeltaLink] [nvarchar](max) NULL,
+	[LastSyncDateTime] [datetime] NOT NULL CONSTRAINT [DF_LIC_AZURE_GROUP_MIRROR_LastSyncDateTime] DEFAULT (getdate()),
+ CONSTRAINT [LIC_AZURE_GROUP_MIRROR_PK] PRIMARY KEY CLUSTERED 
+(
+	[GroupId] ASC
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON, OPTIMIZE_FOR_SEQUENTIAL_KEY = OFF) 
+) 
+GO
+
+CREATE TABLE [LIC_AZURE_GROUP_MIRROR_MEMBER](
+	[GroupId] [nvarchar](64) NOT NULL,
+	[UserId] [nvarchar](64) NOT NULL,
+ CONSTRAINT [LIC_AZURE_GROUP_MIRROR_MEMBER_PK] PRIMARY KEY CLUSTERED 
+(
+	[GroupId] ASC,
+	[UserId] ASC
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON, OPTIMIZE_FOR_SEQUENTIAL_KEY = OFF) 
+) 
+GO
+
+--------------------------------------
+-- END AZURE AD GROUP MIRROR TABLES --
+--------------------------------------
+
+---------------------------------
+-- GENESYS USER ID CACHE TABLE --
+---------------------------------
+
+-- Genesys Cloud user id for each UPN on each platform, so forcing a logout does not need a user search first.
+-- Rows are replaced when the id no longer resolves. Only used when genesys.user-cache.persist=true
+CREATE TABLE [LIC_GENESYS_USER](
+	[CloudPlatformId] [bigint] NOT NULL,
+	[UPN] [nvarchar](255) NOT NULL,
+	[GenesysUserId] [nvarchar](64) NOT NULL,
+	[LastVerifiedDateTime] [datetime] NOT NULL CONSTRAINT [DF_LIC_GENESYS_USER_LastVerifiedDateTime] DEFAULT (getdate()),
+ CONSTRAINT [LIC_GENESYS_USER_PK] PRIMARY KEY CLUSTERED 
+(
+	[CloudPlatformId] ASC,
+	[UPN] ASC
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON, OPTIMIZE_FOR_SEQUENTIAL_KEY = OFF) 
+) 
+GO
+
+-------------------------------------
+-- END GENESYS USER ID CACHE TABLE --
+-------------------------------------
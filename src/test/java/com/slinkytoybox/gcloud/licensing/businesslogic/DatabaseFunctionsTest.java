@@ -0,0 +1,514 @@
+/*
+ *   gcloudlicensemanagement - DatabaseFunctionsTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.businesslogic.LicenseManagement.ReturnReason;
+import com.slinkytoybox.gcloud.licensing.connection.CloudDatabaseConnection;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AllocationResult;
+import com.slinkytoybox.gcloud.licensing.dto.internal.AllocationResult.AllocationStatus;
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry;
+import com.slinkytoybox.gcloud.licensing.dto.internal.OutboxEntry.SideEffectType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Runs the SQL paths against a mocked JDBC connection, checking the statement
+ * text, the parameters bound to it and how the rows it returns are mapped.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ExtendWith(MockitoExtension.class)
+public class DatabaseFunctionsTest {
+
+    @Mock
+    private CloudDatabaseConnection cdc;
+
+    @Mock
+    private Connection dbConnection;
+
+    @Mock
+    private PreparedStatement ps;
+
+    @InjectMocks
+    private DatabaseFunctions dbFunc;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        lenient().when(cdc.getDatabaseConnection()).thenReturn(dbConnection);
+        lenient().when(dbConnection.prepareStatement(anyString())).thenReturn(ps);
+    }
+
+    @Test
+    public void expiringLicensesAreReadForTheWarningWindow() throws SQLException {
+        LocalDateTime now = LocalDateTime.now();
+        when(ps.executeQuery()).thenReturn(resultSet(licenseRow(1L, "a@example.com", now.minusHours(8), now.plusMinutes(5))));
+
+        List<LicenseDTO> licenses = dbFunc.getLicensesExpiringBetween(now, now.plusMinutes(10));
+
+        assertEquals(1, licenses.size());
+        assertEquals("a@example.com", licenses.get(0).getUpn());
+        assertEquals(now.plusMinutes(5), licenses.get(0).getExpiryDate());
+        assertTrue(preparedSql().get(0).contains(" WHERE LIC.Reserved = 0 AND LIC.LicenseExpiryDateTime > ? AND LIC.LicenseExpiryDateTime < ?"));
+        verify(ps).setTimestamp(1, Timestamp.valueOf(now));
+        verify(ps).setTimestamp(2, Timestamp.valueOf(now.plusMinutes(10)));
+    }
+
+    @Test
+    public void expiringLicensesErrorReturnsNothing() throws SQLException {
+        when(ps.executeQuery()).thenThrow(new SQLException("connection reset"));
+
+        assertTrue(dbFunc.getLicensesExpiringBetween(LocalDateTime.now(), LocalDateTime.now().plusMinutes(10)).isEmpty());
+    }
+
+    @Test
+    public void reservationIsGuardedByTheHardLimitAndExistingLicense() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet(row("LicenseId", 42L, "InUse", 5L, "UserLicenses", 1L)));
+
+        AllocationResult result = dbFunc.reserveLicenseInDatabase(7L, 3L, 1L, 10L, LocalDateTime.now().plusHours(1));
+
+        assertEquals(AllocationStatus.ALLOCATED, result.getStatus());
+        assertEquals(42L, result.getLicenseId());
+        assertEquals(5L, result.getInUseCount());
+        String sql = preparedSql().get(0);
+        assertTrue(sql.contains("WHERE (SELECT COUNT(*) FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE LICENSEGROUPID = ?) < ?"));
+        assertTrue(sql.contains("AND NOT EXISTS (SELECT 1 FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE USERID = ? AND CLOUDPLATFORMID = ?)"));
+        // the row is written as a reservation, so it holds the slot without being visible as an issued license
+        assertTrue(sql.contains("SELECT NEXT VALUE FOR SEQ_LIC_ISSUED_LICENSE, ?, ?, GETDATE(), ?, ?, 1\n"));
+        verify(ps).setLong(5, 3L);
+        verify(ps).setLong(6, 10L);
+        verify(ps).setLong(7, 7L);
+        verify(ps).setLong(8, 1L);
+        // no outbox row for a reservation, so the result counts follow straight on
+        assertFalse(sql.contains("LIC_SIDE_EFFECT_OUTBOX"));
+        verify(ps).setLong(9, 3L);
+        verify(ps).setLong(11, 1L);
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void fullGroupIsReportedWithItsCount() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet(row("LicenseId", null, "InUse", 10L, "UserLicenses", 0L)));
+
+        AllocationResult result = dbFunc.reserveLicenseInDatabase(7L, 3L, 1L, 10L, LocalDateTime.now().plusHours(1));
+
+        assertEquals(AllocationStatus.OVER_HARD_LIMIT, result.getStatus());
+        assertNull(result.getLicenseId());
+        assertEquals(10L, result.getInUseCount());
+    }
+
+    @Test
+    public void existingLicenseIsReported() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet(row("LicenseId", null, "InUse", 4L, "UserLicenses", 1L)));
+
+        AllocationResult result = dbFunc.reserveLicenseInDatabase(7L, 3L, 1L, 10L, LocalDateTime.now().plusHours(1));
+
+        assertEquals(AllocationStatus.ALREADY_LICENSED, result.getStatus());
+    }
+
+    @Test
+    public void reservationWithoutResultIsRolledBack() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet());
+
+        AllocationResult result = dbFunc.reserveLicenseInDatabase(7L, 3L, 1L, 10L, LocalDateTime.now().plusHours(1));
+
+        assertEquals(AllocationStatus.ERROR, result.getStatus());
+        verify(dbConnection).rollback();
+        verify(dbConnection, never()).commit();
+    }
+
+    @Test
+    public void reservationErrorIsReported() throws SQLException {
+        when(ps.executeQuery()).thenThrow(new SQLException("deadlock victim"));
+
+        AllocationResult result = dbFunc.reserveLicenseInDatabase(7L, 3L, 1L, 10L, LocalDateTime.now().plusHours(1));
+
+        assertEquals(AllocationStatus.ERROR, result.getStatus());
+        verify(dbConnection, never()).commit();
+    }
+
+    @Test
+    public void confirmationOnlyTouchesAnOpenReservation() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(1);
+        LocalDateTime expiry = LocalDateTime.now().plusHours(8);
+
+        assertTrue(dbFunc.confirmReservation(42L, expiry));
+
+        assertTrue(preparedSql().get(0).contains("WHERE ID = ? AND RESERVED = 1"));
+        verify(ps).setTimestamp(1, Timestamp.valueOf(expiry));
+        verify(ps).setLong(2, 42L);
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void reclaimedReservationCannotBeConfirmed() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(0);
+
+        assertFalse(dbFunc.confirmReservation(42L, LocalDateTime.now().plusHours(8)));
+
+        verify(dbConnection).rollback();
+        verify(dbConnection, never()).commit();
+    }
+
+    @Test
+    public void releaseOnlyDeletesAnOpenReservation() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(1, 0);
+
+        assertTrue(dbFunc.releaseReservation(42L));
+        assertFalse(dbFunc.releaseReservation(42L));
+
+        assertEquals("DELETE FROM LIC_ISSUED_LICENSE WHERE ID = ? AND RESERVED = 1", preparedSql().get(0));
+    }
+
+    @Test
+    public void timedOutReservationsAreReclaimed() throws SQLException {
+        LocalDateTime issued = LocalDateTime.now().minusMinutes(5);
+        when(ps.executeQuery()).thenReturn(resultSet(licenseRow(42L, "user@example.com", issued, issued.plusMinutes(2))));
+
+        List<LicenseDTO> reclaimed = dbFunc.reclaimExpiredReservations();
+
+        assertEquals(1, reclaimed.size());
+        assertEquals(42L, reclaimed.get(0).getId());
+        assertEquals("user@example.com", reclaimed.get(0).getUpn());
+        assertEquals(issued.plusMinutes(2), reclaimed.get(0).getExpiryDate());
+        assertTrue(preparedSql().get(0).contains("WHERE RESERVED = 1 AND LicenseExpiryDateTime < GETDATE()"));
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void reclaimErrorReturnsNothing() throws SQLException {
+        when(ps.executeQuery()).thenThrow(new SQLException("timeout"));
+
+        assertTrue(dbFunc.reclaimExpiredReservations().isEmpty());
+    }
+
+    @Test
+    public void issueWithOutboxQueuesTheGrantInTheSameStatement() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet(row("LicenseId", 42L, "InUse", 5L, "UserLicenses", 1L)));
+
+        AllocationResult result = dbFunc.issueLicenseWithOutbox(7L, "user@example.com", 3L, 1L, 10L, LocalDateTime.now().plusHours(8));
+
+        assertEquals(AllocationStatus.ALLOCATED, result.getStatus());
+        String sql = preparedSql().get(0);
+        assertTrue(sql.contains("SELECT NEXT VALUE FOR SEQ_LIC_ISSUED_LICENSE, ?, ?, GETDATE(), ?, ?, 0\n"));
+        assertTrue(sql.contains("WHERE (SELECT COUNT(*) FROM LIC_ISSUED_LICENSE WITH (UPDLOCK, HOLDLOCK) WHERE LICENSEGROUPID = ?) < ?"));
+        // the outbox row is only written for a license that was actually inserted
+        assertTrue(sql.contains("INSERT INTO LIC_SIDE_EFFECT_OUTBOX (EffectType, UPN, CloudPlatformId, LicenseId)\n SELECT ?, ?, ?, Id FROM @Allocated;"));
+        verify(ps).setNString(9, SideEffectType.GRANT_ACCESS.name());
+        verify(ps).setNString(10, "user@example.com");
+        verify(ps).setLong(12, 3L);
+        verify(ps).setLong(14, 1L);
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void returnWithOutboxCommitsDeleteHistoryAndRevokeTogether() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(1);
+
+        assertTrue(dbFunc.returnLicenseWithOutbox(license(42L), ReturnReason.AGENT_REQEUST));
+
+        List<String> sql = preparedSql();
+        assertEquals(3, sql.size());
+        assertTrue(sql.stream().anyMatch(s -> s.startsWith("DELETE FROM LIC_ISSUED_LICENSE")));
+        assertTrue(sql.stream().anyMatch(s -> s.startsWith("INSERT INTO LIC_LICENSE_HISTORY")));
+        assertTrue(sql.stream().anyMatch(s -> s.startsWith("INSERT INTO LIC_SIDE_EFFECT_OUTBOX")));
+        verify(ps).setNString(1, SideEffectType.REVOKE_ACCESS.name());
+        verify(cdc).getDatabaseConnection();
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void returnWithOutboxRollsBackWhenTheLicenseIsGone() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(0);
+
+        assertFalse(dbFunc.returnLicenseWithOutbox(license(42L), ReturnReason.EXPIRED));
+
+        verify(dbConnection).rollback();
+        verify(dbConnection, never()).commit();
+    }
+
+    @Test
+    public void claimSkipsLockedRowsAndKeepsPerUserOrder() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet(
+                row("Id", 11L, "EffectType", "GRANT_ACCESS", "UPN", "user@example.com", "CloudPlatformId", 1L, "LicenseId", 42L, "Attempts", 1),
+                row("Id", 12L, "EffectType", "REVOKE_ACCESS", "UPN", "other@example.com", "CloudPlatformId", 1L, "LicenseId", null, "Attempts", 3)));
+
+        List<OutboxEntry> entries = dbFunc.claimOutboxEntries(10, 120);
+
+        assertEquals(2, entries.size());
+        assertEquals(SideEffectType.GRANT_ACCESS, entries.get(0).getEffectType());
+        assertEquals(42L, entries.get(0).getLicenseId());
+        assertEquals(SideEffectType.REVOKE_ACCESS, entries.get(1).getEffectType());
+        // a manual revoke has no license, and must not pick up the platform id read after it
+        assertNull(entries.get(1).getLicenseId());
+        assertEquals(1L, entries.get(1).getCloudPlatformId());
+        assertEquals(3, entries.get(1).getAttempts());
+        String sql = preparedSql().get(0);
+        assertTrue(sql.contains("WITH (ROWLOCK, UPDLOCK, READPAST)"));
+        assertTrue(sql.contains("(O.ClaimedUntilDateTime IS NULL OR O.ClaimedUntilDateTime < GETDATE())"));
+        assertTrue(sql.contains("P.UPN = O.UPN AND P.CloudPlatformId = O.CloudPlatformId AND P.Id < O.Id AND P.DeadLettered = 0"));
+        verify(ps).setInt(1, 10);
+        verify(ps).setInt(2, 120);
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void claimErrorClaimsNothing() throws SQLException {
+        when(ps.executeQuery()).thenThrow(new SQLException("timeout"));
+
+        assertTrue(dbFunc.claimOutboxEntries(10, 120).isEmpty());
+    }
+
+    @Test
+    public void completionOnlyDeletesTheEntryWhileTheClaimIsCurrent() throws SQLException {
+        when(ps.executeUpdate()).thenReturn(1, 0);
+
+        assertTrue(dbFunc.completeOutboxEntry(11L, 2));
+        // claimed again by another worker once the lease ran out, so Attempts has moved on
+        assertFalse(dbFunc.completeOutboxEntry(11L, 2));
+
+        assertEquals("DELETE FROM LIC_SIDE_EFFECT_OUTBOX WHERE ID = ? AND Attempts = ?", preparedSql().get(0));
+        verify(ps, times(2)).setInt(2, 2);
+    }
+
+    @Test
+    public void rescheduleOnlyReleasesTheCurrentClaim() throws SQLException {
+        LocalDateTime nextAttempt = LocalDateTime.now().plusSeconds(20);
+        when(ps.executeUpdate()).thenReturn(0);
+
+        assertFalse(dbFunc.rescheduleOutboxEntry(11L, 2, nextAttempt, "throttled", false));
+
+        assertTrue(preparedSql().get(0).endsWith(" WHERE ID = ? AND Attempts = ?"));
+        verify(ps).setTimestamp(1, Timestamp.valueOf(nextAttempt));
+        verify(ps).setLong(4, 11L);
+        verify(ps).setInt(5, 2);
+    }
+
+    @Test
+    public void setBasedExpiryArchivesAndQueuesCleanUpInOneStatement() throws SQLException {
+        LocalDateTime issued = LocalDateTime.now().minusHours(9);
+        when(ps.executeQuery()).thenReturn(resultSet(licenseRow(42L, "user@example.com", issued, issued.plusHours(8))));
+
+        List<LicenseDTO> expired = dbFunc.expireLicensesInDatabase(100, true);
+
+        assertEquals(1, expired.size());
+        assertEquals(42L, expired.get(0).getId());
+        String sql = preparedSql().get(0);
+        assertTrue(sql.contains("DELETE TOP (?) FROM LIC_ISSUED_LICENSE"));
+        assertTrue(sql.contains("WHERE RESERVED = 0 AND LicenseExpiryDateTime < GETDATE();"));
+        assertTrue(sql.contains("INSERT INTO LIC_LICENSE_HISTORY"));
+        assertTrue(sql.contains("INSERT INTO LIC_SIDE_EFFECT_OUTBOX"));
+        verify(ps).setInt(1, 100);
+        verify(ps).setNString(2, ReturnReason.EXPIRED.name());
+        verify(ps).setNString(3, SideEffectType.REVOKE_ACCESS.name());
+        verify(dbConnection).commit();
+    }
+
+    @Test
+    public void setBasedExpiryWithoutOutboxLeavesCleanUpToTheCaller() throws SQLException {
+        when(ps.executeQuery()).thenReturn(resultSet());
+
+        assertTrue(dbFunc.expireLicensesInDatabase(100, false).isEmpty());
+
+        assertFalse(preparedSql().get(0).contains("LIC_SIDE_EFFECT_OUTBOX"));
+        verify(ps, never()).setNString(3, SideEffectType.REVOKE_ACCESS.name());
+    }
+
+    @Test
+    public void setBasedExpiryErrorIsReported() throws SQLException {
+        when(ps.executeQuery()).thenThrow(new SQLException("deadlock victim"));
+
+        assertNull(dbFunc.expireLicensesInDatabase(100, true));
+        verify(dbConnection, never()).commit();
+    }
+
+    @Test
+    public void issuedLicensesArePagedBySeekingPastTheLastRow() throws SQLException {
+        ReflectionTestUtils.setField(dbFunc, "streamPageSize", 2);
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        when(ps.executeQuery()).thenReturn(
+                resultSet(licenseRow(1L, "a@example.com", expiry.minusHours(8), expiry), licenseRow(2L, "b@example.com", expiry.minusHours(8), expiry)),
+                resultSet(licenseRow(3L, "c@example.com", expiry.minusHours(7), expiry.plusHours(1))));
+        List<List<Long>> pages = new ArrayList<>();
+
+        assertTrue(dbFunc.streamIssuedLicenses(page -> pages.add(page.stream().map(LicenseDTO::getId).toList())));
+
+        assertEquals(List.of(List.of(1L, 2L), List.of(3L)), pages);
+        List<String> sql = preparedSql();
+        assertEquals(2, sql.size());
+        assertTrue(sql.get(0).startsWith("SELECT TOP (?)"));
+        assertTrue(sql.get(0).contains(" WHERE LIC.Reserved = 0\n ORDER BY LIC.LicenseExpiryDateTime, LIC.Id"));
+        // the second page seeks past the last row handed out instead of using an offset
+        assertTrue(sql.get(1).contains("AND (LIC.LicenseExpiryDateTime > ? OR (LIC.LicenseExpiryDateTime = ? AND LIC.Id > ?))"));
+        verify(ps, times(2)).setInt(1, 2);
+        verify(ps).setTimestamp(2, Timestamp.valueOf(expiry));
+        verify(ps).setTimestamp(3, Timestamp.valueOf(expiry));
+        verify(ps).setLong(4, 2L);
+        // each page runs on its own connection so no long-lived cursor holds locks
+        verify(cdc, times(2)).getDatabaseConnection();
+    }
+
+    @Test
+    public void fullLastPageEndsOnAnEmptyPage() throws SQLException {
+        ReflectionTestUtils.setField(dbFunc, "streamPageSize", 2);
+        LocalDateTime expiry = LocalDateTime.now().minusMinutes(5);
+        when(ps.executeQuery()).thenReturn(
+                resultSet(licenseRow(1L, "a@example.com", expiry.minusHours(8), expiry), licenseRow(2L, "b@example.com", expiry.minusHours(8), expiry)),
+                resultSet());
+        List<Integer> pageSizes = new ArrayList<>();
+
+        assertTrue(dbFunc.streamExpiredLicenses(page -> pageSizes.add(page.size())));
+
+        assertEquals(List.of(2), pageSizes);
+        assertTrue(preparedSql().get(0).contains(" WHERE LIC.LicenseExpiryDateTime < GETDATE() AND LIC.Reserved = 0\n"));
+        verify(cdc, times(2)).getDatabaseConnection();
+    }
+
+    @Test
+    public void newlyIssuedLicensesBindTheWatermarkBeforeTheSeek() throws SQLException {
+        ReflectionTestUtils.setField(dbFunc, "streamPageSize", 1);
+        LocalDateTime issuedAfter = LocalDateTime.now().minusMinutes(2);
+        LocalDateTime expiry = LocalDateTime.now().plusHours(8);
+        when(ps.executeQuery()).thenReturn(resultSet(licenseRow(5L, "e@example.com", issuedAfter.plusMinutes(1), expiry)), resultSet());
+        List<Integer> pageSizes = new ArrayList<>();
+
+        assertTrue(dbFunc.streamLicensesIssuedSince(issuedAfter, page -> pageSizes.add(page.size())));
+
+        assertEquals(List.of(1), pageSizes);
+        List<String> sql = preparedSql();
+        assertTrue(sql.get(0).contains(" WHERE LIC.Reserved = 0 AND LIC.LicenseIssueDateTime > ?\n ORDER BY"));
+        assertTrue(sql.get(1).contains(" WHERE LIC.Reserved = 0 AND LIC.LicenseIssueDateTime > ?\n  AND (LIC.LicenseExpiryDateTime > ?"));
+        verify(ps, times(2)).setTimestamp(2, Timestamp.valueOf(issuedAfter));
+        verify(ps).setTimestamp(3, Timestamp.valueOf(expiry));
+        verify(ps).setTimestamp(4, Timestamp.valueOf(expiry));
+        verify(ps).setLong(5, 5L);
+    }
+
+    @Test
+    public void errorPartWayThroughIsReported() throws SQLException {
+        ReflectionTestUtils.setField(dbFunc, "streamPageSize", 2);
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        when(ps.executeQuery())
+                .thenReturn(resultSet(licenseRow(1L, "a@example.com", expiry.minusHours(8), expiry), licenseRow(2L, "b@example.com", expiry.minusHours(8), expiry)))
+                .thenThrow(new SQLException("connection reset"));
+        List<Integer> pageSizes = new ArrayList<>();
+
+        assertFalse(dbFunc.streamIssuedLicenses(page -> pageSizes.add(page.size())));
+
+        // the page read before the failure has already been handed over
+        assertEquals(List.of(2), pageSizes);
+    }
+
+    private List<String> preparedSql() throws SQLException {
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(dbConnection, atLeastOnce()).prepareStatement(sql.capture());
+        return sql.getAllValues();
+    }
+
+    // column labels are matched without case, as the SQL Server driver does
+    private static Map<String, Object> row(Object... labelsAndValues) {
+        Map<String, Object> row = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < labelsAndValues.length; i += 2) {
+            row.put((String) labelsAndValues[i], labelsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    private static LicenseDTO license(Long id) {
+        return new LicenseDTO()
+                .setId(id)
+                .setUpn("user@example.com")
+                .setUserId(7L)
+                .setCloudPlatformId(1L)
+                .setLicenseGroupId(3L)
+                .setIssueDate(LocalDateTime.now().minusHours(1))
+                .setExpiryDate(LocalDateTime.now().plusHours(7));
+    }
+
+    private static Map<String, Object> licenseRow(Long id, String upn, LocalDateTime issued, LocalDateTime expiry) {
+        return row("Id", id, "LicenseIssueDateTime", Timestamp.valueOf(issued), "LicenseExpiryDateTime", Timestamp.valueOf(expiry),
+                "UPN", upn, "CloudPlatformId", 1L, "LicenseGroupId", 3L, "USERID", 7L);
+    }
+
+    // a forward-only result set over the rows, supporting the getters and wasNull() the data access code uses
+    @SafeVarargs
+    private static ResultSet resultSet(Map<String, Object>... rows) {
+        int[] cursor = {-1};
+        Object[] lastValue = {null};
+        return mock(ResultSet.class, invocation -> {
+            String method = invocation.getMethod().getName();
+            if (method.equals("next")) {
+                return ++cursor[0] < rows.length;
+            }
+            if (method.equals("wasNull")) {
+                return lastValue[0] == null;
+            }
+            if (method.startsWith("get") && invocation.getArguments().length == 1 && invocation.getArgument(0) instanceof String label) {
+                if (!rows[cursor[0]].containsKey(label)) {
+                    throw new SQLException("Invalid column name '" + label + "'");
+                }
+                Object value = rows[cursor[0]].get(label);
+                lastValue[0] = value;
+                Class<?> type = invocation.getMethod().getReturnType();
+                if (type == long.class) {
+                    return value == null ? 0L : ((Number) value).longValue();
+                }
+                if (type == int.class) {
+                    return value == null ? 0 : ((Number) value).intValue();
+                }
+                if (type == boolean.class) {
+                    return value != null && (Boolean) value;
+                }
+                return value;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ *   gcloudlicensemanagement - GenesysUserCacheTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * In-memory behaviour of the Genesys user id cache, with and without the
+ * LIC_GENESYS_USER table behind it. Each entry's lifetime is fixed when it is
+ * stored, so the tests change the TTL between puts to order expiry.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ExtendWith(MockitoExtension.class)
+public class GenesysUserCacheTest {
+
+    @Mock
+    private DatabaseFunctions dbFunc;
+
+    @InjectMocks
+    private GenesysUserCache userCache;
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(userCache, "cacheEnabled", true);
+        ReflectionTestUtils.setField(userCache, "persistCache", false);
+        ReflectionTestUtils.setField(userCache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(userCache, "maxEntries", 2);
+    }
+
+    @Test
+    public void idIsCachedPerPlatformAndMatchedWithoutCase() {
+        userCache.putUserId(1L, "user@example.com", "genesys-1");
+
+        assertEquals("genesys-1", userCache.getUserId(1L, "USER@example.com"));
+        assertNull(userCache.getUserId(2L, "user@example.com"));
+        verifyNoInteractions(dbFunc);
+    }
+
+    @Test
+    public void expiredIdIsNotReturned() {
+        // a negative TTL stores the entry already expired
+        ReflectionTestUtils.setField(userCache, "ttlSeconds", -1L);
+        userCache.putUserId(1L, "user@example.com", "genesys-1");
+
+        assertNull(userCache.getUserId(1L, "user@example.com"));
+    }
+
+    @Test
+    public void entriesClosestToExpiryAreEvictedPastMaxEntries() {
+        putWithTtl("first@example.com", "genesys-1", 100L);
+        putWithTtl("second@example.com", "genesys-2", 200L);
+        putWithTtl("third@example.com", "genesys-3", 300L);
+
+        assertEquals(2, userCache.getStatistics().get("entries"));
+        assertNull(userCache.getUserId(1L, "first@example.com"));
+        assertEquals("genesys-2", userCache.getUserId(1L, "second@example.com"));
+        assertEquals("genesys-3", userCache.getUserId(1L, "third@example.com"));
+    }
+
+    @Test
+    public void expiredEntriesMakeRoomFirst() {
+        putWithTtl("expired@example.com", "genesys-0", -1L);
+        putWithTtl("first@example.com", "genesys-1", 100L);
+        putWithTtl("second@example.com", "genesys-2", 3600L);
+
+        assertEquals(2, userCache.getStatistics().get("entries"));
+        assertEquals("genesys-1", userCache.getUserId(1L, "first@example.com"));
+        assertEquals("genesys-2", userCache.getUserId(1L, "second@example.com"));
+    }
+
+    @Test
+    public void disabledCacheNeitherStoresNorReads() {
+        ReflectionTestUtils.setField(userCache, "cacheEnabled", false);
+        ReflectionTestUtils.setField(userCache, "persistCache", true);
+        userCache.putUserId(1L, "user@example.com", "genesys-1");
+
+        assertNull(userCache.getUserId(1L, "user@example.com"));
+        verifyNoInteractions(dbFunc);
+    }
+
+    @Test
+    public void persistedIdIsReadOnceThenServedFromMemory() {
+        ReflectionTestUtils.setField(userCache, "persistCache", true);
+        when(dbFunc.getGenesysUserId(1L, "user@example.com")).thenReturn("genesys-1");
+
+        assertEquals("genesys-1", userCache.getUserId(1L, "user@example.com"));
+        assertEquals("genesys-1", userCache.getUserId(1L, "user@example.com"));
+
+        verify(dbFunc).getGenesysUserId(1L, "user@example.com");
+        assertEquals(1L, userCache.getStatistics().get("databaseHits"));
+        assertEquals(1L, userCache.getStatistics().get("hits"));
+    }
+
+    @Test
+    public void invalidatedIdIsRemovedFromMemoryAndDatabase() {
+        ReflectionTestUtils.setField(userCache, "persistCache", true);
+        when(dbFunc.saveGenesysUserId(1L, "user@example.com", "genesys-1")).thenReturn(true);
+        userCache.putUserId(1L, "user@example.com", "genesys-1");
+
+        userCache.invalidate(1L, "user@example.com");
+
+        verify(dbFunc).deleteGenesysUserId(1L, "user@example.com");
+        ReflectionTestUtils.setField(userCache, "persistCache", false);
+        assertNull(userCache.getUserId(1L, "user@example.com"));
+        assertEquals(1L, userCache.getStatistics().get("invalidations"));
+    }
+
+    @Test
+    public void failedPersistStillCachesInMemory() {
+        ReflectionTestUtils.setField(userCache, "persistCache", true);
+        when(dbFunc.saveGenesysUserId(1L, "user@example.com", "genesys-1")).thenReturn(false);
+
+        userCache.putUserId(1L, "user@example.com", "genesys-1");
+
+        assertEquals("genesys-1", userCache.getUserId(1L, "user@example.com"));
+        verify(dbFunc, never()).getGenesysUserId(1L, "user@example.com");
+    }
+
+    private void putWithTtl(String upn, String userId, long ttlSeconds) {
+        ReflectionTestUtils.setField(userCache, "ttlSeconds", ttlSeconds);
+        userCache.putUserId(1L, upn, userId);
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ *   gcloudlicensemanagement - GraphThrottleTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Retry-After parsing and the adaptive limit. Retries are switched off unless a
+ * test needs them, so a throttle only records the 429 and never sleeps.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class GraphThrottleTest {
+
+    private final GraphThrottle throttle = new GraphThrottle();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(throttle, "maxConcurrency", 16);
+        ReflectionTestUtils.setField(throttle, "minConcurrency", 2);
+        ReflectionTestUtils.setField(throttle, "maxRetries", 0);
+        ReflectionTestUtils.setField(throttle, "backoffBaseMillis", 1L);
+        ReflectionTestUtils.setField(throttle, "backoffMaxSeconds", 1L);
+        ReflectionTestUtils.setField(throttle, "maxRetryAfterSeconds", 1L);
+        ReflectionTestUtils.setField(throttle, "acquireTimeoutSeconds", 1L);
+        ReflectionTestUtils.setField(throttle, "decreaseIntervalMillis", 1000L);
+    }
+
+    @Test
+    public void retryAfterSecondsAreParsed() {
+        assertEquals(120L, GraphThrottle.parseRetryAfter("120"));
+        assertEquals(5L, GraphThrottle.parseRetryAfter(" 5 "));
+        assertEquals(0L, GraphThrottle.parseRetryAfter("-3"));
+    }
+
+    @Test
+    public void retryAfterHttpDateIsParsed() {
+        String inThirtySeconds = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+        Long seconds = GraphThrottle.parseRetryAfter(inThirtySeconds);
+        assertTrue(seconds >= 25 && seconds <= 30, "expected about 30 seconds but got " + seconds);
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(5));
+        assertEquals(0L, GraphThrottle.parseRetryAfter(past));
+    }
+
+    @Test
+    public void missingOrInvalidRetryAfterIsIgnored() {
+        assertNull(GraphThrottle.parseRetryAfter(null));
+        assertNull(GraphThrottle.parseRetryAfter("  "));
+        assertNull(GraphThrottle.parseRetryAfter("soon"));
+    }
+
+    @Test
+    public void batchRetryAfterHeaderIsMatchedWithoutCase() {
+        assertEquals(7L, GraphThrottle.getRetryAfterSeconds(Map.of("RETRY-AFTER", "7")));
+        assertNull(GraphThrottle.getRetryAfterSeconds(Map.of("Content-Type", "application/json")));
+    }
+
+    @Test
+    public void retryBudgetCoversEveryRetryAtTheLongestDelay() {
+        ReflectionTestUtils.setField(throttle, "maxRetries", 5);
+        ReflectionTestUtils.setField(throttle, "maxRetryAfterSeconds", 120L);
+        ReflectionTestUtils.setField(throttle, "backoffMaxSeconds", 60L);
+        ReflectionTestUtils.setField(throttle, "acquireTimeoutSeconds", 60L);
+
+        assertEquals(660L, throttle.getRetryBudgetSeconds());
+    }
+
+    @Test
+    public void burstOfThrottlesHalvesTheLimitOnce() {
+        assertEquals(16, concurrencyLimit());
+
+        throttled("first");
+        assertEquals(8, concurrencyLimit());
+
+        throttled("same burst");
+        assertEquals(8, concurrencyLimit());
+        assertEquals(2L, throttle.getStatistics().get("throttled"));
+    }
+
+    @Test
+    public void repeatedThrottlesHalveTheLimitDownToTheMinimum() {
+        ReflectionTestUtils.setField(throttle, "decreaseIntervalMillis", 0L);
+
+        int expected = 16;
+        while (expected > 2) {
+            throttled("throttled");
+            expected /= 2;
+            assertEquals(expected, concurrencyLimit());
+        }
+
+        throttled("at minimum");
+        assertEquals(2, concurrencyLimit());
+    }
+
+    @Test
+    public void successRaisesTheLimitBackToTheMaximum() {
+        throttled("first");
+        assertEquals(8, concurrencyLimit());
+
+        // one extra slot for every "limit" successful calls
+        for (int i = 0; i < 9; i++) {
+            throttle.execute("call", () -> true);
+        }
+        assertEquals(9, concurrencyLimit());
+
+        for (int i = 0; i < 500; i++) {
+            throttle.execute("call", () -> true);
+        }
+        assertEquals(16, concurrencyLimit());
+        assertEquals(0, throttle.getStatistics().get("inFlight"));
+    }
+
+    @Test
+    public void batchRetryGivesUpAfterMaxRetries() {
+        ReflectionTestUtils.setField(throttle, "maxRetries", 1);
+
+        assertTrue(throttle.throttledRetry("batch", 0, 0L));
+        assertFalse(throttle.throttledRetry("batch", 1, 0L));
+        assertEquals(1L, throttle.getStatistics().get("retries"));
+        assertEquals(1L, throttle.getStatistics().get("retriesExhausted"));
+    }
+
+    private void throttled(String operation) {
+        // with no retries left this only records the throttle
+        assertFalse(throttle.throttledRetry(operation, 0, null));
+    }
+
+    private int concurrencyLimit() {
+        return (Integer) throttle.getStatistics().get("concurrencyLimit");
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ *   gcloudlicensemanagement - GroupMembershipMirrorTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.GroupMemberDelta;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Syncs a single group through a fake delta fetcher. Changes this node makes
+ * while a delta is being read are recorded from inside the fetcher, which is
+ * the window where a sync used to overwrite them.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class GroupMembershipMirrorTest {
+
+    private static final String GROUP_ID = "group-1";
+
+    private GroupMembershipMirror mirror;
+
+    @BeforeEach
+    public void setUp() {
+        mirror = new GroupMembershipMirror();
+        ReflectionTestUtils.setField(mirror, "mirrorEnabled", true);
+        ReflectionTestUtils.setField(mirror, "persistMirror", false);
+        ReflectionTestUtils.setField(mirror, "maxAgeSeconds", 300L);
+    }
+
+    @Test
+    public void deltaIsAppliedToThePreviousMembers() {
+        sync((groupId, deltaLink) -> delta(true, List.of("user-1", "user-2"), List.of()));
+        sync((groupId, deltaLink) -> delta(false, List.of("user-3"), List.of("user-1")));
+
+        assertEquals(Set.of("user-2", "user-3"), mirror.getMembers(GROUP_ID));
+    }
+
+    @Test
+    public void changeRecordedDuringFullSyncIsKept() {
+        sync((groupId, deltaLink) -> delta(true, List.of("user-1", "user-2"), List.of()));
+
+        sync((groupId, deltaLink) -> {
+            mirror.recordChange(GROUP_ID, "user-3", true);
+            mirror.recordChange(GROUP_ID, "user-1", false);
+            return delta(true, List.of("user-1", "user-2"), List.of());
+        });
+
+        assertEquals(Set.of("user-2", "user-3"), mirror.getMembers(GROUP_ID));
+    }
+
+    @Test
+    public void changeRecordedDuringDeltaSyncWins() {
+        sync((groupId, deltaLink) -> delta(true, List.of("user-1"), List.of()));
+
+        sync((groupId, deltaLink) -> {
+            mirror.recordChange(GROUP_ID, "user-2", false);
+            // read before the removal reached Graph
+            return delta(false, List.of("user-2"), List.of());
+        });
+
+        assertEquals(Set.of("user-1"), mirror.getMembers(GROUP_ID));
+    }
+
+    @Test
+    public void changeFromAnEarlierFailedSyncIsNotReplayed() {
+        sync((groupId, deltaLink) -> delta(true, List.of("user-1"), List.of()));
+        sync((groupId, deltaLink) -> {
+            mirror.recordChange(GROUP_ID, "user-2", true);
+            return null;
+        });
+
+        sync((groupId, deltaLink) -> delta(false, List.of(), List.of("user-2")));
+
+        assertEquals(Set.of("user-1"), mirror.getMembers(GROUP_ID));
+    }
+
+    private void sync(BiFunction<String, String, GroupMemberDelta> deltaFetcher) {
+        mirror.start(() -> List.of(GROUP_ID), deltaFetcher);
+        mirror.sync();
+    }
+
+    private static GroupMemberDelta delta(boolean fullSync, List<String> added, List<String> removed) {
+        GroupMemberDelta delta = new GroupMemberDelta()
+                .setGroupId(GROUP_ID)
+                .setFullSync(fullSync)
+                .setDeltaLink("https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=" + added.size());
+        delta.getAdded().addAll(added);
+        delta.getRemoved().addAll(removed);
+        return delta;
+    }
+}
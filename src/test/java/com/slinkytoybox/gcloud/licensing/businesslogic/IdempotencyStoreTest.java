@@ -0,0 +1,162 @@
+/*
+ *   gcloudlicensemanagement - IdempotencyStoreTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Replay, scoping and eviction of stored results. The concurrency tests hold
+ * the original request open on a latch and start the duplicate on its own
+ * thread, then wait until that thread is parked on the original's result.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class IdempotencyStoreTest {
+
+    private final IdempotencyStore store = new IdempotencyStore();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(store, "ttlSeconds", 300L);
+        ReflectionTestUtils.setField(store, "maxEntries", 100);
+    }
+
+    @Test
+    public void completedRequestIsReplayed() {
+        assertEquals("result-1", execute("caller", "key", "fp"));
+        assertEquals("result-1", execute("caller", "key", "fp"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void keysAreScopedToTheCaller() {
+        execute("caller-a", "key", "fp");
+
+        assertEquals("result-2", execute("caller-b", "key", "fp"));
+    }
+
+    @Test
+    public void keyReusedForADifferentRequestIsRejected() {
+        execute("caller", "key", "fp-1");
+
+        assertEquals("reused", execute("caller", "key", "fp-2"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failedRequestCanBeRetriedWithTheSameKey() {
+        assertThrows(IllegalStateException.class, () -> store.execute("caller", "key", "fp", () -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("downstream failure");
+        }, () -> "reused"));
+
+        assertEquals("result-2", execute("caller", "key", "fp"));
+    }
+
+    @Test
+    public void expiredResultIsNotReplayed() {
+        execute("caller", "key", "fp");
+        // a negative TTL puts the cutoff in the future, so every completed entry has expired
+        ReflectionTestUtils.setField(store, "ttlSeconds", -1L);
+
+        assertEquals("result-2", execute("caller", "key", "fp"));
+    }
+
+    @Test
+    public void duplicateWaitsForTheRequestInFlight() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> original = CompletableFuture.supplyAsync(() -> store.execute("caller", "key", "fp", () -> heldOpen(started, release), () -> "reused"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        FutureTask<String> duplicate = startDuplicate("key");
+        release.countDown();
+
+        assertEquals("result-1", original.get(5, TimeUnit.SECONDS));
+        assertEquals("result-1", duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void requestInFlightSurvivesEvictionPastMaxEntries() throws Exception {
+        ReflectionTestUtils.setField(store, "maxEntries", 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> original = CompletableFuture.supplyAsync(() -> store.execute("caller", "slow", "fp", () -> heldOpen(started, release), () -> "reused"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the completed entries are evicted to make room, the one still running is kept
+        execute("caller", "key-2", "fp");
+        execute("caller", "key-3", "fp");
+        FutureTask<String> duplicate = startDuplicate("slow");
+        release.countDown();
+
+        assertEquals("result-1", original.get(5, TimeUnit.SECONDS));
+        assertEquals("result-1", duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+    }
+
+    private String execute(String caller, String key, String fingerprint) {
+        return store.execute(caller, key, fingerprint, () -> "result-" + calls.incrementAndGet(), () -> "reused");
+    }
+
+    // runs a duplicate of the request on its own thread and returns once it is waiting for the original's result
+    private FutureTask<String> startDuplicate(String key) {
+        FutureTask<String> duplicate = new FutureTask<>(() -> execute("caller", key, "fp"));
+        Thread thread = new Thread(duplicate, "duplicate-" + key);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!waitingOnFuture(thread)) {
+            assertTrue(thread.isAlive() && System.nanoTime() < deadline, "duplicate did not wait for the original request");
+            Thread.yield();
+        }
+        return duplicate;
+    }
+
+    private static boolean waitingOnFuture(Thread thread) {
+        Object blocker = LockSupport.getBlocker(thread);
+        return blocker != null && blocker.getClass().getName().startsWith(CompletableFuture.class.getName());
+    }
+
+    private String heldOpen(CountDownLatch started, CountDownLatch release) {
+        String result = "result-" + calls.incrementAndGet();
+        started.countDown();
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ *   gcloudlicensemanagement - LicenseExpiryEngineTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.ExpiryStatistics;
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.dto.response.BooleanResponse;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Runs batches through the expiry engine with actions that block on latches
+ * and barriers, so the tests see which licenses are running together without
+ * depending on timing.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class LicenseExpiryEngineTest {
+
+    private static final Long PLATFORM_A = 1L;
+    private static final Long PLATFORM_B = 2L;
+
+    private LicenseExpiryEngine engine;
+    private final ExecutorService callers = Executors.newFixedThreadPool(2);
+
+    @BeforeEach
+    public void setUp() {
+        engine = new LicenseExpiryEngine();
+        ReflectionTestUtils.setField(engine, "executionMode", new ExecutionMode());
+        ReflectionTestUtils.setField(engine, "globalConcurrency", 2);
+        ReflectionTestUtils.setField(engine, "platformConcurrency", 1);
+        engine.startEngine();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        engine.stopEngine();
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void platformRunsUpToItsLimitAndNoFurther() {
+        engine.stopEngine();
+        ReflectionTestUtils.setField(engine, "globalConcurrency", 8);
+        ReflectionTestUtils.setField(engine, "platformConcurrency", 2);
+        engine.startEngine();
+        // each license waits for a partner, so the batch only finishes if two run together
+        CyclicBarrier pairs = new CyclicBarrier(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        ExpiryStatistics stats = engine.processLicenses(licenses(PLATFORM_A, 1, 20), lic -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                pairs.await(5, TimeUnit.SECONDS);
+                return new BooleanResponse().setSuccess(true);
+            }
+            catch (Exception ex) {
+                return new BooleanResponse().setSuccess(false).setDetailedMessage(ex.toString());
+            }
+            finally {
+                running.decrementAndGet();
+            }
+        });
+
+        assertEquals(20L, stats.getLastRunProcessed());
+        assertEquals(0L, stats.getLastRunFailed());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void busyPlatformDoesNotHoldUpAnother() throws Exception {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch releaseA = new CountDownLatch(1);
+        CountDownLatch platformBDone = new CountDownLatch(3);
+
+        // the first batch holds platform A's only permit until released
+        CompletableFuture<ExpiryStatistics> first = CompletableFuture.supplyAsync(() -> engine.processLicenses(licenses(PLATFORM_A, 1, 1), lic -> {
+            firstStarted.countDown();
+            await(releaseA);
+            return new BooleanResponse().setSuccess(true);
+        }), callers);
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS), "first batch did not start");
+
+        List<LicenseDTO> mixed = new ArrayList<>(licenses(PLATFORM_A, 10, 2));
+        mixed.addAll(licenses(PLATFORM_B, 20, 3));
+        CompletableFuture<ExpiryStatistics> second = CompletableFuture.supplyAsync(() -> engine.processLicenses(mixed, lic -> {
+            if (PLATFORM_B.equals(lic.getCloudPlatformId())) {
+                platformBDone.countDown();
+            }
+            return new BooleanResponse().setSuccess(true);
+        }), callers);
+
+        assertTrue(platformBDone.await(5, TimeUnit.SECONDS), "platform B waited on platform A");
+        releaseA.countDown();
+        assertEquals(1L, first.get(5, TimeUnit.SECONDS).getLastRunProcessed());
+        assertEquals(5L, second.get(5, TimeUnit.SECONDS).getLastRunProcessed());
+    }
+
+    @Test
+    public void failuresAreCountedAndReported() {
+        List<Long> reported = new ArrayList<>();
+
+        ExpiryStatistics stats = engine.processLicenses(licenses(PLATFORM_A, 1, 3), lic -> {
+            if (lic.getId() == 2L) {
+                throw new IllegalStateException("Graph unavailable");
+            }
+            return new BooleanResponse().setSuccess(lic.getId() != 3L);
+        }, (lic, resp) -> {
+            if (!resp.isSuccess()) {
+                synchronized (reported) {
+                    reported.add(lic.getId());
+                }
+            }
+        });
+
+        assertEquals(3L, stats.getLastRunProcessed());
+        assertEquals(2L, stats.getLastRunFailed());
+        assertEquals(0L, stats.getBacklog());
+        reported.sort(null);
+        assertEquals(List.of(2L, 3L), reported);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<LicenseDTO> licenses(Long platformId, long firstId, int count) {
+        List<LicenseDTO> licenses = new ArrayList<>();
+        for (long id = firstId; id < firstId + count; id++) {
+            licenses.add(new LicenseDTO().setId(id).setUpn("user" + id + "@example.com").setCloudPlatformId(platformId));
+        }
+        return licenses;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *   gcloudlicensemanagement - LicenseExpiryIndexTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.LicenseDTO;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Drives the expiry dispatcher with a control license that expires last. The
+ * dispatcher hands licenses over in deadline order on a single thread, so once
+ * the control license has been expired anything due before it has either been
+ * expired too or was correctly skipped.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ExtendWith(MockitoExtension.class)
+public class LicenseExpiryIndexTest {
+
+    private static final Long CONTROL_ID = 99L;
+
+    @Mock
+    private DatabaseFunctions dbFunc;
+
+    @Spy
+    private ExecutionMode executionMode = new ExecutionMode();
+
+    @InjectMocks
+    private LicenseExpiryIndex expiryIndex;
+
+    private final List<Long> expired = new CopyOnWriteArrayList<>();
+    private final CountDownLatch controlExpired = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() {
+        when(dbFunc.streamIssuedLicenses(any())).thenReturn(true);
+        expiryIndex.start(licenses -> licenses.forEach(lic -> {
+            expired.add(lic.getId());
+            if (CONTROL_ID.equals(lic.getId())) {
+                controlExpired.countDown();
+            }
+        }));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        expiryIndex.stop();
+    }
+
+    @Test
+    public void dueLicensesAreExpiredInDeadlineOrder() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        expiryIndex.schedule(control(soon.plusNanos(100_000_000L)));
+        expiryIndex.schedule(license(2L, soon.plusNanos(50_000_000L)));
+        expiryIndex.schedule(license(1L, soon));
+
+        awaitControl();
+
+        assertEquals(List.of(1L, 2L, CONTROL_ID), expired);
+    }
+
+    @Test
+    public void extendedLicenseIsNotExpiredAtItsOldDeadline() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        expiryIndex.schedule(license(1L, soon));
+        expiryIndex.schedule(license(1L, soon.plusHours(1)));
+        expiryIndex.schedule(control(soon.plusNanos(100_000_000L)));
+
+        awaitControl();
+
+        assertEquals(List.of(CONTROL_ID), expired);
+    }
+
+    @Test
+    public void returnedLicenseIsNotExpired() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        expiryIndex.schedule(license(2L, soon));
+        expiryIndex.remove(2L);
+        expiryIndex.schedule(control(soon.plusNanos(100_000_000L)));
+
+        awaitControl();
+
+        assertEquals(List.of(CONTROL_ID), expired);
+    }
+
+    @Test
+    public void reloadDropsLicensesNoLongerInTheDatabase() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        expiryIndex.schedule(license(3L, soon));
+        streamPages(List.of(control(soon.plusNanos(100_000_000L))));
+
+        expiryIndex.reload();
+        awaitControl();
+
+        assertEquals(List.of(CONTROL_ID), expired);
+    }
+
+    @Test
+    public void failedReloadKeepsTheIndex() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        expiryIndex.schedule(license(4L, soon));
+        expiryIndex.schedule(control(soon.plusNanos(100_000_000L)));
+        when(dbFunc.streamIssuedLicenses(any())).thenReturn(false);
+
+        expiryIndex.reload();
+        awaitControl();
+
+        assertEquals(List.of(4L, CONTROL_ID), expired);
+    }
+
+    @Test
+    public void licenseIssuedDuringReloadIsKept() throws InterruptedException {
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        when(dbFunc.streamIssuedLicenses(any())).thenAnswer(invocation -> {
+            // issued on another thread after the read began, so it is missing from the pages
+            expiryIndex.schedule(license(5L, soon));
+            invocation.<Consumer<List<LicenseDTO>>>getArgument(0).accept(List.of(control(soon.plusNanos(100_000_000L))));
+            return true;
+        });
+
+        expiryIndex.reload();
+        awaitControl();
+
+        assertEquals(List.of(5L, CONTROL_ID), expired);
+    }
+
+    @Test
+    public void refreshReadsFromTheNewestIssueSeen() throws InterruptedException {
+        ReflectionTestUtils.setField(expiryIndex, "refreshOverlapSeconds", 60L);
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        LocalDateTime loadedIssue = LocalDateTime.now().minusHours(2);
+        LocalDateTime refreshedIssue = LocalDateTime.now().minusHours(1);
+        streamPages(List.of(license(1L, soon.plusHours(1)).setIssueDate(loadedIssue)));
+        expiryIndex.reload();
+        streamIssuedSince(loadedIssue.minusSeconds(60), List.of(control(soon).setIssueDate(refreshedIssue)));
+        streamIssuedSince(refreshedIssue.minusSeconds(60), List.of());
+
+        expiryIndex.refresh();
+        expiryIndex.refresh();
+        awaitControl();
+
+        assertEquals(List.of(CONTROL_ID), expired);
+        // the whole table is only read at startup and by the explicit reload
+        verify(dbFunc, times(2)).streamIssuedLicenses(any());
+    }
+
+    @Test
+    public void failedRefreshReadsFromTheSameWatermarkAgain() {
+        ReflectionTestUtils.setField(expiryIndex, "refreshOverlapSeconds", 60L);
+        LocalDateTime loadedIssue = LocalDateTime.now().minusHours(2);
+        streamPages(List.of(license(1L, LocalDateTime.now().plusHours(1)).setIssueDate(loadedIssue)));
+        expiryIndex.reload();
+        when(dbFunc.streamLicensesIssuedSince(eq(loadedIssue.minusSeconds(60)), any())).thenReturn(false);
+
+        expiryIndex.refresh();
+        expiryIndex.refresh();
+
+        verify(dbFunc, times(2)).streamLicensesIssuedSince(eq(loadedIssue.minusSeconds(60)), any());
+    }
+
+    @Test
+    public void failedExpiryIsRetried() throws InterruptedException {
+        ReflectionTestUtils.setField(expiryIndex, "retryInitialSeconds", 0L);
+        ReflectionTestUtils.setField(expiryIndex, "retryMaxSeconds", 0L);
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        LicenseDTO lic = license(1L, soon);
+        expiryIndex.schedule(lic);
+        // as if a return had just failed, with no backoff so the retry is due straight away
+        expiryIndex.retryLater(lic);
+        expiryIndex.schedule(control(soon.plusNanos(100_000_000L)));
+
+        awaitControl();
+
+        assertEquals(List.of(1L, 1L, CONTROL_ID), expired);
+    }
+
+    @Test
+    public void returnedLicenseIsNotRetried() throws InterruptedException {
+        ReflectionTestUtils.setField(expiryIndex, "retryInitialSeconds", 0L);
+        ReflectionTestUtils.setField(expiryIndex, "retryMaxSeconds", 0L);
+        LocalDateTime soon = LocalDateTime.now().plusNanos(100_000_000L);
+        LicenseDTO lic = license(2L, soon.plusHours(1));
+        expiryIndex.schedule(lic);
+        expiryIndex.remove(2L);
+        expiryIndex.retryLater(lic);
+        expiryIndex.schedule(control(soon));
+
+        awaitControl();
+
+        assertEquals(List.of(CONTROL_ID), expired);
+    }
+
+    private void awaitControl() throws InterruptedException {
+        assertTrue(controlExpired.await(5, TimeUnit.SECONDS), "control license was not expired");
+    }
+
+    private void streamPages(List<LicenseDTO> licenses) {
+        when(dbFunc.streamIssuedLicenses(any())).thenAnswer(invocation -> {
+            invocation.<Consumer<List<LicenseDTO>>>getArgument(0).accept(licenses);
+            return true;
+        });
+    }
+
+    private void streamIssuedSince(LocalDateTime issuedAfter, List<LicenseDTO> licenses) {
+        when(dbFunc.streamLicensesIssuedSince(eq(issuedAfter), any())).thenAnswer(invocation -> {
+            invocation.<Consumer<List<LicenseDTO>>>getArgument(1).accept(licenses);
+            return true;
+        });
+    }
+
+    private static LicenseDTO control(LocalDateTime expiry) {
+        return license(CONTROL_ID, expiry);
+    }
+
+    private static LicenseDTO license(Long id, LocalDateTime expiry) {
+        return new LicenseDTO()
+                .setId(id)
+                .setUpn("user" + id + "@example.com")
+                .setCloudPlatformId(10L)
+                .setLicenseGroupId(1L)
+                .setIssueDate(LocalDateTime.now())
+                .setExpiryDate(expiry);
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ *   gcloudlicensemanagement - LicenseQuotaLedgerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Ledger counts against a mocked usage query. The query is only stubbed in the
+ * tests that expect the ledger to go to the database.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ExtendWith(MockitoExtension.class)
+public class LicenseQuotaLedgerTest {
+
+    @Mock
+    private DatabaseFunctions dbFunc;
+
+    @InjectMocks
+    private LicenseQuotaLedger ledger;
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(ledger, "trustSeconds", 60L);
+    }
+
+    @Test
+    public void allocationCountReplacesTheLedgerValue() {
+        when(dbFunc.getCurrentLicenseUsage()).thenReturn(Map.of(1L, 4L));
+        ledger.seedLedger();
+
+        // the count comes back from the guarded insert, so it also picks up other nodes' allocations
+        ledger.recordUsage(1L, 9L);
+        assertEquals(9L, ledger.getUsage(1L));
+        ledger.recordUsage(1L, 8L);
+        assertEquals(8L, ledger.getUsage(1L));
+        verify(dbFunc).getCurrentLicenseUsage();
+    }
+
+    @Test
+    public void returnsNeverTakeTheCountBelowZero() {
+        ledger.recordUsage(1L, 1L);
+        ledger.licenseReturned(1L);
+        ledger.licenseReturned(1L);
+
+        assertEquals(0L, ledger.getUsage(1L));
+    }
+
+    @Test
+    public void reconcileCorrectsDriftAndForgetsDeletedGroups() {
+        ledger.recordUsage(1L, 10L);
+        ledger.recordUsage(2L, 4L);
+        when(dbFunc.getCurrentLicenseUsage()).thenReturn(Map.of(1L, 7L));
+
+        ledger.reconcile();
+
+        assertEquals(7L, ledger.getUsage(1L));
+        assertNull(ledger.getUsage(2L));
+    }
+
+    @Test
+    public void emptyUsageResultKeepsTheLedger() {
+        ledger.recordUsage(1L, 3L);
+        when(dbFunc.getCurrentLicenseUsage()).thenReturn(Map.of());
+
+        ledger.reconcile();
+
+        assertEquals(3L, ledger.getUsage(1L));
+    }
+
+    @Test
+    public void unknownGroupIsLeftToTheDatabase() {
+        assertNull(ledger.getUsage(9L));
+        assertFalse(ledger.isKnownFull(9L, 0L));
+        verifyNoInteractions(dbFunc);
+    }
+
+    @Test
+    public void freshCountAtTheHardLimitIsKnownFull() {
+        ledger.recordUsage(1L, 10L);
+
+        assertTrue(ledger.isKnownFull(1L, 10L));
+        assertFalse(ledger.isKnownFull(1L, 11L));
+    }
+
+    @Test
+    public void localReturnMakesRoom() {
+        ledger.recordUsage(1L, 10L);
+
+        ledger.licenseReturned(1L);
+
+        assertFalse(ledger.isKnownFull(1L, 10L));
+    }
+
+    @Test
+    public void staleCountIsNotTrusted() {
+        // with no trust window every reading is already too old to reject on
+        ReflectionTestUtils.setField(ledger, "trustSeconds", 0L);
+        ledger.recordUsage(1L, 10L);
+
+        assertFalse(ledger.isKnownFull(1L, 10L));
+        assertEquals(10L, ledger.getUsage(1L));
+    }
+
+    @Test
+    public void reconciledCountIsTrustedLikeAnAllocation() {
+        when(dbFunc.getCurrentLicenseUsage()).thenReturn(Map.of(1L, 10L));
+
+        ledger.reconcile();
+
+        assertTrue(ledger.isKnownFull(1L, 10L));
+    }
+
+}
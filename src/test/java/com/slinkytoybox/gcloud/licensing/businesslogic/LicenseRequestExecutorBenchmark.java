@@ -0,0 +1,158 @@
+/*
+ *   gcloudlicensemanagement - LicenseRequestExecutorBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Concurrent allocation throughput through the license request pool, on
+ * platform threads and then on virtual threads. Not part of the normal build;
+ * run it on Java 21 or later with
+ * <pre>
+ * mvn test -Dtest=LicenseRequestExecutorBenchmark -Dbenchmark=true
+ * </pre>
+ * Each simulated allocation makes the same blocking calls as a real one: the
+ * guarded insert, the Azure AD group change and the confirmation. The database
+ * and Graph are stood in for by sleeps behind semaphores sized to the default
+ * Hikari pool and Graph concurrency limit, so the result shows how much of
+ * that capacity each execution mode can use. Latencies can be overridden with
+ * -Dbenchmark.db-millis and -Dbenchmark.graph-millis to match a real
+ * environment.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class LicenseRequestExecutorBenchmark {
+
+    private static final int DATABASE_POOL = 10;
+    private static final int GRAPH_CONCURRENCY = 16;
+    private static final int AGENTS = 500;
+    private static final int REQUESTS_PER_AGENT = 10;
+
+    private final long dbMillis = Long.getLong("benchmark.db-millis", 5L);
+    private final long graphMillis = Long.getLong("benchmark.graph-millis", 120L);
+    private final Semaphore database = new Semaphore(DATABASE_POOL, true);
+    private final Semaphore graph = new Semaphore(GRAPH_CONCURRENCY, true);
+
+    @Test
+    public void allocationThroughput() throws InterruptedException {
+        Result platform = run(false);
+        Result virtual = run(true);
+        assumeTrue(virtual != null, "virtual threads need Java 21 or later");
+
+        log.info("Platform threads: {}", platform);
+        log.info("Virtual threads:  {}", virtual);
+        log.info("Throughput change: {}%", Math.round((virtual.perSecond() / platform.perSecond() - 1) * 100));
+        assertTrue(platform.completed > 0 && virtual.completed > 0);
+    }
+
+    // every agent clicks allocate, waits for the answer and clicks again, so the pool sees AGENTS requests at once
+    private Result run(boolean virtualThreads) throws InterruptedException {
+        ExecutionMode executionMode = new ExecutionMode();
+        ReflectionTestUtils.setField(executionMode, "virtualRequested", virtualThreads);
+        executionMode.resolveExecutionMode();
+        if (virtualThreads && !executionMode.isVirtual()) {
+            return null;
+        }
+        LicenseRequestExecutor executor = new LicenseRequestExecutor();
+        ReflectionTestUtils.setField(executor, "executionMode", executionMode);
+        ReflectionTestUtils.setField(executor, "threadCount", 16);
+        ReflectionTestUtils.setField(executor, "queueSize", 256);
+        ReflectionTestUtils.setField(executor, "timeoutSeconds", 60L);
+        ReflectionTestUtils.setField(executor, "databasePoolSize", DATABASE_POOL);
+        ReflectionTestUtils.setField(executor, "graphConcurrency", GRAPH_CONCURRENCY);
+        executor.startExecutor();
+
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Thread> agents = new ArrayList<>();
+        long started = System.nanoTime();
+        for (int i = 0; i < AGENTS; i++) {
+            Thread agent = new Thread(() -> {
+                for (int r = 0; r < REQUESTS_PER_AGENT; r++) {
+                    try {
+                        executor.submit(this::allocate).join();
+                        completed.incrementAndGet();
+                    }
+                    catch (CompletionException ex) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }, "agent-" + i);
+            agent.start();
+            agents.add(agent);
+        }
+        for (Thread agent : agents) {
+            agent.join();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        executor.stopExecutor();
+        return new Result(completed.get(), rejected.get(), elapsedMillis);
+    }
+
+    private boolean allocate() {
+        call(database, dbMillis);
+        call(graph, graphMillis);
+        call(database, dbMillis);
+        return true;
+    }
+
+    private static void call(Semaphore limit, long millis) {
+        try {
+            limit.acquire();
+            try {
+                Thread.sleep(millis);
+            }
+            finally {
+                limit.release();
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private record Result(int completed, int rejected, long elapsedMillis) {
+
+        double perSecond() {
+            return completed * 1000.0 / Math.max(1, elapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d allocations in %dms (%.1f/s), %d rejected", completed, elapsedMillis, perSecond(), rejected);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ *   gcloudlicensemanagement - LicenseWaitQueueTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.licensing.businesslogic;
+
+import com.slinkytoybox.gcloud.licensing.dto.internal.QueuedLicenseRequest;
+import com.slinkytoybox.gcloud.licensing.init.ExecutionMode;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Queue ordering and serving for one license group. Serving runs on the queue's
+ * own worker thread, so those tests wait on a latch counted down by the server.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class LicenseWaitQueueTest {
+
+    private static final Long GROUP = 1L;
+    private static final Long PLATFORM = 10L;
+
+    private final LicenseWaitQueue waitQueue = new LicenseWaitQueue();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(waitQueue, "executionMode", new ExecutionMode());
+        ReflectionTestUtils.setField(waitQueue, "queueEnabled", true);
+        ReflectionTestUtils.setField(waitQueue, "ttlSeconds", 600L);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        waitQueue.stop();
+    }
+
+    @Test
+    public void requestsAreQueuedInArrivalOrder() {
+        assertEquals(1, queue("first@example.com"));
+        assertEquals(2, queue("second@example.com"));
+        assertEquals(3, queue("third@example.com"));
+
+        // a repeat request keeps its place, and UPNs are matched without case
+        assertEquals(2, queue("SECOND@example.com"));
+        assertEquals(3, waitQueue.getPosition("third@example.com", PLATFORM));
+        assertNull(waitQueue.getPosition("third@example.com", 11L));
+    }
+
+    @Test
+    public void requestBeingServedGoesBackToTheFront() {
+        queue("first@example.com");
+
+        assertEquals(1, waitQueue.enqueue(GROUP, "served@example.com", PLATFORM, true));
+        assertEquals(2, waitQueue.getPosition("first@example.com", PLATFORM));
+    }
+
+    @Test
+    public void dequeueRemovesOnlyThatRequest() {
+        queue("first@example.com");
+        queue("second@example.com");
+
+        assertTrue(waitQueue.dequeue("first@example.com", PLATFORM));
+        assertFalse(waitQueue.dequeue("first@example.com", PLATFORM));
+        assertFalse(waitQueue.isQueued("first@example.com", PLATFORM));
+        assertEquals(1, waitQueue.getPosition("second@example.com", PLATFORM));
+    }
+
+    @Test
+    public void sweepDropsAbandonedRequests() {
+        queue("first@example.com");
+        assertTrue(waitQueue.hasWaiters(GROUP));
+
+        // a negative TTL puts the cutoff in the future, so every entry is abandoned
+        ReflectionTestUtils.setField(waitQueue, "ttlSeconds", -1L);
+        waitQueue.sweep();
+
+        assertFalse(waitQueue.hasWaiters(GROUP));
+        assertNull(waitQueue.getPosition("first@example.com", PLATFORM));
+    }
+
+    @Test
+    public void freedSlotServesRequestsInOrder() throws InterruptedException {
+        List<String> served = new CopyOnWriteArrayList<>();
+        CountDownLatch allServed = new CountDownLatch(3);
+        waitQueue.start((QueuedLicenseRequest request) -> {
+            served.add(request.getUpn());
+            allServed.countDown();
+            return true;
+        });
+        queue("first@example.com");
+        queue("second@example.com");
+        queue("third@example.com");
+
+        waitQueue.slotFreed(GROUP);
+
+        assertTrue(allServed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first@example.com", "second@example.com", "third@example.com"), served);
+        assertFalse(waitQueue.hasWaiters(GROUP));
+    }
+
+    @Test
+    public void servingStopsWhileTheGroupIsStillFull() throws InterruptedException {
+        CountDownLatch requeued = new CountDownLatch(1);
+        waitQueue.start((QueuedLicenseRequest request) -> {
+            // no slot was available, so the request is put back at the front before the server gives up
+            waitQueue.enqueue(request.getLicenseGroupId(), request.getUpn(), request.getCloudPlatformId(), true);
+            requeued.countDown();
+            return false;
+        });
+        queue("first@example.com");
+        queue("second@example.com");
+
+        waitQueue.slotFreed(GROUP);
+
+        assertTrue(requeued.await(5, TimeUnit.SECONDS));
+        assertEquals(1, waitQueue.getPosition("first@example.com", PLATFORM));
+        assertEquals(2, waitQueue.getPosition("second@example.com", PLATFORM));
+    }
+
+    @Test
+    public void pausedQueueServesOnceTheLastPauseIsReleased() throws InterruptedException {
+        List<String> served = new CopyOnWriteArrayList<>();
+        CountDownLatch allServed = new CountDownLatch(2);
+        waitQueue.start((QueuedLicenseRequest request) -> {
+            // anything served while a pause is held would be recorded out of turn
+            served.add(waitQueue.isPaused() ? "paused" : request.getUpn());
+            allServed.countDown();
+            return true;
+        });
+        queue("first@example.com");
+        queue("second@example.com");
+        waitQueue.pause();
+        waitQueue.pause();
+
+        waitQueue.slotFreed(GROUP);
+        waitQueue.resume();
+        assertTrue(waitQueue.isPaused());
+        assertEquals(1, waitQueue.getPosition("first@example.com", PLATFORM));
+
+        waitQueue.resume();
+
+        assertTrue(allServed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first@example.com", "second@example.com"), served);
+        assertFalse(waitQueue.isPaused());
+    }
+
+    @Test
+    public void disabledQueueNeverServes() {
+        ReflectionTestUtils.setField(waitQueue, "queueEnabled", false);
+        waitQueue.start(request -> {
+            throw new AssertionError("disabled queue served " + request);
+        });
+        queue("first@example.com");
+
+        waitQueue.slotFreed(GROUP);
+
+        assertTrue(waitQueue.hasWaiters(GROUP));
+    }
+
+    private int queue(String upn) {
+        return waitQueue.enqueue(GROUP, upn, PLATFORM, false);
+    }
+
+}